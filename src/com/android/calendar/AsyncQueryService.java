@@ -43,7 +43,9 @@ import java.util.concurrent.atomic.AtomicInteger;
  * query/insert/update/delete and also batch mode i.e.
  * {@link ContentProviderOperation}. It also supports delay execution and cancel
  * which allows for time-limited undo. Note that there's one queue per
- * application which serializes all the calls.
+ * application. Queries may run in parallel with each other, but all other
+ * calls are serialized with respect to the calls made before them on the same
+ * authority.
  */
 public class AsyncQueryService extends Handler {
     private static final String TAG = "AsyncQuery";
@@ -54,6 +56,7 @@ public class AsyncQueryService extends Handler {
 
     private Context mContext;
     private Handler mHandler = this; // can be overridden for testing
+    private boolean mCoalesceUpdates;
 
     /**
      * Data class which holds into info of the queued operation
@@ -122,6 +125,22 @@ public class AsyncQueryService extends Handler {
         return mUniqueToken.getAndIncrement();
     }
 
+    /**
+     * Lets updates started after this call be merged with the coalescing
+     * updates that queue up with them behind a running write on the same
+     * authority. Consecutive updates of the same uri and selection are folded
+     * into one update, later values winning, and the rest are applied in order
+     * as a single batch. Each update still gets its own call to
+     * {@link #onUpdateComplete}, with the number of rows changed by the update
+     * it was merged into. Only enable this for updates whose selection doesn't
+     * depend on the values written by another one.
+     *
+     * @param enabled whether updates should be coalesced
+     */
+    public void setCoalescingEnabled(boolean enabled) {
+        mCoalesceUpdates = enabled;
+    }
+
     /**
      * Gets the last delayed operation. It is typically used for canceling.
      *
@@ -196,9 +215,9 @@ public class AsyncQueryService extends Handler {
      * @param uri the Uri passed to the insert operation.
      * @param initialValues the ContentValues parameter passed to the insert
      *            operation.
-     * @param delayMillis delay in executing the operation. This operation will
-     *            execute before the delayed time when another operation is
-     *            added. Useful for implementing single level undo.
+     * @param delayMillis delay in executing the operation. The operation can
+     *            be canceled until then. Useful for implementing single level
+     *            undo.
      */
     public void startInsert(int token, Object cookie, Uri uri, ContentValues initialValues,
             long delayMillis) {
@@ -232,9 +251,9 @@ public class AsyncQueryService extends Handler {
      *            replaced by the values from selectionArgs, in the order that
      *            they appear in the selection. The values will be bound as
      *            Strings.
-     * @param delayMillis delay in executing the operation. This operation will
-     *            execute before the delayed time when another operation is
-     *            added. Useful for implementing single level undo.
+     * @param delayMillis delay in executing the operation. The operation can
+     *            be canceled until then. Useful for implementing single level
+     *            undo.
      */
     public void startUpdate(int token, Object cookie, Uri uri, ContentValues values,
             String selection, String[] selectionArgs, long delayMillis) {
@@ -250,6 +269,7 @@ public class AsyncQueryService extends Handler {
         info.selection = selection;
         info.selectionArgs = selectionArgs;
         info.delayMillis = delayMillis;
+        info.coalesce = mCoalesceUpdates;
 
         AsyncQueryServiceHelper.queueOperation(mContext, info);
     }
@@ -269,9 +289,9 @@ public class AsyncQueryService extends Handler {
      *            replaced by the values from selectionArgs, in the order that
      *            they appear in the selection. The values will be bound as
      *            Strings.
-     * @param delayMillis delay in executing the operation. This operation will
-     *            execute before the delayed time when another operation is
-     *            added. Useful for implementing single level undo.
+     * @param delayMillis delay in executing the operation. The operation can
+     *            be canceled until then. Useful for implementing single level
+     *            undo.
      */
     public void startDelete(int token, Object cookie, Uri uri, String selection,
             String[] selectionArgs, long delayMillis) {
@@ -300,9 +320,9 @@ public class AsyncQueryService extends Handler {
      * @param authority the authority used for the
      *            {@link ContentProviderOperation}.
      * @param cpo the {@link ContentProviderOperation} to be executed.
-     * @param delayMillis delay in executing the operation. This operation will
-     *            execute before the delayed time when another operation is
-     *            added. Useful for implementing single level undo.
+     * @param delayMillis delay in executing the operation. The operation can
+     *            be canceled until then. Useful for implementing single level
+     *            undo.
      */
     public void startBatch(int token, Object cookie, String authority,
             ArrayList<ContentProviderOperation> cpo, long delayMillis) {
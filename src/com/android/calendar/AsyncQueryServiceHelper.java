@@ -20,8 +20,9 @@ import org.sufficientlysecure.standalonecalendar.R;
 
 import com.android.calendar.AsyncQueryService.Operation;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -30,26 +31,77 @@ import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
 import android.os.Message;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.PriorityQueue;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-
-public class AsyncQueryServiceHelper extends IntentService {
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes the operations queued by {@link AsyncQueryService}. Operations are
+ * taken off a delay queue by a single dispatcher thread once their scheduled
+ * time has come, and run on a pool of worker threads. Queries run concurrently, while every
+ * insert, update, delete or batch waits for the operations queued before it
+ * on the same authority and holds back the ones queued after it, so callers
+ * still observe their own writes in order.
+ */
+public class AsyncQueryServiceHelper extends Service {
     private static final String TAG = "AsyncQuery";
 
-    private static final PriorityQueue<OperationInfo> sWorkQueue =
-        new PriorityQueue<OperationInfo>();
+    private static final DelayQueue<OperationInfo> sWorkQueue =
+        new DelayQueue<OperationInfo>();
+
+    /*
+     * Pending operations by token, so they can be canceled without searching
+     * the work queue. Canceled operations are flagged and made due right away;
+     * the dispatch run queued for each drops it when it comes off the queue,
+     * instead of waiting out its delay. Also guards sDelayedOperations,
+     * sNextSequence, sMetrics and the mSequence and mCanceled fields.
+     */
+    private static final HashMap<Integer, ArrayList<OperationInfo>> sPendingByToken =
+            new HashMap<Integer, ArrayList<OperationInfo>>();
+
+    // Pending operations with a delay, in scheduled order
+    private static final TreeSet<OperationInfo> sDelayedOperations = new TreeSet<OperationInfo>();
+
+    private static long sNextSequence;
+
+    private static final QueueMetrics sMetrics = new QueueMetrics();
+
+    // Worker threads are let go after this much idle time
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    // Lazily created, shared by all instances of the service
+    private static ThreadPoolExecutor sExecutor;
+
+    // Guarded by itself
+    private static final HashMap<String, AuthorityLane> sLanes =
+            new HashMap<String, AuthorityLane>();
 
     protected Class<AsyncQueryService> mService = AsyncQueryService.class;
 
+    private Handler mDispatchHandler;
+
+    // Guarded by this
+    private int mLastStartId;
+    private int mPendingDispatches;
+    private int mRunningOperations;
+
     protected static class OperationInfo implements Delayed{
         public int token; // Used for cancel
         public int op;
@@ -66,6 +118,9 @@ public class AsyncQueryServiceHelper extends IntentService {
         public ContentValues values;
         public ArrayList<ContentProviderOperation> cpo;
 
+        // Update that may be merged with the updates waiting right behind it on its authority
+        public boolean coalesce;
+
         /**
          * delayMillis is relative time e.g. 10,000 milliseconds
          */
@@ -78,6 +133,11 @@ public class AsyncQueryServiceHelper extends IntentService {
          */
         private long mScheduledTimeMillis = 0;
 
+        // Order of queueing, breaks ties between equal scheduled times
+        private long mSequence;
+
+        private boolean mCanceled;
+
         // @VisibleForTesting
         void calculateScheduledTime() {
             mScheduledTimeMillis = SystemClock.elapsedRealtime() + delayMillis;
@@ -93,7 +153,10 @@ public class AsyncQueryServiceHelper extends IntentService {
         public int compareTo(Delayed another) {
             OperationInfo anotherArgs = (OperationInfo) another;
             if (this.mScheduledTimeMillis == anotherArgs.mScheduledTimeMillis) {
-                return 0;
+                if (this.mSequence == anotherArgs.mSequence) {
+                    return 0;
+                }
+                return this.mSequence < anotherArgs.mSequence ? -1 : 1;
             } else if (this.mScheduledTimeMillis < anotherArgs.mScheduledTimeMillis) {
                 return -1;
             } else {
@@ -136,6 +199,8 @@ public class AsyncQueryServiceHelper extends IntentService {
             builder.append(values);
             builder.append(",\n\t cpo= ");
             builder.append(cpo);
+            builder.append(",\n\t coalesce= ");
+            builder.append(coalesce);
             builder.append("\n]");
             return builder.toString();
         }
@@ -152,6 +217,57 @@ public class AsyncQueryServiceHelper extends IntentService {
         }
     }
 
+    /**
+     * Counters describing the work queue. Wait time is measured from queueing
+     * to dispatch, lateness from the scheduled time to dispatch.
+     */
+    static class QueueMetrics {
+        int queued;
+        int dispatched;
+        int canceled;
+        // Canceled operations taken off the queue
+        int dropped;
+        int depth;
+        int maxDepth;
+        long totalWaitMillis;
+        long maxWaitMillis;
+        long totalLatenessMillis;
+
+        QueueMetrics copy() {
+            QueueMetrics copy = new QueueMetrics();
+            copy.queued = queued;
+            copy.dispatched = dispatched;
+            copy.canceled = canceled;
+            copy.dropped = dropped;
+            copy.depth = depth;
+            copy.maxDepth = maxDepth;
+            copy.totalWaitMillis = totalWaitMillis;
+            copy.maxWaitMillis = maxWaitMillis;
+            copy.totalLatenessMillis = totalLatenessMillis;
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return "QueueMetrics [queued=" + queued + ", dispatched=" + dispatched
+                    + ", canceled=" + canceled + ", dropped=" + dropped + ", depth=" + depth
+                    + ", maxDepth=" + maxDepth
+                    + ", avgWaitMillis=" + (dispatched == 0 ? 0 : totalWaitMillis / dispatched)
+                    + ", maxWaitMillis=" + maxWaitMillis
+                    + ", avgLatenessMillis="
+                    + (dispatched == 0 ? 0 : totalLatenessMillis / dispatched) + "]";
+        }
+    }
+
+    /**
+     * Returns a snapshot of the work queue counters.
+     */
+    static QueueMetrics getQueueMetrics() {
+        synchronized (sPendingByToken) {
+            return sMetrics.copy();
+        }
+    }
+
     /**
      * Queues the operation for execution
      *
@@ -162,10 +278,24 @@ public class AsyncQueryServiceHelper extends IntentService {
         // Set the schedule time for execution based on the desired delay.
         args.calculateScheduledTime();
 
-        synchronized (sWorkQueue) {
-            sWorkQueue.add(args);
-            sWorkQueue.notify();
+        synchronized (sPendingByToken) {
+            args.mSequence = sNextSequence++;
+            ArrayList<OperationInfo> ops = sPendingByToken.get(args.token);
+            if (ops == null) {
+                ops = new ArrayList<OperationInfo>(1);
+                sPendingByToken.put(args.token, ops);
+            }
+            ops.add(args);
+            if (args.delayMillis > 0) {
+                sDelayedOperations.add(args);
+            }
+            sMetrics.queued++;
+            sMetrics.depth++;
+            if (sMetrics.depth > sMetrics.maxDepth) {
+                sMetrics.maxDepth = sMetrics.depth;
+            }
         }
+        sWorkQueue.add(args);
 
         context.startService(new Intent(context, AsyncQueryServiceHelper.class));
     }
@@ -176,29 +306,19 @@ public class AsyncQueryServiceHelper extends IntentService {
      * @return Operation object which contains of the last cancelable operation
      */
     static public Operation getLastCancelableOperation() {
-        long lastScheduleTime = Long.MIN_VALUE;
         Operation op = null;
 
-        synchronized (sWorkQueue) {
-            // Unknown order even for a PriorityQueue
-            Iterator<OperationInfo> it = sWorkQueue.iterator();
-            while (it.hasNext()) {
-                OperationInfo info = it.next();
-                if (info.delayMillis > 0 && lastScheduleTime < info.mScheduledTimeMillis) {
-                    if (op == null) {
-                        op = new Operation();
-                    }
-
-                    op.token = info.token;
-                    op.op = info.op;
-                    op.scheduledExecutionTime = info.mScheduledTimeMillis;
-
-                    lastScheduleTime = info.mScheduledTimeMillis;
-                }
+        synchronized (sPendingByToken) {
+            if (!sDelayedOperations.isEmpty()) {
+                OperationInfo info = sDelayedOperations.last();
+                op = new Operation();
+                op.token = info.token;
+                op.op = info.op;
+                op.scheduledExecutionTime = info.mScheduledTimeMillis;
             }
         }
 
-        if (AsyncQueryService.localLOGV) {
+        if (AsyncQueryService.localLOGV && op != null) {
             Log.d(TAG, "getLastCancelableOperation -> Operation:" + Operation.opToChar(op.op)
                     + " token:" + op.token);
         }
@@ -217,13 +337,20 @@ public class AsyncQueryServiceHelper extends IntentService {
      */
     static public int cancelOperation(int token) {
         int canceled = 0;
-        synchronized (sWorkQueue) {
-            Iterator<OperationInfo> it = sWorkQueue.iterator();
-            while (it.hasNext()) {
-                if (it.next().token == token) {
-                    it.remove();
-                    ++canceled;
+        synchronized (sPendingByToken) {
+            ArrayList<OperationInfo> ops = sPendingByToken.remove(token);
+            if (ops != null) {
+                for (OperationInfo info : ops) {
+                    info.mCanceled = true;
+                    sDelayedOperations.remove(info);
+                    if (info.delayMillis > 0 && sWorkQueue.remove(info)) {
+                        info.mScheduledTimeMillis = SystemClock.elapsedRealtime();
+                        sWorkQueue.add(info);
+                    }
                 }
+                canceled = ops.size();
+                sMetrics.canceled += canceled;
+                sMetrics.depth -= canceled;
             }
         }
 
@@ -233,50 +360,75 @@ public class AsyncQueryServiceHelper extends IntentService {
         return canceled;
     }
 
-    public AsyncQueryServiceHelper(String name) {
-        super(name);
+    /**
+     * Takes the next operation off the work queue, waiting until it is due.
+     * Every queued operation has a matching call to this method.
+     *
+     * @return the operation or null if it was canceled
+     */
+    private static OperationInfo takeNextOperation() {
+        // Only the dispatcher thread takes from the queue
+        if (sWorkQueue.isEmpty()) {
+            return null;
+        }
+        OperationInfo args;
+        try {
+            args = sWorkQueue.take();
+        } catch (InterruptedException e) {
+            return null;
+        }
+        return claimOperation(args) ? args : null;
     }
 
-    public AsyncQueryServiceHelper() {
-        super("AsyncQueryServiceHelper");
+    private static boolean isCoalescible(OperationInfo info) {
+        return info.coalesce && info.op == Operation.EVENT_ARG_UPDATE && info.uri != null;
     }
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        OperationInfo args;
-
-        if (AsyncQueryService.localLOGV) {
-            Log.d(TAG, "onHandleIntent: queue size=" + sWorkQueue.size());
-        }
-        synchronized (sWorkQueue) {
-            while (true) {
-                /*
-                 * This method can be called with no work because of
-                 * cancellations
-                 */
-                if (sWorkQueue.size() == 0) {
-                    return;
-                } else if (sWorkQueue.size() == 1) {
-                    OperationInfo first = sWorkQueue.peek();
-                    long waitTime = first.mScheduledTimeMillis - SystemClock.elapsedRealtime();
-                    if (waitTime > 0) {
-                        try {
-                            sWorkQueue.wait(waitTime);
-                        } catch (InterruptedException e) {
-                        }
-                    }
-                }
-
-                args = sWorkQueue.poll();
-                if (args != null) {
-                    // Got work to do. Break out of waiting loop
-                    break;
+    /**
+     * Removes an operation taken off the work queue from the pending index and
+     * accounts for it in the metrics.
+     *
+     * @return false if the operation was canceled and must not run
+     */
+    private static boolean claimOperation(OperationInfo args) {
+        synchronized (sPendingByToken) {
+            if (args.mCanceled) {
+                sMetrics.dropped++;
+                return false;
+            }
+            ArrayList<OperationInfo> ops = sPendingByToken.get(args.token);
+            if (ops != null) {
+                ops.remove(args);
+                if (ops.isEmpty()) {
+                    sPendingByToken.remove(args.token);
                 }
             }
+            sDelayedOperations.remove(args);
+
+            long now = SystemClock.elapsedRealtime();
+            long waitMillis = now - (args.mScheduledTimeMillis - args.delayMillis);
+            sMetrics.dispatched++;
+            sMetrics.depth--;
+            sMetrics.totalWaitMillis += waitMillis;
+            sMetrics.totalLatenessMillis += now - args.mScheduledTimeMillis;
+            if (waitMillis > sMetrics.maxWaitMillis) {
+                sMetrics.maxWaitMillis = waitMillis;
+            }
+            if (AsyncQueryService.localLOGV) {
+                Log.d(TAG, "claimOperation: " + sMetrics);
+            }
         }
+        return true;
+    }
 
+    /**
+     * Runs the operation against its resolver and sends the result back to the
+     * handler of the {@link AsyncQueryService} that queued it. Called on a
+     * worker thread.
+     */
+    private static void executeOperation(OperationInfo args) {
         if (AsyncQueryService.localLOGV) {
-            Log.d(TAG, "onHandleIntent: " + args);
+            Log.d(TAG, "executeOperation: " + args);
         }
 
         ContentResolver resolver = args.resolver;
@@ -337,29 +489,299 @@ public class AsyncQueryServiceHelper extends IntentService {
                     break;
             }
 
-            /*
-             * passing the original token value back to the caller on top of the
-             * event values in arg1.
-             */
-            Message reply = args.handler.obtainMessage(args.token);
-            reply.obj = args;
-            reply.arg1 = args.op;
+            sendReply(args);
+        }
+    }
 
-            if (AsyncQueryService.localLOGV) {
-                Log.d(TAG, "onHandleIntent: op=" + Operation.opToChar(args.op) + ", token="
-                        + reply.what);
+    /**
+     * Runs a group of coalesced updates in the order they were queued. Runs of
+     * consecutive updates with the same uri and selection are merged into one,
+     * later values winning; an update on anything else in between starts a new
+     * one, so no values are applied ahead of an update queued before them. A
+     * single merged update is applied directly, several as one batch. Called on
+     * a worker thread.
+     */
+    private static void executeCoalescedUpdates(ArrayList<OperationInfo> group) {
+        OperationInfo first = group.get(0);
+        ArrayList<MergedUpdate> merged = new ArrayList<MergedUpdate>(group.size());
+        int[] mergedInto = new int[group.size()];
+        for (int i = 0; i < group.size(); i++) {
+            OperationInfo info = group.get(i);
+            MergedUpdate last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && last.uri.equals(info.uri)
+                    && TextUtils.equals(last.selection, info.selection)
+                    && Arrays.equals(last.selectionArgs, info.selectionArgs)) {
+                if (info.values != null) {
+                    last.values.putAll(info.values);
+                }
+            } else {
+                merged.add(new MergedUpdate(info));
+            }
+            mergedInto[i] = merged.size() - 1;
+        }
+
+        if (AsyncQueryService.localLOGV) {
+            Log.d(TAG, "executeCoalescedUpdates: " + group.size() + " updates -> "
+                    + merged.size());
+        }
+
+        int[] counts = new int[merged.size()];
+        if (merged.size() == 1) {
+            counts[0] = merged.get(0).update(first.resolver);
+        } else {
+            ArrayList<ContentProviderOperation> ops =
+                    new ArrayList<ContentProviderOperation>(merged.size());
+            for (MergedUpdate update : merged) {
+                ops.add(ContentProviderOperation.newUpdate(update.uri)
+                        .withValues(update.values)
+                        .withSelection(update.selection, update.selectionArgs)
+                        .build());
+            }
+            ContentProviderResult[] results = null;
+            try {
+                results = first.resolver.applyBatch(first.uri.getAuthority(), ops);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Batched update failed, applying one by one. " + e);
+            } catch (OperationApplicationException e) {
+                Log.w(TAG, "Batched update failed, applying one by one. " + e);
             }
+            for (int j = 0; j < counts.length; j++) {
+                if (results != null && j < results.length) {
+                    counts[j] = results[j].count != null ? results[j].count : 0;
+                } else {
+                    counts[j] = merged.get(j).update(first.resolver);
+                }
+            }
+        }
+
+        for (int i = 0; i < group.size(); i++) {
+            OperationInfo info = group.get(i);
+            info.result = counts[mergedInto[i]];
+            sendReply(info);
+        }
+    }
+
+    /**
+     * Sends the result back to the handler of the {@link AsyncQueryService}
+     * that queued the operation.
+     */
+    private static void sendReply(OperationInfo args) {
+        /*
+         * passing the original token value back to the caller on top of the
+         * event values in arg1.
+         */
+        Message reply = args.handler.obtainMessage(args.token);
+        reply.obj = args;
+        reply.arg1 = args.op;
+
+        if (AsyncQueryService.localLOGV) {
+            Log.d(TAG, "sendReply: op=" + Operation.opToChar(args.op) + ", token="
+                    + reply.what);
+        }
+
+        reply.sendToTarget();
+    }
+
+    private static class MergedUpdate {
+        final Uri uri;
+        final ContentValues values;
+        final String selection;
+        final String[] selectionArgs;
+
+        MergedUpdate(OperationInfo info) {
+            uri = info.uri;
+            values = info.values != null ? new ContentValues(info.values) : new ContentValues();
+            selection = info.selection;
+            selectionArgs = info.selectionArgs;
+        }
+
+        int update(ContentResolver resolver) {
+            return resolver.update(uri, values, selection, selectionArgs);
+        }
+    }
 
-            reply.sendToTarget();
+    private static synchronized ThreadPoolExecutor getExecutor(Context context) {
+        if (sExecutor == null) {
+            int workers = Math.max(1,
+                    context.getResources().getInteger(R.integer.async_query_worker_count));
+            sExecutor = new ThreadPoolExecutor(workers, workers, WORKER_KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "AsyncQueryWorker #" + mCount.getAndIncrement());
+                        }
+                    });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    private static AuthorityLane getLane(Context context, OperationInfo args) {
+        String authority = args.op == Operation.EVENT_ARG_BATCH ? args.authority
+                : args.uri != null ? args.uri.getAuthority() : null;
+        if (authority == null) {
+            authority = "";
+        }
+        synchronized (sLanes) {
+            AuthorityLane lane = sLanes.get(authority);
+            if (lane == null) {
+                lane = new AuthorityLane(getExecutor(context));
+                sLanes.put(authority, lane);
+            }
+            return lane;
+        }
+    }
+
+    /**
+     * Orders the operations on one authority. Consecutive queries run in
+     * parallel; any other operation runs alone, after everything queued before
+     * it has finished. Coalescing updates that pile up behind a running
+     * operation join the coalescing update waiting at the tail, and all of them
+     * run as one write when its turn comes.
+     */
+    private static class AuthorityLane {
+        private final ThreadPoolExecutor mExecutor;
+        private final ArrayDeque<OperationTask> mPending = new ArrayDeque<OperationTask>();
+        private int mRunningReads;
+        private boolean mWriteRunning;
+
+        AuthorityLane(ThreadPoolExecutor executor) {
+            mExecutor = executor;
+        }
+
+        synchronized void enqueue(OperationTask task) {
+            OperationTask tail = mPending.peekLast();
+            if (tail != null && tail.canJoin(task.mInfo)) {
+                tail.join(task.mInfo);
+                return;
+            }
+            mPending.add(task);
+            scheduleLocked();
+        }
+
+        synchronized void onFinished(OperationTask task) {
+            if (task.isWrite()) {
+                mWriteRunning = false;
+            } else {
+                mRunningReads--;
+            }
+            scheduleLocked();
+        }
+
+        private void scheduleLocked() {
+            while (!mWriteRunning && !mPending.isEmpty()) {
+                OperationTask next = mPending.peek();
+                if (next.isWrite()) {
+                    if (mRunningReads > 0) {
+                        return;
+                    }
+                    mWriteRunning = true;
+                } else {
+                    mRunningReads++;
+                }
+                mPending.poll();
+                mExecutor.execute(next);
+            }
+        }
+    }
+
+    private class OperationTask implements Runnable {
+        private final OperationInfo mInfo;
+        private final AuthorityLane mLane;
+        // Coalesced updates run together, starting with mInfo, or null. Only
+        // grows while the task waits in its lane, under the lane's lock.
+        private ArrayList<OperationInfo> mGroup;
+
+        OperationTask(OperationInfo info, AuthorityLane lane) {
+            mInfo = info;
+            mLane = lane;
+        }
+
+        boolean isWrite() {
+            return mInfo.op != Operation.EVENT_ARG_QUERY;
+        }
+
+        boolean canJoin(OperationInfo info) {
+            return isCoalescible(mInfo) && isCoalescible(info) && info.resolver == mInfo.resolver;
+        }
+
+        void join(OperationInfo info) {
+            if (mGroup == null) {
+                mGroup = new ArrayList<OperationInfo>();
+                mGroup.add(mInfo);
+            }
+            mGroup.add(info);
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (mGroup != null) {
+                    executeCoalescedUpdates(mGroup);
+                } else {
+                    executeOperation(mInfo);
+                }
+            } finally {
+                mLane.onFinished(this);
+                onOperationsFinished(mGroup != null ? mGroup.size() : 1);
+            }
+        }
+    }
+
+    // Runs once on the dispatcher thread for every start request
+    private final Runnable mDispatchNext = new Runnable() {
+        @Override
+        public void run() {
+            OperationInfo args = takeNextOperation();
+            synchronized (AsyncQueryServiceHelper.this) {
+                mPendingDispatches--;
+                if (args != null) {
+                    mRunningOperations++;
+                }
+            }
+            if (args != null) {
+                AuthorityLane lane = getLane(AsyncQueryServiceHelper.this, args);
+                lane.enqueue(new OperationTask(args, lane));
+            } else {
+                stopIfIdle();
+            }
+        }
+    };
+
+    private void onOperationsFinished(int count) {
+        synchronized (this) {
+            mRunningOperations -= count;
+        }
+        stopIfIdle();
+    }
+
+    private synchronized void stopIfIdle() {
+        if (mPendingDispatches == 0 && mRunningOperations == 0) {
+            if (AsyncQueryService.localLOGV) {
+                Log.d(TAG, "stopIfIdle: stopping, startId=" + mLastStartId);
+            }
+            stopSelf(mLastStartId);
         }
     }
 
     @Override
-    public void onStart(Intent intent, int startId) {
+    public int onStartCommand(Intent intent, int flags, int startId) {
         if (AsyncQueryService.localLOGV) {
-            Log.d(TAG, "onStart startId=" + startId);
+            Log.d(TAG, "onStartCommand startId=" + startId);
         }
-        super.onStart(intent, startId);
+        synchronized (this) {
+            mLastStartId = startId;
+            mPendingDispatches++;
+        }
+        mDispatchHandler.post(mDispatchNext);
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     @Override
@@ -368,6 +790,9 @@ public class AsyncQueryServiceHelper extends IntentService {
             Log.d(TAG, "onCreate");
         }
         super.onCreate();
+        HandlerThread thread = new HandlerThread("AsyncQueryDispatcher");
+        thread.start();
+        mDispatchHandler = new Handler(thread.getLooper());
     }
 
     @Override
@@ -375,6 +800,7 @@ public class AsyncQueryServiceHelper extends IntentService {
         if (AsyncQueryService.localLOGV) {
             Log.d(TAG, "onDestroy");
         }
+        mDispatchHandler.getLooper().quit();
         super.onDestroy();
     }
 }
@@ -190,6 +190,10 @@ public class CalendarController {
          * <p>
          * For EventType.UPDATE_TITLE:
          * Set formatting flags for Utils.formatDateRange
+         * <p>
+         * For EventType.SEARCH:
+         * The {@link android.os.SystemClock#uptimeMillis()} of the keystroke that
+         * started the search, or 0 if unknown. Used for latency logging only.
          */
         public long extraLong;
 
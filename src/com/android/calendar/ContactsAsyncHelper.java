@@ -16,26 +16,42 @@
 
 package com.android.calendar;
 
-import org.sufficientlysecure.standalonecalendar.R;
-
 import com.android.calendar.event.EditEventHelper.AttendeeItem;
 
 import android.content.Context;
-import android.graphics.drawable.Drawable;
+import android.database.ContentObserver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.provider.ContactsContract.Contacts;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.View;
 import android.widget.ImageView;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Helper class for async access of images.
+ *
+ * Decoded photos are kept in a process-wide cache bounded by size, so opening an event
+ * again doesn't decode its attendees' photos again. The cache is cleared whenever the
+ * contacts change, since a contact uri keeps its uri when its photo is replaced. Requests
+ * for a photo that is still being decoded wait for that decode instead of starting
+ * another. Photos are decoded on a small pool of background threads, downsampled to the
+ * size of the attendee badge.
  */
 public class ContactsAsyncHelper extends Handler {
 
@@ -62,8 +78,45 @@ public class ContactsAsyncHelper extends Handler {
     private static final int EVENT_LOAD_DRAWABLE = 2;
     private static final int DEFAULT_TOKEN = -1;
 
+    // The size of the badge in contact_item. Photos are never shown any larger.
+    private static final int BADGE_SIZE_DIP = 48;
+    private static final int DECODE_THREADS = 2;
+    // The photo cache gets this fraction of the heap
+    private static final int PHOTO_CACHE_FRACTION = 32;
+
+    /**
+     * Decodes the photo of a contact, downsampled for a badge of the given size.
+     */
+    interface PhotoDecoder {
+        /**
+         * @return the photo, or null if the contact has none
+         */
+        Bitmap decode(Context context, Uri uri, int size);
+    }
+
+    private static final PhotoDecoder CONTACTS_DECODER = new PhotoDecoder() {
+        @Override
+        public Bitmap decode(Context context, Uri uri, int size) {
+            return decodePhoto(context, uri, size);
+        }
+    };
+
     // static objects
-    private static Handler sThreadHandler;
+    private static ExecutorService sDecodeExecutor;
+
+    private static PhotoDecoder sDecoder = CONTACTS_DECODER;
+
+    // Bumped whenever the contacts change. Decodes started before a change are delivered
+    // but not cached. Main thread only.
+    private static int sContactsGeneration;
+
+    // Decoded photos by contact uri. Callers change the alpha and color filter of the
+    // Drawables they get, so each request gets its own Drawable around the cached Bitmap.
+    private static LruCache<Uri, Bitmap> sPhotoCache;
+
+    // Requests waiting for the photo being decoded, by contact uri. Main thread only.
+    private static final HashMap<Uri, ArrayList<WorkerArgs>> sPendingRequests =
+            new HashMap<Uri, ArrayList<WorkerArgs>>();
 
     private static final class WorkerArgs {
         public Context context;
@@ -73,62 +126,52 @@ public class ContactsAsyncHelper extends Handler {
         public Object result;
         public AttendeeItem item;
         public Runnable callback;
+        public int event;
+        public int generation;
     }
 
     /**
-     * Thread worker class that handles the task of opening the stream and loading
-     * the images.
+     * Private constructor for static class
      */
-    private class WorkerHandler extends Handler {
-        public WorkerHandler(Looper looper) {
-            super(looper);
-        }
-
-        @Override
-        public void handleMessage(Message msg) {
-            WorkerArgs args = (WorkerArgs) msg.obj;
-
-            switch (msg.arg1) {
-                case EVENT_LOAD_DRAWABLE:
-                case EVENT_LOAD_IMAGE:
-                    InputStream inputStream = null;
-                    try {
-                        inputStream = Contacts.openContactPhotoInputStream(
-                                args.context.getContentResolver(), args.uri);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "Error opening photo input stream", e);
-                    }
-
-                    if (inputStream != null) {
-                        args.result = Drawable.createFromStream(inputStream, args.uri.toString());
-
-                        if (DBG) Log.d(LOG_TAG, "Loading image: " + msg.arg1 +
-                                " token: " + msg.what + " image URI: " + args.uri);
-                    } else {
-                        args.result = null;
-                        if (DBG) Log.d(LOG_TAG, "Problem with image: " + msg.arg1 +
-                                " token: " + msg.what + " image URI: " + args.uri +
-                                ", using default image.");
-                    }
-                    break;
-                default:
+    private ContactsAsyncHelper(Context context) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        sDecodeExecutor = Executors.newFixedThreadPool(DECODE_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "ContactsAsyncWorker #" + threadCount.incrementAndGet());
             }
-
-            // send the reply to the enclosing class.
-            Message reply = ContactsAsyncHelper.this.obtainMessage(msg.what);
-            reply.arg1 = msg.arg1;
-            reply.obj = msg.obj;
-            reply.sendToTarget();
-        }
+        });
+        int cacheSize = (int) Math.min(Integer.MAX_VALUE,
+                Runtime.getRuntime().maxMemory() / PHOTO_CACHE_FRACTION);
+        sPhotoCache = new LruCache<Uri, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(Uri key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+        context.getContentResolver().registerContentObserver(Contacts.CONTENT_URI, true,
+                new ContentObserver(this) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        onContactsChanged();
+                    }
+                });
     }
 
     /**
-     * Private constructor for static class
+     * Drops the cached photos, which may have been replaced. Must be called on the main
+     * thread.
      */
-    private ContactsAsyncHelper() {
-        HandlerThread thread = new HandlerThread("ContactsAsyncWorker");
-        thread.start();
-        sThreadHandler = new WorkerHandler(thread.getLooper());
+    static void onContactsChanged() {
+        sContactsGeneration++;
+        if (sPhotoCache != null) {
+            sPhotoCache.evictAll();
+        }
+    }
+
+    // @VisibleForTesting
+    static void setPhotoDecoder(PhotoDecoder decoder) {
+        sDecoder = decoder != null ? decoder : CONTACTS_DECODER;
     }
 
     /**
@@ -158,14 +201,7 @@ public class ContactsAsyncHelper extends Handler {
         args.view = imageView;
         args.uri = contact;
         args.defaultResource = placeholderImageResource;
-
-        if (mInstance == null) {
-            mInstance = new ContactsAsyncHelper();
-        }
-        // setup message arguments
-        Message msg = sThreadHandler.obtainMessage(DEFAULT_TOKEN);
-        msg.arg1 = EVENT_LOAD_IMAGE;
-        msg.obj = args;
+        args.event = EVENT_LOAD_IMAGE;
 
         if (DBG) Log.d(LOG_TAG, "Begin loading image: " + args.uri +
                 ", displaying default image for now.");
@@ -179,8 +215,7 @@ public class ContactsAsyncHelper extends Handler {
             imageView.setVisibility(View.INVISIBLE);
         }
 
-        // notify the thread to begin working
-        sThreadHandler.sendMessage(msg);
+        startLoad(args);
     }
 
     /**
@@ -207,43 +242,138 @@ public class ContactsAsyncHelper extends Handler {
         args.item = item;
         args.uri = photoUri;
         args.callback = run;
+        args.event = EVENT_LOAD_DRAWABLE;
+
+        if (DBG) Log.d(LOG_TAG, "Begin loading drawable: " + args.uri);
 
+        startLoad(args);
+    }
+
+    /**
+     * Completes the request right away if the photo is cached, and otherwise queues it
+     * behind a decode of the photo, starting one if there is none yet. Must be called on
+     * the main thread.
+     */
+    private static void startLoad(WorkerArgs args) {
         if (mInstance == null) {
-            mInstance = new ContactsAsyncHelper();
+            mInstance = new ContactsAsyncHelper(args.context.getApplicationContext());
         }
-        // setup message arguments
-        Message msg = sThreadHandler.obtainMessage(DEFAULT_TOKEN);
-        msg.arg1 = EVENT_LOAD_DRAWABLE;
-        msg.obj = args;
 
-        if (DBG) Log.d(LOG_TAG, "Begin loading drawable: " + args.uri);
+        Bitmap cached = sPhotoCache.get(args.uri);
+        if (cached != null) {
+            if (DBG) Log.d(LOG_TAG, "Image cached: " + args.uri);
+            deliver(args, cached);
+            return;
+        }
 
+        ArrayList<WorkerArgs> waiting = sPendingRequests.get(args.uri);
+        if (waiting != null) {
+            if (DBG) Log.d(LOG_TAG, "Image already loading: " + args.uri);
+            waiting.add(args);
+            return;
+        }
+        waiting = new ArrayList<WorkerArgs>();
+        waiting.add(args);
+        sPendingRequests.put(args.uri, waiting);
+        args.generation = sContactsGeneration;
+
+        final WorkerArgs request = args;
+        final PhotoDecoder decoder = sDecoder;
+        final Context context = args.context.getApplicationContext();
+        final int size = (int) (BADGE_SIZE_DIP
+                * context.getResources().getDisplayMetrics().density + 0.5f);
+        // notify the pool to begin working
+        sDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                request.result = decoder.decode(context, request.uri, size);
+
+                // send the reply to the enclosing class.
+                Message reply = mInstance.obtainMessage(DEFAULT_TOKEN);
+                reply.arg1 = request.event;
+                reply.obj = request;
+                reply.sendToTarget();
+            }
+        });
+    }
 
-        // notify the thread to begin working
-        sThreadHandler.sendMessage(msg);
+    /**
+     * Opens the contact's photo and decodes it with the largest power of two
+     * subsampling that keeps it at least size pixels on each side.
+     *
+     * @return the photo, or null if the contact has none
+     */
+    private static Bitmap decodePhoto(Context context, Uri uri, int size) {
+        InputStream inputStream = null;
+        try {
+            inputStream = Contacts.openContactPhotoInputStream(context.getContentResolver(),
+                    uri);
+            if (inputStream == null) {
+                if (DBG) Log.d(LOG_TAG, "Problem with image: " + uri
+                        + ", using default image.");
+                return null;
+            }
+            // Read once, since the bounds have to be decoded before the photo.
+            byte[] data = readFully(inputStream);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            int sampleSize = 1;
+            while (options.outWidth / (sampleSize * 2) >= size
+                    && options.outHeight / (sampleSize * 2) >= size) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+
+            if (DBG) Log.d(LOG_TAG, "Loading image: " + uri + " " + options.outWidth + "x"
+                    + options.outHeight + ", sample size " + sampleSize);
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Error opening photo input stream", e);
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
     }
 
     /**
-     * Called when loading is done.
+     * Hands a photo, or null if there is none, to a request.
      */
-    @Override
-    public void handleMessage(Message msg) {
-        WorkerArgs args = (WorkerArgs) msg.obj;
-        switch (msg.arg1) {
+    private static void deliver(WorkerArgs args, Bitmap bitmap) {
+        switch (args.event) {
             case EVENT_LOAD_IMAGE:
                 // if the image has been loaded then display it, otherwise set default.
                 // in either case, make sure the image is visible.
-                if (args.result != null) {
+                if (bitmap != null) {
                     args.view.setVisibility(View.VISIBLE);
-                    args.view.setImageDrawable((Drawable) args.result);
+                    args.view.setImageDrawable(
+                            new BitmapDrawable(args.context.getResources(), bitmap));
                 } else if (args.defaultResource != -1) {
                     args.view.setVisibility(View.VISIBLE);
                     args.view.setImageResource(args.defaultResource);
                 }
                 break;
             case EVENT_LOAD_DRAWABLE:
-                if (args.result != null) {
-                    args.item.mBadge = (Drawable) args.result;
+                if (bitmap != null) {
+                    args.item.mBadge = new BitmapDrawable(args.context.getResources(), bitmap);
                     if (args.callback != null) {
                         args.callback.run();
                     }
@@ -252,4 +382,23 @@ public class ContactsAsyncHelper extends Handler {
             default:
         }
     }
+
+    /**
+     * Called when loading is done.
+     */
+    @Override
+    public void handleMessage(Message msg) {
+        WorkerArgs args = (WorkerArgs) msg.obj;
+        Bitmap bitmap = (Bitmap) args.result;
+        if (bitmap != null && args.generation == sContactsGeneration) {
+            sPhotoCache.put(args.uri, bitmap);
+        }
+        ArrayList<WorkerArgs> waiting = sPendingRequests.remove(args.uri);
+        if (waiting == null) {
+            return;
+        }
+        for (WorkerArgs request : waiting) {
+            deliver(request, bitmap);
+        }
+    }
 }
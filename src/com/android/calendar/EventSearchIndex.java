@@ -0,0 +1,645 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.provider.CalendarContract.Attendees;
+import android.provider.CalendarContract.Events;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * App-private full-text index of the searchable fields of every event (title,
+ * location, description, attendee names and emails, and the organizer), keyed
+ * by event id.
+ *
+ * The provider's search URI re-expands instances and runs LIKE matching over
+ * every event for each window the agenda asks for. With this index the agenda
+ * resolves the matching event ids locally and only asks the provider for the
+ * instances of those ids.
+ *
+ * The provider search matches each word of the query anywhere inside a field,
+ * so "eting" finds "meeting". To answer that from an inverted index, every
+ * suffix of every word is indexed as a term in an FTS table, and each word of
+ * the query becomes a prefix query on those terms. That narrows the search to
+ * the events containing all the words; the same LIKE terms as the provider's
+ * are then checked on just those rows, so both find the same events.
+ *
+ * The provider doesn't say which events changed, so bringing the index up to
+ * date means scanning events and attendees (without instance expansion) and
+ * rewriting only the rows whose fingerprint changed. Changes are only watched
+ * while a search screen holds the index, see {@link #acquire}, and the scan
+ * only runs once a search finds the index stale. Until then
+ * {@link #queryEventIds} returns null and callers fall back to the provider
+ * search.
+ */
+public class EventSearchIndex {
+    private static final String TAG = "EventSearchIndex";
+    private static final boolean DEBUG = false;
+
+    private static final String DATABASE_NAME = "search_index.db";
+    private static final int DATABASE_VERSION = 3;
+
+    private static final String TABLE_EVENTS = "events";
+    private static final String TABLE_TERMS = "terms";
+
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_HASH = "hash";
+    private static final String COLUMN_TITLE = "title";
+    private static final String COLUMN_LOCATION = "location";
+    private static final String COLUMN_DESCRIPTION = "description";
+    private static final String COLUMN_ATTENDEES = "attendees";
+    private static final String COLUMN_DOCID = "docid";
+    private static final String COLUMN_TERMS = "terms";
+
+    private static final String[] SEARCH_COLUMNS = new String[] {
+            COLUMN_TITLE,
+            COLUMN_LOCATION,
+            COLUMN_DESCRIPTION,
+            COLUMN_ATTENDEES,
+    };
+
+    // Same tokenizing and escaping as the provider's search: words are separated
+    // by whitespace and punctuation, and double quotes keep a phrase together.
+    private static final Pattern SEARCH_TOKEN_PATTERN =
+            Pattern.compile("[^\\s\"'.?!,]+|\"([^\"]*)\"");
+    private static final Pattern SEARCH_ESCAPE_PATTERN = Pattern.compile("([%_#])");
+    private static final String SEARCH_ESCAPE_CHAR = "#";
+
+    /**
+     * Indexed suffixes are cut to this length. A longer query word is looked up
+     * by its first MAX_TERM_LENGTH characters and then checked in full.
+     */
+    static final int MAX_TERM_LENGTH = 32;
+
+    /**
+     * Beyond this many matching events the id list is not worth sending to the
+     * provider and the caller should use the provider search instead.
+     */
+    public static final int MAX_RESULTS = 500;
+
+    private static final int MSG_SYNC = 1;
+
+    private static final String[] EVENTS_PROJECTION = new String[] {
+            Events._ID,
+            Events.TITLE,
+            Events.EVENT_LOCATION,
+            Events.DESCRIPTION,
+            Events.ORGANIZER,
+    };
+    private static final int EVENTS_INDEX_ID = 0;
+    private static final int EVENTS_INDEX_TITLE = 1;
+    private static final int EVENTS_INDEX_LOCATION = 2;
+    private static final int EVENTS_INDEX_DESCRIPTION = 3;
+    private static final int EVENTS_INDEX_ORGANIZER = 4;
+
+    private static final String EVENTS_WHERE = Events.DELETED + "=0";
+
+    private static final String[] ATTENDEES_PROJECTION = new String[] {
+            Attendees.EVENT_ID,
+            Attendees.ATTENDEE_NAME,
+            Attendees.ATTENDEE_EMAIL,
+    };
+    private static final int ATTENDEES_INDEX_EVENT_ID = 0;
+    private static final int ATTENDEES_INDEX_NAME = 1;
+    private static final int ATTENDEES_INDEX_EMAIL = 2;
+
+    /**
+     * Receives the result of {@link #queryEventIdsAsync}.
+     */
+    public interface QueryCallback {
+        /**
+         * @param eventIds the matching event ids, or null if the index could
+         *            not answer the query
+         */
+        public void onEventIdsResolved(String query, long[] eventIds);
+    }
+
+    private static EventSearchIndex sInstance;
+
+    private final Context mContext;
+    private final IndexOpenHelper mOpenHelper;
+    private final Handler mHandler;
+
+    /**
+     * Bumped for every provider change, straight from the observer's binder
+     * thread so that a change arriving while a scan is running is never missed.
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    /** The generation the last completed scan started at, -1 before the first one. */
+    private volatile int mSyncedGeneration = -1;
+
+    // No handler, so that onChange runs on the binder thread and is not queued
+    // behind a scan.
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    // Main thread only
+    private int mRefCount;
+
+    public static synchronized EventSearchIndex getInstance(Context context) {
+        if (sInstance == null) {
+            HandlerThread thread = new HandlerThread("EventSearchIndex",
+                    android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sInstance = new EventSearchIndex(context.getApplicationContext(), DATABASE_NAME,
+                    thread.getLooper());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param databaseName the index database, or null for an in-memory one
+     * @param looper the looper the index is scanned and queried on
+     */
+    EventSearchIndex(Context context, String databaseName, Looper looper) {
+        mContext = context;
+        mOpenHelper = new IndexOpenHelper(context, databaseName);
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_SYNC && !isUpToDate()) {
+                    sync();
+                }
+            }
+        };
+    }
+
+    /**
+     * Takes a reference for a search screen, watching the provider for changes
+     * while there is one. Must be called on the main thread.
+     */
+    public void acquire() {
+        if (mRefCount++ == 0) {
+            // Changes made while nobody was watching may have been missed.
+            invalidate();
+            mContext.getContentResolver().registerContentObserver(Events.CONTENT_URI, true,
+                    mObserver);
+        }
+    }
+
+    /**
+     * Drops a reference taken with {@link #acquire}, no longer watching the
+     * provider after the last one. Must be called on the main thread.
+     */
+    public void release() {
+        if (mRefCount > 0 && --mRefCount == 0) {
+            mContext.getContentResolver().unregisterContentObserver(mObserver);
+        }
+    }
+
+    /**
+     * Marks the index as stale. It is scanned again when the next search needs
+     * it. May be called on any thread.
+     */
+    public void invalidate() {
+        mGeneration.incrementAndGet();
+    }
+
+    public boolean isUpToDate() {
+        return mSyncedGeneration == mGeneration.get();
+    }
+
+    /**
+     * Schedules a scan on the index thread unless one is already waiting.
+     */
+    private void requestSync() {
+        if (!mHandler.hasMessages(MSG_SYNC)) {
+            mHandler.sendEmptyMessage(MSG_SYNC);
+        }
+    }
+
+    /**
+     * Returns the ids of all events whose indexed fields contain each word of
+     * the query, or null if the index cannot answer the query (not yet built,
+     * stale, or too many matches). A stale index is scanned again in the
+     * background. Must not be called on the UI thread.
+     */
+    public long[] queryEventIds(String query) {
+        if (!isUpToDate()) {
+            requestSync();
+            return null;
+        }
+        String match = buildMatchExpression(query);
+        if (match == null) {
+            return null;
+        }
+        ArrayList<String> selectionArgs = new ArrayList<String>();
+        selectionArgs.add(match);
+        String selection = COLUMN_ID + " IN (SELECT " + COLUMN_DOCID + " FROM " + TABLE_TERMS
+                + " WHERE " + TABLE_TERMS + " MATCH ?) AND "
+                + buildSearchSelection(query, selectionArgs);
+
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            cursor = db.query(TABLE_EVENTS, new String[] { COLUMN_ID }, selection,
+                    selectionArgs.toArray(new String[selectionArgs.size()]), null, null, null,
+                    Integer.toString(MAX_RESULTS + 1));
+            int count = cursor.getCount();
+            if (count > MAX_RESULTS) {
+                return null;
+            }
+            long[] ids = new long[count];
+            int i = 0;
+            while (cursor.moveToNext()) {
+                ids[i++] = cursor.getLong(0);
+            }
+            if (DEBUG) {
+                Log.d(TAG, "'" + match + "' matched " + count + " events");
+            }
+            return ids;
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Index query failed for " + match, e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Resolves the query on the index thread and delivers the result to
+     * {@code callback} on {@code replyHandler}. If the index is stale the
+     * callback is invoked right away with a null result, and the index is
+     * scanned again in the background.
+     */
+    public void queryEventIdsAsync(final String query, final Handler replyHandler,
+            final QueryCallback callback) {
+        if (!isUpToDate()) {
+            requestSync();
+            callback.onEventIdsResolved(query, null);
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final long[] eventIds = queryEventIds(query);
+                replyHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onEventIdsResolved(query, eventIds);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Splits the user's query into words the way the provider search does. A
+     * phrase in double quotes is a single word.
+     */
+    static List<String> tokenizeQuery(String query) {
+        ArrayList<String> tokens = new ArrayList<String>();
+        Matcher matcher = SEARCH_TOKEN_PATTERN.matcher(query);
+        while (matcher.find()) {
+            if (matcher.group(1) != null) {
+                tokens.add(matcher.group(1));
+            } else {
+                tokens.add(matcher.group());
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Builds a selection requiring every word of the query to occur somewhere in
+     * one of the indexed fields, e.g. "team meet" matches an event titled
+     * "Steam meeting", and adds its arguments to {@code selectionArgs}.
+     *
+     * @return the selection, or null if the query has no words
+     */
+    static String buildSearchSelection(String query, List<String> selectionArgs) {
+        if (query == null) {
+            return null;
+        }
+        List<String> tokens = tokenizeQuery(query);
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String token : tokens) {
+            if (sb.length() > 0) {
+                sb.append(" AND ");
+            }
+            String arg = "%" + SEARCH_ESCAPE_PATTERN.matcher(token).replaceAll(
+                    SEARCH_ESCAPE_CHAR + "$1") + "%";
+            sb.append('(');
+            for (int i = 0; i < SEARCH_COLUMNS.length; i++) {
+                if (i > 0) {
+                    sb.append(" OR ");
+                }
+                sb.append(SEARCH_COLUMNS[i]).append(" LIKE ? ESCAPE '")
+                        .append(SEARCH_ESCAPE_CHAR).append('\'');
+                selectionArgs.add(arg);
+            }
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Builds the MATCH expression for the terms table. Each run of letters and
+     * digits in the query has to be the start of an indexed suffix, which any
+     * event containing the query somewhere must have. This may match more
+     * events than the query does, so the result is checked with
+     * {@link #buildSearchSelection}.
+     *
+     * @return the expression, or null if the query has no letters or digits to
+     *         look up
+     */
+    static String buildMatchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+        LinkedHashSet<String> words = new LinkedHashSet<String>();
+        for (String token : tokenizeQuery(query)) {
+            addWords(words, token, false);
+        }
+        if (words.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String word : words) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(word).append('*');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the terms indexed for the given fields: every suffix of every
+     * word, cut to {@link #MAX_TERM_LENGTH}, separated by spaces.
+     */
+    static String buildTerms(String... fields) {
+        LinkedHashSet<String> terms = new LinkedHashSet<String>();
+        for (String field : fields) {
+            if (field != null) {
+                addWords(terms, field, true);
+            }
+        }
+        return TextUtils.join(" ", terms);
+    }
+
+    /**
+     * Adds the words of text to out, split and lower-cased the way SQLite's
+     * simple tokenizer does: a word is a run of ASCII letters and digits or
+     * non-ASCII characters, and only ASCII is folded, like LIKE does.
+     *
+     * @param suffixes whether to add every suffix of each word instead of the
+     *            word itself
+     */
+    private static void addWords(LinkedHashSet<String> out, String text, boolean suffixes) {
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !isWordChar(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && isWordChar(text.charAt(i))) {
+                i++;
+            }
+            if (start == i) {
+                continue;
+            }
+            int last = suffixes ? i - 1 : start;
+            for (int s = start; s <= last; s++) {
+                out.add(toLowerAscii(text.substring(s, Math.min(i, s + MAX_TERM_LENGTH))));
+            }
+        }
+    }
+
+    private static boolean isWordChar(char c) {
+        return c >= 0x80 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')
+                || (c >= 'A' && c <= 'Z');
+    }
+
+    private static String toLowerAscii(String s) {
+        char[] chars = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                if (chars == null) {
+                    chars = s.toCharArray();
+                }
+                chars[i] = (char) (c + ('a' - 'A'));
+            }
+        }
+        return chars == null ? s : new String(chars);
+    }
+
+    /**
+     * Rescans events and attendees and rewrites the index rows whose
+     * fingerprint changed. Runs on the index thread.
+     */
+    void sync() {
+        long startTime = System.currentTimeMillis();
+        // Any change after this point bumps the generation again and leaves the
+        // index stale until the next scan.
+        int generation = mGeneration.get();
+        ContentResolver cr = mContext.getContentResolver();
+        Cursor events = null;
+        Cursor attendees = null;
+        SQLiteDatabase db;
+        try {
+            db = mOpenHelper.getWritableDatabase();
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Unable to open search index", e);
+            return;
+        }
+
+        int updated = 0;
+        int removed = 0;
+        boolean synced = false;
+        db.beginTransaction();
+        try {
+            HashMap<Long, Long> known = loadFingerprints(db);
+
+            events = cr.query(Events.CONTENT_URI, EVENTS_PROJECTION, EVENTS_WHERE, null,
+                    Events._ID + " ASC");
+            attendees = cr.query(Attendees.CONTENT_URI, ATTENDEES_PROJECTION, null, null,
+                    Attendees.EVENT_ID + " ASC");
+            if (events == null) {
+                return;
+            }
+
+            ContentValues values = new ContentValues();
+            ContentValues termValues = new ContentValues();
+            StringBuilder people = new StringBuilder();
+            boolean attendeesLeft = attendees != null && attendees.moveToFirst();
+            while (events.moveToNext()) {
+                long eventId = events.getLong(EVENTS_INDEX_ID);
+
+                // Both cursors are sorted by event id, so the attendees of this
+                // event are the next contiguous run in the attendees cursor.
+                people.setLength(0);
+                appendLine(people, events.getString(EVENTS_INDEX_ORGANIZER));
+                while (attendeesLeft
+                        && attendees.getLong(ATTENDEES_INDEX_EVENT_ID) <= eventId) {
+                    if (attendees.getLong(ATTENDEES_INDEX_EVENT_ID) == eventId) {
+                        appendLine(people, attendees.getString(ATTENDEES_INDEX_NAME));
+                        appendLine(people, attendees.getString(ATTENDEES_INDEX_EMAIL));
+                    }
+                    attendeesLeft = attendees.moveToNext();
+                }
+
+                String title = events.getString(EVENTS_INDEX_TITLE);
+                String location = events.getString(EVENTS_INDEX_LOCATION);
+                String description = events.getString(EVENTS_INDEX_DESCRIPTION);
+                String attendeeText = people.toString();
+
+                long hash = Utils.fingerprint(title, location, description, attendeeText);
+                Long oldHash = known.remove(eventId);
+                if (oldHash != null && oldHash == hash) {
+                    continue;
+                }
+
+                values.clear();
+                values.put(COLUMN_ID, eventId);
+                values.put(COLUMN_HASH, hash);
+                values.put(COLUMN_TITLE, title);
+                values.put(COLUMN_LOCATION, location);
+                values.put(COLUMN_DESCRIPTION, description);
+                values.put(COLUMN_ATTENDEES, attendeeText);
+                db.replace(TABLE_EVENTS, null, values);
+
+                String[] whereArgs = new String[] { Long.toString(eventId) };
+                if (oldHash != null) {
+                    db.delete(TABLE_TERMS, COLUMN_DOCID + "=?", whereArgs);
+                }
+                termValues.clear();
+                termValues.put(COLUMN_DOCID, eventId);
+                termValues.put(COLUMN_TERMS,
+                        buildTerms(title, location, description, attendeeText));
+                db.insert(TABLE_TERMS, null, termValues);
+                updated++;
+            }
+
+            // Whatever is left was deleted from the provider since the last scan
+            Iterator<Long> it = known.keySet().iterator();
+            while (it.hasNext()) {
+                String[] whereArgs = new String[] { Long.toString(it.next()) };
+                db.delete(TABLE_EVENTS, COLUMN_ID + "=?", whereArgs);
+                db.delete(TABLE_TERMS, COLUMN_DOCID + "=?", whereArgs);
+                removed++;
+            }
+            db.setTransactionSuccessful();
+            synced = true;
+        } catch (RuntimeException e) {
+            // Provider or disk trouble; searches keep falling back to the provider.
+            Log.e(TAG, "Search index sync failed", e);
+        } finally {
+            db.endTransaction();
+            if (events != null) {
+                events.close();
+            }
+            if (attendees != null) {
+                attendees.close();
+            }
+        }
+
+        if (synced) {
+            mSyncedGeneration = generation;
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "Sync updated " + updated + " and removed " + removed + " events in "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+        }
+    }
+
+    private static void appendLine(StringBuilder sb, String line) {
+        if (!TextUtils.isEmpty(line)) {
+            sb.append(line).append('\n');
+        }
+    }
+
+    private static HashMap<Long, Long> loadFingerprints(SQLiteDatabase db) {
+        HashMap<Long, Long> known = new HashMap<Long, Long>();
+        Cursor cursor = db.query(TABLE_EVENTS, new String[] { COLUMN_ID, COLUMN_HASH },
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                known.put(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return known;
+    }
+
+    private static class IndexOpenHelper extends SQLiteOpenHelper {
+        public IndexOpenHelper(Context context, String databaseName) {
+            super(context, databaseName, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_EVENTS + " ("
+                    + COLUMN_ID + " INTEGER PRIMARY KEY, "
+                    + COLUMN_HASH + " INTEGER NOT NULL, "
+                    + COLUMN_TITLE + " TEXT, "
+                    + COLUMN_LOCATION + " TEXT, "
+                    + COLUMN_DESCRIPTION + " TEXT, "
+                    + COLUMN_ATTENDEES + " TEXT)");
+            // Prefix indexes need SQLite 3.7.6, which ships with Jellybean. Before
+            // that prefix queries still work, they just walk the matching terms.
+            db.execSQL("CREATE VIRTUAL TABLE " + TABLE_TERMS + " USING fts4("
+                    + COLUMN_TERMS
+                    + (Utils.isJellybeanOrLater() ? ", prefix=\"1,2,3\"" : "") + ")");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // The index is derived data; just rebuild it.
+            db.execSQL("DROP TABLE IF EXISTS events_fts");
+            db.execSQL("DROP TABLE IF EXISTS fingerprints");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_TERMS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_EVENTS);
+            onCreate(db);
+        }
+    }
+}
@@ -34,6 +34,7 @@ import android.graphics.drawable.LayerDrawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.CalendarContract.Events;
 import android.provider.SearchRecentSuggestions;
 import android.text.format.Time;
@@ -62,6 +63,12 @@ public class SearchActivity extends Activity implements CalendarController.Event
     protected static final String BUNDLE_KEY_RESTORE_SEARCH_QUERY =
         "key_restore_search_query";
 
+    // Quiet time after the last keystroke before live results are requested
+    private static final long SEARCH_AS_YOU_TYPE_DELAY = 300;
+
+    // Shorter queries match too much to be worth searching for while typing
+    private static final int SEARCH_AS_YOU_TYPE_MIN_LENGTH = 2;
+
     // display event details to the side of the event list
    private boolean mShowEventDetailsWithAgenda;
    private static boolean mIsMultipane;
@@ -74,6 +81,10 @@ public class SearchActivity extends Activity implements CalendarController.Event
 
     private String mQuery;
 
+    // The query typed so far and the uptime of its last keystroke
+    private String mPendingQuery;
+    private long mPendingQueryTime;
+
     private SearchView mSearchView;
 
     private DeleteEventHelper mDeleteEventHelper;
@@ -104,6 +115,16 @@ public class SearchActivity extends Activity implements CalendarController.Event
         }
     };
 
+    // sends the typed query once the user pauses typing
+    private final Runnable mSearchAsYouType = new Runnable() {
+        @Override
+        public void run() {
+            mQuery = mPendingQuery;
+            mController.sendEvent(SearchActivity.this, EventType.SEARCH, null, null, -1,
+                    ViewType.CURRENT, mPendingQueryTime, mQuery, getComponentName());
+        }
+    };
+
     @Override
     protected void onCreate(Bundle icicle) {
         super.onCreate(icicle);
@@ -121,6 +142,11 @@ public class SearchActivity extends Activity implements CalendarController.Event
 
         mContentResolver = getContentResolver();
 
+        // Keep the local search index watching for changes while searching. It
+        // is brought up to date by the first search, which falls back to the
+        // provider until then.
+        EventSearchIndex.getInstance(this).acquire();
+
         if (mIsMultipane) {
             getActionBar().setDisplayOptions(
                     ActionBar.DISPLAY_HOME_AS_UP, ActionBar.DISPLAY_HOME_AS_UP);
@@ -168,6 +194,7 @@ public class SearchActivity extends Activity implements CalendarController.Event
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        EventSearchIndex.getInstance(this).release();
         mController.deregisterAllEventHandlers();
         CalendarController.removeInstance(this);
     }
@@ -339,6 +366,7 @@ public class SearchActivity extends Activity implements CalendarController.Event
     @Override
     protected void onPause() {
         super.onPause();
+        mHandler.removeCallbacks(mSearchAsYouType);
         Utils.resetMidnightUpdater(mHandler, mTimeChangesUpdater);
         Utils.clearTimeChangesReceiver(this, mTimeChangesReceiver);
         mContentResolver.unregisterContentObserver(mObserver);
@@ -366,14 +394,24 @@ public class SearchActivity extends Activity implements CalendarController.Event
 
     @Override
     public boolean onQueryTextChange(String newText) {
-        return false;
+        mHandler.removeCallbacks(mSearchAsYouType);
+        if (newText == null || newText.trim().length() < SEARCH_AS_YOU_TYPE_MIN_LENGTH
+                || newText.equals(mQuery)) {
+            return false;
+        }
+        mPendingQuery = newText;
+        mPendingQueryTime = SystemClock.uptimeMillis();
+        mHandler.postDelayed(mSearchAsYouType, SEARCH_AS_YOU_TYPE_DELAY);
+        return true;
     }
 
     @Override
     public boolean onQueryTextSubmit(String query) {
+        mHandler.removeCallbacks(mSearchAsYouType);
+        // Sent even if live results for this query are showing, so submitting refreshes them
         mQuery = query;
-        mController.sendEvent(this, EventType.SEARCH, null, null, -1, ViewType.CURRENT, 0, query,
-                getComponentName());
+        mController.sendEvent(this, EventType.SEARCH, null, null, -1, ViewType.CURRENT,
+                SystemClock.uptimeMillis(), query, getComponentName());
         return false;
     }
 
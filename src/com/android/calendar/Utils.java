@@ -575,6 +575,28 @@ public class Utils {
         return builder.toString();
     }
 
+    /**
+     * Returns a 64-bit FNV-1a hash over the given fields, to tell cheaply whether
+     * something derived from them has to be redone. Null and empty fields hash
+     * differently so that clearing a field is picked up.
+     */
+    public static long fingerprint(String... fields) {
+        long hash = 0xcbf29ce484222325L;
+        for (String field : fields) {
+            if (field == null) {
+                hash = (hash ^ 0xff) * 0x100000001b3L;
+                continue;
+            }
+            int length = field.length();
+            for (int i = 0; i < length; i++) {
+                hash = (hash ^ field.charAt(i)) * 0x100000001b3L;
+            }
+            // Field separator
+            hash = (hash ^ 0xfe) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
     /**
      * Returns the week since {@link Time#EPOCH_JULIAN_DAY} (Jan 1, 1970)
      * adjusted for first day of week.
@@ -295,6 +295,15 @@ public class AgendaByDayAdapter extends BaseAdapter {
         mAgendaAdapter.changeCursor(info.cursor);
     }
 
+    /**
+     * Like {@link #changeCursor} but leaves the previous cursor open, for when
+     * the new cursor wraps the old one.
+     */
+    public void swapCursor(DayAdapterInfo info) {
+        calculateDays(info);
+        mAgendaAdapter.swapCursor(info.cursor);
+    }
+
     public void calculateDays(DayAdapterInfo dayAdapterInfo) {
         Cursor cursor = dayAdapterInfo.cursor;
         ArrayList<RowInfo> rowInfo = new ArrayList<RowInfo>();
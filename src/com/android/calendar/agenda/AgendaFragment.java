@@ -335,7 +335,7 @@ public class AgendaFragment extends Fragment implements CalendarController.Event
         mForceReplace = false;
     }
 
-    private void search(String query, Time time) {
+    private void search(String query, Time time, long searchStartTime) {
         mQuery = query;
         if (time != null) {
             mTime.set(time);
@@ -344,6 +344,7 @@ public class AgendaFragment extends Fragment implements CalendarController.Event
             // The view hasn't been set yet. Just return.
             return;
         }
+        mAgendaListView.setSearchStartTime(searchStartTime);
         mAgendaListView.goTo(time, -1, mQuery, true, false);
     }
 
@@ -372,7 +373,7 @@ public class AgendaFragment extends Fragment implements CalendarController.Event
                     (event.selectedTime != null) ? event.selectedTime : event.startTime;
             goTo(event, true);
         } else if (event.eventType == EventType.SEARCH) {
-            search(event.query, event.startTime);
+            search(event.query, event.startTime, event.extraLong);
         } else if (event.eventType == EventType.EVENTS_CHANGED) {
             eventsChanged();
         }
@@ -224,6 +224,10 @@ public class AgendaListView extends ListView implements OnItemClickListener {
         mWindowAdapter.refresh(mTime, id, searchQuery, forced, refreshEventInfo);
     }
 
+    public void setSearchStartTime(long uptimeMillis) {
+        mWindowAdapter.setSearchStartTime(uptimeMillis);
+    }
+
     public void refresh(boolean forced) {
         mWindowAdapter.refresh(mTime, -1, null, forced, false);
     }
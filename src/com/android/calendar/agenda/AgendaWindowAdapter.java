@@ -25,6 +25,9 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
 import android.provider.CalendarContract;
 import android.provider.CalendarContract.Attendees;
 import android.provider.CalendarContract.Calendars;
@@ -44,10 +47,12 @@ import android.widget.TextView;
 import com.android.calendar.CalendarController;
 import com.android.calendar.CalendarController.EventType;
 import com.android.calendar.CalendarController.ViewType;
+import com.android.calendar.EventSearchIndex;
 import org.sufficientlysecure.standalonecalendar.R;
 import com.android.calendar.StickyHeaderListView;
 import com.android.calendar.Utils;
 
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Formatter;
 import java.util.Iterator;
@@ -222,6 +227,12 @@ public class AgendaWindowAdapter extends BaseAdapter
     /** The current search query, or null if none */
     private String mSearchQuery;
 
+    /**
+     * Uptime of the keystroke that started the current search, or 0 once its
+     * first results have been shown. Only used for latency logging.
+     */
+    private long mSearchStartTime;
+
     private long mSelectedInstanceId = -1;
 
     private final int mSelectedItemBackgroundColor;
@@ -684,8 +695,16 @@ public class AgendaWindowAdapter extends BaseAdapter
 
     public void refresh(Time goToTime, long id, String searchQuery, boolean forced,
             boolean refreshEventInfo) {
-        if (searchQuery != null) {
+        if (searchQuery != null && !searchQuery.equals(mSearchQuery)) {
+            String previousQuery = mSearchQuery;
             mSearchQuery = searchQuery;
+            if (previousQuery != null) {
+                if (forced && isRefinementOf(searchQuery, previousQuery)) {
+                    refineSearch(searchQuery, goToTime, id);
+                    return;
+                }
+                cancelSupersededQueries();
+            }
         }
 
         if (DEBUGLOG) {
@@ -736,21 +755,125 @@ public class AgendaWindowAdapter extends BaseAdapter
 
         // If AllInOneActivity is sending a second GOTO event(in OnResume), ignore it.
         if (!mCleanQueryInitiated || searchQuery != null) {
-            // Query for a total of MIN_QUERY_DURATION days
-            int endDay = startDay + MIN_QUERY_DURATION;
+            queueCleanQuery(startDay, goToTime, searchQuery, id);
+        }
+    }
+
+    private void queueCleanQuery(int startDay, Time goToTime, String searchQuery, long id) {
+        // Query for a total of MIN_QUERY_DURATION days
+        int endDay = startDay + MIN_QUERY_DURATION;
+
+        mSelectedInstanceId = -1;
+        mCleanQueryInitiated = true;
+        queueQuery(startDay, endDay, goToTime, searchQuery, QUERY_TYPE_CLEAN, id);
+
+        // Pre-fetch more data to overcome a race condition in AgendaListView.shiftSelection
+        // Queuing more data with the goToTime set to the selected time skips the call to
+        // shiftSelection on refresh.
+        mOlderRequests++;
+        queueQuery(0, 0, goToTime, searchQuery, QUERY_TYPE_OLDER, id);
+        mNewerRequests++;
+        queueQuery(0, 0, goToTime, searchQuery, QUERY_TYPE_NEWER, id);
+    }
 
-            mSelectedInstanceId = -1;
-            mCleanQueryInitiated = true;
-            queueQuery(startDay, endDay, goToTime, searchQuery, QUERY_TYPE_CLEAN, id);
+    /**
+     * Sets the uptime of the keystroke that triggered the next search, so the
+     * time until its first results are shown can be logged.
+     */
+    public void setSearchStartTime(long uptimeMillis) {
+        mSearchStartTime = uptimeMillis;
+    }
 
-            // Pre-fetch more data to overcome a race condition in AgendaListView.shiftSelection
-            // Queuing more data with the goToTime set to the selected time skips the call to
-            // shiftSelection on refresh.
-            mOlderRequests++;
-            queueQuery(0, 0, goToTime, searchQuery, QUERY_TYPE_OLDER, id);
-            mNewerRequests++;
-            queueQuery(0, 0, goToTime, searchQuery, QUERY_TYPE_NEWER, id);
+    private void logSearchLatency(String how) {
+        if (mSearchStartTime != 0) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Search \"" + mSearchQuery + "\" " + how + " "
+                        + (SystemClock.uptimeMillis() - mSearchStartTime)
+                        + "ms after keystroke");
+            }
+            mSearchStartTime = 0;
+        }
+    }
+
+    /**
+     * Whether every event matching {@code query} also matches
+     * {@code previousQuery}, i.e. the user only typed more characters.
+     */
+    static boolean isRefinementOf(String query, String previousQuery) {
+        return query.length() > previousQuery.length()
+                && query.regionMatches(true, 0, previousQuery, 0, previousQuery.length());
+    }
+
+    /**
+     * Drops the queued and running queries of a search that the user has
+     * typed past.
+     */
+    private void cancelSupersededQueries() {
+        synchronized (mQueryQueue) {
+            mQueryHandler.cancelOperation(0);
+            mQueryQueue.clear();
+            mOlderRequestsProcessed = mOlderRequests;
+            mNewerRequestsProcessed = mNewerRequests;
+            mCleanQueryInitiated = false;
+        }
+    }
+
+    /**
+     * Narrows the results of the previous search to those of {@code query}
+     * without going back to the provider. The matching event ids come from the
+     * local search index; if it can't answer, or the previous search is still
+     * loading, a regular search is queued instead.
+     */
+    private void refineSearch(final String query, Time goToTime, final long id) {
+        final Time refineTime = new Time(goToTime);
+        final boolean canFilter;
+        synchronized (mQueryQueue) {
+            canFilter = mQueryQueue.isEmpty() && !mAdapterInfos.isEmpty();
+        }
+        if (!canFilter) {
+            cancelSupersededQueries();
+            queueCleanQuery(Time.getJulianDay(refineTime.toMillis(false), refineTime.gmtoff),
+                    refineTime, query, id);
+            return;
+        }
+
+        EventSearchIndex.getInstance(mContext).queryEventIdsAsync(query, mDataChangedHandler,
+                new EventSearchIndex.QueryCallback() {
+                    @Override
+                    public void onEventIdsResolved(String resolvedQuery, long[] eventIds) {
+                        if (mShuttingDown || !resolvedQuery.equals(mSearchQuery)) {
+                            // The user has typed on since
+                            return;
+                        }
+                        synchronized (mQueryQueue) {
+                            if (eventIds == null || !mQueryQueue.isEmpty()) {
+                                cancelSupersededQueries();
+                                queueCleanQuery(Time.getJulianDay(refineTime.toMillis(false),
+                                        refineTime.gmtoff), refineTime, resolvedQuery, id);
+                                return;
+                            }
+                        }
+                        filterAdapterInfos(eventIds);
+                        logSearchLatency("refined in memory to " + mRowCount + " rows");
+                    }
+                });
+    }
+
+    private void filterAdapterInfos(long[] eventIds) {
+        long[] sortedIds = eventIds.clone();
+        Arrays.sort(sortedIds);
+        synchronized (mAdapterInfos) {
+            mRowCount = 0;
+            for (DayAdapterInfo info : mAdapterInfos) {
+                info.cursor = FilteredCursor.filterByIds(info.cursor, INDEX_EVENT_ID, sortedIds);
+                info.dayAdapter.swapCursor(info);
+                info.size = info.dayAdapter.getCount();
+                info.offset = mRowCount;
+                mRowCount += info.size;
+            }
+            mLastUsedInfo = null;
         }
+        notifyDataSetChanged();
     }
 
     public void close() {
@@ -830,6 +953,27 @@ public class AgendaWindowAdapter extends BaseAdapter
         return builder.build();
     }
 
+    /**
+     * Restricts the instance selection to the given event ids. Used in place of
+     * the provider's search URI when the local search index has resolved the
+     * query.
+     */
+    private static String buildIndexedSearchSelection(String selection, long[] eventIds) {
+        StringBuilder sb = new StringBuilder(selection);
+        sb.append(" AND ");
+        if (eventIds.length == 0) {
+            return sb.append(Instances.EVENT_ID).append("=-1").toString();
+        }
+        sb.append(Instances.EVENT_ID).append(" IN (");
+        for (int i = 0; i < eventIds.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(eventIds[i]);
+        }
+        return sb.append(')').toString();
+    }
+
     private boolean isInRange(int start, int end) {
         synchronized (mAdapterInfos) {
             if (mAdapterInfos.isEmpty()) {
@@ -960,6 +1104,44 @@ public class AgendaWindowAdapter extends BaseAdapter
             super(cr);
         }
 
+        @Override
+        protected Handler createHandler(Looper looper) {
+            return new SearchWorkerHandler(looper);
+        }
+
+        /**
+         * Resolves search queries against the local search index on the worker
+         * thread, so the provider only has to expand the instances of the
+         * matching events instead of running its own search.
+         */
+        private class SearchWorkerHandler extends WorkerHandler {
+            public SearchWorkerHandler(Looper looper) {
+                super(looper);
+            }
+
+            @Override
+            public void handleMessage(Message msg) {
+                WorkerArgs args = (WorkerArgs) msg.obj;
+                if (args != null && args.cookie instanceof QuerySpec) {
+                    QuerySpec spec = (QuerySpec) args.cookie;
+                    if (spec.searchQuery != null) {
+                        long[] eventIds = EventSearchIndex.getInstance(mContext)
+                                .queryEventIds(spec.searchQuery);
+                        if (eventIds != null) {
+                            if (BASICLOG) {
+                                Log.v(TAG, "Search index matched " + eventIds.length
+                                        + " events for " + spec.searchQuery);
+                            }
+                            args.uri = buildQueryUri(spec.start, spec.end, null);
+                            args.selection = buildIndexedSearchSelection(args.selection,
+                                    eventIds);
+                        }
+                    }
+                }
+                super.handleMessage(msg);
+            }
+        }
+
         @Override
         protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
             if (DEBUGLOG) {
@@ -974,6 +1156,18 @@ public class AgendaWindowAdapter extends BaseAdapter
               return;
             }
 
+            if (data.searchQuery != null) {
+                boolean superseded;
+                synchronized (mQueryQueue) {
+                    superseded = mQueryQueue.peek() != data;
+                }
+                if (superseded) {
+                    // Superseded by a newer search while it was running
+                    cursor.close();
+                    return;
+                }
+            }
+
             if (BASICLOG) {
                 long queryEndMillis = System.nanoTime();
                 Log.e(TAG, "Query time(ms): "
@@ -992,6 +1186,9 @@ public class AgendaWindowAdapter extends BaseAdapter
 
             // Notify Listview of changes and update position
             int cursorSize = cursor.getCount();
+            if (data.searchQuery != null) {
+                logSearchLatency("returned " + cursorSize + " rows");
+            }
             if (cursorSize > 0 || mAdapterInfos.isEmpty() || data.queryType == QUERY_TYPE_CLEAN) {
                 final int listPositionOffset = processNewCursor(data, cursor);
                 int newPosition = -1;
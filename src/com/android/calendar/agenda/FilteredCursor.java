@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.agenda;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import java.util.Arrays;
+
+/**
+ * A read-only view of a subset of the rows of another cursor. Used to narrow
+ * the agenda's search results in memory when the query is refined, instead of
+ * asking the provider again. Closing this cursor closes the wrapped one.
+ */
+class FilteredCursor extends CursorWrapper {
+    private final int[] mPositions;
+    private int mPos = -1;
+
+    private FilteredCursor(Cursor cursor, int[] positions) {
+        super(cursor);
+        mPositions = positions;
+    }
+
+    /**
+     * Returns a cursor over the rows of {@code cursor} whose long value in
+     * column {@code idColumn} is contained in {@code sortedIds}, which must be
+     * sorted in ascending order.
+     */
+    static FilteredCursor filterByIds(Cursor cursor, int idColumn, long[] sortedIds) {
+        int[] positions = new int[cursor.getCount()];
+        int count = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            if (Arrays.binarySearch(sortedIds, cursor.getLong(idColumn)) >= 0) {
+                positions[count++] = cursor.getPosition();
+            }
+        }
+        return new FilteredCursor(cursor, Arrays.copyOf(positions, count));
+    }
+
+    @Override
+    public int getCount() {
+        return mPositions.length;
+    }
+
+    @Override
+    public int getPosition() {
+        return mPos;
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        final int count = mPositions.length;
+        if (position >= count) {
+            mPos = count;
+            return false;
+        }
+        if (position < 0) {
+            mPos = -1;
+            return false;
+        }
+        mPos = position;
+        return super.moveToPosition(mPositions[position]);
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(mPos + offset);
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(mPositions.length - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(mPos + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(mPos - 1);
+    }
+
+    @Override
+    public boolean isFirst() {
+        return mPos == 0 && mPositions.length != 0;
+    }
+
+    @Override
+    public boolean isLast() {
+        return mPos == mPositions.length - 1 && mPositions.length != 0;
+    }
+
+    @Override
+    public boolean isBeforeFirst() {
+        return mPositions.length == 0 || mPos == -1;
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return mPositions.length == 0 || mPos == mPositions.length;
+    }
+}
@@ -34,10 +34,7 @@ import android.util.Log;
 
 import com.android.calendar.Utils;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * Schedules the next EVENT_REMINDER_APP broadcast with AlarmManager, by querying the events
@@ -59,7 +56,7 @@ public class AlarmScheduler {
     private static final int INSTANCES_INDEX_ALL_DAY = 2;
 
     private static final String REMINDERS_WHERE = Reminders.METHOD + "=1 AND "
-            + Reminders.EVENT_ID + " IN ";
+            + Reminders.EVENT_ID + ">=? AND " + Reminders.EVENT_ID + "<=?";
     static final String[] REMINDERS_PROJECTION = new String[] {
         Reminders.EVENT_ID,
         Reminders.MINUTES,
@@ -69,6 +66,10 @@ public class AlarmScheduler {
     private static final int REMINDERS_INDEX_MINUTES = 1;
     private static final int REMINDERS_INDEX_METHOD = 2;
 
+    // Event ids further apart than this are fetched with separate event id range
+    // queries, so the events between them (typically old ones) aren't read too.
+    static final long EVENT_ID_RANGE_MAX_GAP = 1000;
+
     // Add a slight delay for the EVENT_REMINDER_APP broadcast for a couple reasons:
     // (1) so that the concurrent reminder broadcast from the provider doesn't result
     // in a double ring, and (2) some OEMs modified the provider to not add an alert to
@@ -77,11 +78,6 @@ public class AlarmScheduler {
     // read from the CalendarAlerts table until the alert is present.
     static final int ALARM_DELAY_MS = 1000;
 
-    // The reminders query looks like "SELECT ... AND eventId IN 101,102,202,...".  This
-    // sets the max # of events in the query before batching into multiple queries, to
-    // limit the SQL query length.
-    private static final int REMINDER_QUERY_BATCH_SIZE = 50;
-
     // We really need to query for reminder times that fall in some interval, but
     // the Reminders table only stores the reminder interval (10min, 15min, etc), and
     // we cannot do the join with the Events table to calculate the actual alert time
@@ -89,7 +85,7 @@ public class AlarmScheduler {
     // whose start times begin within some interval (ie. 1 week out).  This means
     // reminders which are configured for more than 1 week out won't fire on time.  We
     // can minimize this to being only 1 day late by putting a 1 day max on the alarm time.
-    private static final long EVENT_LOOKAHEAD_WINDOW_MS = DateUtils.WEEK_IN_MILLIS;
+    static final long EVENT_LOOKAHEAD_WINDOW_MS = DateUtils.WEEK_IN_MILLIS;
     private static final long MAX_ALARM_ELAPSED_MS = DateUtils.DAY_IN_MILLIS;
 
     /**
@@ -100,22 +96,43 @@ public class AlarmScheduler {
      * has the limitation of querying events within some interval from now (ie. looks at
      * reminders for all events occurring in the next week).  This means for example,
      * a 2 week notification will not fire on time.
+     *
+     * The next reminder is read from the {@link ReminderTimeline}, falling back to
+     * querying the provider directly if the timeline can't be used.
      */
     public static void scheduleNextAlarm(Context context) {
         scheduleNextAlarm(context, AlertUtils.createAlarmManager(context),
-                REMINDER_QUERY_BATCH_SIZE, System.currentTimeMillis());
+                ReminderTimeline.getInstance(context), System.currentTimeMillis());
+    }
+
+    // VisibleForTesting
+    static void scheduleNextAlarm(Context context, AlarmManagerInterface alarmManager,
+            ReminderTimeline timeline, long currentMillis) {
+        ReminderTimeline.Alarm next;
+        try {
+            next = timeline.getNextAlarm(currentMillis);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Reminder timeline failed, querying reminders instead", e);
+            scheduleNextAlarm(context, alarmManager, currentMillis);
+            return;
+        }
+        if (next != null) {
+            scheduleAlarm(context, next.eventId, next.alarmTime, currentMillis, alarmManager);
+        } else if (AlertService.DEBUG) {
+            Log.d(TAG, "No reminders found for events starting within 1 week.");
+        }
     }
 
     // VisibleForTesting
     static void scheduleNextAlarm(Context context, AlarmManagerInterface alarmManager,
-            int batchSize, long currentMillis) {
+            long currentMillis) {
         Cursor instancesCursor = null;
         try {
             instancesCursor = queryUpcomingEvents(context, context.getContentResolver(),
                     currentMillis);
             if (instancesCursor != null) {
                 queryNextReminderAndSchedule(instancesCursor, context,
-                        context.getContentResolver(), alarmManager, batchSize, currentMillis);
+                        context.getContentResolver(), alarmManager, currentMillis);
             }
         } finally {
             if (instancesCursor != null) {
@@ -125,7 +142,7 @@ public class AlarmScheduler {
     }
 
     /**
-     * Queries events starting within a fixed interval from now.
+     * Queries events starting within a fixed interval from now, sorted by event id.
      */
     private static Cursor queryUpcomingEvents(Context context, ContentResolver contentResolver,
             long currentMillis) {
@@ -165,17 +182,22 @@ public class AlarmScheduler {
         };
 
         Cursor cursor = contentResolver.query(uriBuilder.build(), INSTANCES_PROJECTION,
-                queryBuilder.toString(), queryArgs, null);
+                queryBuilder.toString(), queryArgs, Instances.EVENT_ID + " ASC");
         return cursor;
     }
 
     /**
      * Queries for all the reminders of the events in the instancesCursor, and schedules
      * the alarm for the next upcoming reminder.
+     *
+     * The reminders are fetched with one query per event id range, sorted by event id, so
+     * they can be joined with the instances, which are sorted the same way, in a single
+     * pass over both cursors. A new range starts wherever consecutive event ids are more
+     * than {@link #EVENT_ID_RANGE_MAX_GAP} apart.
      */
     private static void queryNextReminderAndSchedule(Cursor instancesCursor, Context context,
             ContentResolver contentResolver, AlarmManagerInterface alarmManager,
-            int batchSize, long currentMillis) {
+            long currentMillis) {
         if (AlertService.DEBUG) {
             int eventCount = instancesCursor.getCount();
             if (eventCount == 0) {
@@ -184,72 +206,86 @@ public class AlarmScheduler {
                 Log.d(TAG, "Query result count for events starting within 1 week: " + eventCount);
             }
         }
+        if (!instancesCursor.moveToFirst()) {
+            return;
+        }
 
-        // Put query results of all events starting within some interval into map of event ID to
-        // local start time.
-        Map<Integer, List<Long>> eventMap = new HashMap<Integer, List<Long>>();
         Time timeObj = new Time();
+        String timezone = Time.getCurrentTimezone();
         long nextAlarmTime = Long.MAX_VALUE;
-        int nextAlarmEventId = 0;
-        instancesCursor.moveToPosition(-1);
-        while (!instancesCursor.isAfterLast()) {
-            int index = 0;
-            eventMap.clear();
-            StringBuilder eventIdsForQuery = new StringBuilder();
-            eventIdsForQuery.append('(');
-            while (index++ < batchSize && instancesCursor.moveToNext()) {
-                int eventId = instancesCursor.getInt(INSTANCES_INDEX_EVENTID);
-                long begin = instancesCursor.getLong(INSTANCES_INDEX_BEGIN);
-                boolean allday = instancesCursor.getInt(INSTANCES_INDEX_ALL_DAY) != 0;
-                long localStartTime;
-                if (allday) {
-                    // Adjust allday to local time.
-                    localStartTime = Utils.convertAlldayUtcToLocal(timeObj, begin,
-                            Time.getCurrentTimezone());
-                } else {
-                    localStartTime = begin;
-                }
-                List<Long> startTimes = eventMap.get(eventId);
-                if (startTimes == null) {
-                    startTimes = new ArrayList<Long>();
-                    eventMap.put(eventId, startTimes);
-                    eventIdsForQuery.append(eventId);
-                    eventIdsForQuery.append(",");
-                }
-                startTimes.add(localStartTime);
-
-                // Log for debugging.
-                if (Log.isLoggable(TAG, Log.DEBUG)) {
-                    timeObj.set(localStartTime);
-                    StringBuilder msg = new StringBuilder();
-                    msg.append("Events cursor result -- eventId:").append(eventId);
-                    msg.append(", allDay:").append(allday);
-                    msg.append(", start:").append(localStartTime);
-                    msg.append(" (").append(timeObj.format("%a, %b %d, %Y %I:%M%P")).append(")");
-                    Log.d(TAG, msg.toString());
-                }
-            }
-            if (eventIdsForQuery.charAt(eventIdsForQuery.length() - 1) == ',') {
-                eventIdsForQuery.deleteCharAt(eventIdsForQuery.length() - 1);
-            }
-            eventIdsForQuery.append(')');
+        long nextAlarmEventId = 0;
+        // Local start times of the instances of the current event
+        long[] startTimes = new long[8];
+
+        int rangeStart = 0;
+        while (rangeStart < instancesCursor.getCount()) {
+            int rangeEnd = findEventIdRangeEnd(instancesCursor, rangeStart,
+                    INSTANCES_INDEX_EVENTID);
+            instancesCursor.moveToPosition(rangeEnd - 1);
+            long maxEventId = instancesCursor.getLong(INSTANCES_INDEX_EVENTID);
+            instancesCursor.moveToPosition(rangeStart);
+            long minEventId = instancesCursor.getLong(INSTANCES_INDEX_EVENTID);
+            rangeStart = rangeEnd;
 
-            // Query the reminders table for the events found.
             Cursor cursor = null;
             try {
                 cursor = contentResolver.query(Reminders.CONTENT_URI, REMINDERS_PROJECTION,
-                        REMINDERS_WHERE + eventIdsForQuery, null, null);
-
-                // Process the reminders query results to find the next reminder time.
-                cursor.moveToPosition(-1);
-                while (cursor.moveToNext()) {
-                    int eventId = cursor.getInt(REMINDERS_INDEX_EVENT_ID);
-                    int reminderMinutes = cursor.getInt(REMINDERS_INDEX_MINUTES);
-                    List<Long> startTimes = eventMap.get(eventId);
-                    if (startTimes != null) {
-                        for (Long startTime : startTimes) {
-                            long alarmTime = startTime -
-                                    reminderMinutes * DateUtils.MINUTE_IN_MILLIS;
+                        REMINDERS_WHERE, new String[] {
+                                Long.toString(minEventId), Long.toString(maxEventId)
+                        }, Reminders.EVENT_ID + " ASC");
+                if (cursor == null) {
+                    return;
+                }
+
+                boolean remindersLeft = cursor.moveToFirst();
+                boolean instancesLeft = true;
+                while (instancesLeft && remindersLeft) {
+                    long eventId = instancesCursor.getLong(INSTANCES_INDEX_EVENTID);
+
+                    // The instances of this event are the next run in the instances cursor.
+                    int startCount = 0;
+                    do {
+                        long begin = instancesCursor.getLong(INSTANCES_INDEX_BEGIN);
+                        boolean allday = instancesCursor.getInt(INSTANCES_INDEX_ALL_DAY) != 0;
+                        long localStartTime;
+                        if (allday) {
+                            // Adjust allday to local time.
+                            localStartTime = Utils.convertAlldayUtcToLocal(timeObj, begin,
+                                    timezone);
+                        } else {
+                            localStartTime = begin;
+                        }
+                        if (startCount == startTimes.length) {
+                            startTimes = Arrays.copyOf(startTimes, startCount * 2);
+                        }
+                        startTimes[startCount++] = localStartTime;
+
+                        // Log for debugging.
+                        if (Log.isLoggable(TAG, Log.DEBUG)) {
+                            timeObj.set(localStartTime);
+                            StringBuilder msg = new StringBuilder();
+                            msg.append("Events cursor result -- eventId:").append(eventId);
+                            msg.append(", allDay:").append(allday);
+                            msg.append(", start:").append(localStartTime);
+                            msg.append(" (").append(timeObj.format("%a, %b %d, %Y %I:%M%P"))
+                                    .append(")");
+                            Log.d(TAG, msg.toString());
+                        }
+                        instancesLeft = instancesCursor.moveToNext()
+                                && instancesCursor.getPosition() < rangeEnd;
+                    } while (instancesLeft
+                            && instancesCursor.getLong(INSTANCES_INDEX_EVENTID) == eventId);
+
+                    // Skip the reminders of events without instances in the window, then
+                    // process the reminders of this event to find the next reminder time.
+                    while (remindersLeft && cursor.getLong(REMINDERS_INDEX_EVENT_ID) < eventId) {
+                        remindersLeft = cursor.moveToNext();
+                    }
+                    while (remindersLeft && cursor.getLong(REMINDERS_INDEX_EVENT_ID) == eventId) {
+                        int reminderMinutes = cursor.getInt(REMINDERS_INDEX_MINUTES);
+                        long reminderMillis = reminderMinutes * DateUtils.MINUTE_IN_MILLIS;
+                        for (int i = 0; i < startCount; i++) {
+                            long alarmTime = startTimes[i] - reminderMillis;
                             if (alarmTime > currentMillis && alarmTime < nextAlarmTime) {
                                 nextAlarmTime = alarmTime;
                                 nextAlarmEventId = eventId;
@@ -259,7 +295,7 @@ public class AlarmScheduler {
                                 timeObj.set(alarmTime);
                                 StringBuilder msg = new StringBuilder();
                                 msg.append("Reminders cursor result -- eventId:").append(eventId);
-                                msg.append(", startTime:").append(startTime);
+                                msg.append(", startTime:").append(startTimes[i]);
                                 msg.append(", minutes:").append(reminderMinutes);
                                 msg.append(", alarmTime:").append(alarmTime);
                                 msg.append(" (").append(timeObj.format("%a, %b %d, %Y %I:%M%P"))
@@ -267,6 +303,7 @@ public class AlarmScheduler {
                                 Log.d(TAG, msg.toString());
                             }
                         }
+                        remindersLeft = cursor.moveToNext();
                     }
                 }
             } finally {
@@ -282,6 +319,24 @@ public class AlarmScheduler {
         }
     }
 
+    /**
+     * Returns the position after the last row of the event id range starting at
+     * {@code start} in a cursor sorted by event id. The range ends where the next
+     * event id is more than {@link #EVENT_ID_RANGE_MAX_GAP} past the previous one.
+     */
+    static int findEventIdRangeEnd(Cursor cursor, int start, int eventIdColumn) {
+        cursor.moveToPosition(start);
+        long lastEventId = cursor.getLong(eventIdColumn);
+        while (cursor.moveToNext()) {
+            long eventId = cursor.getLong(eventIdColumn);
+            if (eventId - lastEventId > EVENT_ID_RANGE_MAX_GAP) {
+                break;
+            }
+            lastEventId = eventId;
+        }
+        return cursor.getPosition();
+    }
+
     /**
      * Schedules an alarm for the EVENT_REMINDER_APP broadcast, for the specified
      * alarm time with a slight delay (to account for the possible duplicate broadcast
@@ -274,6 +274,7 @@ public class AlertActivity extends Activity implements OnClickListener {
             NotificationManager nm =
                 (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
             nm.cancelAll();
+            AlertService.getNotificationMgr(this).forgetAll();
 
             dismissFiredAlarms();
 
@@ -40,6 +40,7 @@ import android.text.style.RelativeSizeSpan;
 import android.text.style.TextAppearanceSpan;
 import android.text.style.URLSpan;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.View;
 import android.widget.RemoteViews;
 
@@ -91,6 +92,32 @@ public class AlertReceiver extends BroadcastReceiver {
     private static final String TEL_PREFIX = "tel:";
     private static final int MAX_NOTIF_ACTIONS = 3;
 
+    // Enough for every notification that can be showing, plus the digest.
+    private static final int ACTION_CACHE_SIZE = 2 * AlertService.MAX_NOTIFICATIONS;
+
+    /**
+     * The map, call and email actions of an event's notification. Building them takes
+     * three provider queries and a linkify pass over the location, so they are cached
+     * for the notifications that get rebuilt on every refresh.
+     */
+    private static final class NotificationActions {
+        final PendingIntent mapIntent;
+        final PendingIntent callIntent;
+        final PendingIntent emailIntent;
+
+        NotificationActions(PendingIntent mapIntent, PendingIntent callIntent,
+                PendingIntent emailIntent) {
+            this.mapIntent = mapIntent;
+            this.callIntent = callIntent;
+            this.emailIntent = emailIntent;
+        }
+    }
+
+    // Keyed by event id. Cleared whenever the provider changes, since the location or
+    // attendees may have been edited.
+    private static final LruCache<Long, NotificationActions> sActionCache =
+            new LruCache<Long, NotificationActions>(ACTION_CACHE_SIZE);
+
     private static Handler sAsyncHandler;
     static {
         HandlerThread thr = new HandlerThread("AlertReceiver async");
@@ -315,13 +342,10 @@ public class AlertReceiver extends BroadcastReceiver {
             //    not automatically close the notification shade.
             // 2) Event information will always be up to date.
 
-            // Create map and/or call intents.
-            URLSpan[] urlSpans = getURLSpans(context, eventId);
-            mapIntent = createMapBroadcastIntent(context, urlSpans, eventId);
-            callIntent = createCallBroadcastIntent(context, urlSpans, eventId);
-
-            // Create email intent for emailing attendees.
-            emailIntent = createBroadcastMailIntent(context, eventId, title);
+            NotificationActions actions = getNotificationActions(context, eventId, title);
+            mapIntent = actions.mapIntent;
+            callIntent = actions.callIntent;
+            emailIntent = actions.emailIntent;
 
             // Create snooze intent.  TODO: change snooze to 10 minutes.
             snoozeIntent = createSnoozeIntent(context, eventId, startMillis, endMillis,
@@ -419,6 +443,51 @@ public class AlertReceiver extends BroadcastReceiver {
         }
     }
 
+    private static NotificationActions getNotificationActions(Context context, long eventId,
+            String title) {
+        NotificationActions actions = sActionCache.get(eventId);
+        if (actions == null) {
+            // Create map and/or call intents.
+            URLSpan[] urlSpans = getURLSpans(context, eventId);
+            PendingIntent mapIntent = createMapBroadcastIntent(context, urlSpans, eventId);
+            PendingIntent callIntent = createCallBroadcastIntent(context, urlSpans, eventId);
+
+            // Create email intent for emailing attendees.
+            PendingIntent emailIntent = createBroadcastMailIntent(context, eventId, title);
+
+            actions = new NotificationActions(mapIntent, callIntent, emailIntent);
+            sActionCache.put(eventId, actions);
+        } else if (AlertService.DEBUG) {
+            Log.d(TAG, "Reusing notification actions for event " + eventId);
+        }
+        return actions;
+    }
+
+    // Flags for the actions an event's notification carries
+    static final int ACTION_MAP = 1;
+    static final int ACTION_CALL = 2;
+    static final int ACTION_EMAIL = 4;
+
+    /**
+     * Returns which of the map, call and email actions the expanding notification of the
+     * event gets, as a combination of the ACTION_ flags. The actions are built and cached
+     * if they aren't already.
+     */
+    static int getNotificationActionFlags(Context context, long eventId, String title) {
+        NotificationActions actions = getNotificationActions(context, eventId, title);
+        return (actions.mapIntent != null ? ACTION_MAP : 0)
+                | (actions.callIntent != null ? ACTION_CALL : 0)
+                | (actions.emailIntent != null ? ACTION_EMAIL : 0);
+    }
+
+    /**
+     * Forgets the cached notification actions, so they are rebuilt from the provider the
+     * next time the notifications are posted.
+     */
+    static void clearNotificationActions() {
+        sActionCache.evictAll();
+    }
+
     /**
      * Creates an expanding notification.  The initial expanded state is decided by
      * the notification manager based on the priority.
@@ -770,19 +839,26 @@ public class AlertReceiver extends BroadcastReceiver {
      */
     private static URLSpan[] getURLSpans(Context context, long eventId) {
         Cursor locationCursor = getLocationCursor(context, eventId);
-        if (locationCursor != null && locationCursor.moveToFirst()) {
-            String location = locationCursor.getString(0); // Only one item in this cursor.
-            if (location == null || location.isEmpty()) {
-                // Return an empty list if we know there was nothing in the location field.
-                return new URLSpan[0];
-            }
+        try {
+            if (locationCursor != null && locationCursor.moveToFirst()) {
+                String location = locationCursor.getString(0); // Only one item in this cursor.
+                if (location == null || location.isEmpty()) {
+                    // Return an empty list if we know there was nothing in the location field.
+                    return new URLSpan[0];
+                }
 
-            Spannable text = Utils.extendedLinkify(location, true);
+                Spannable text = Utils.extendedLinkify(location, true);
 
-            // The linkify method should have found at least one link, at the very least.
-            // If no smart links were found, it should have set the whole string as a geo link.
-            URLSpan[] urlSpans = text.getSpans(0, text.length(), URLSpan.class);
-            return urlSpans;
+                // The linkify method should have found at least one link, at the very least.
+                // If no smart links were found, it should have set the whole string as a geo
+                // link.
+                URLSpan[] urlSpans = text.getSpans(0, text.length(), URLSpan.class);
+                return urlSpans;
+            }
+        } finally {
+            if (locationCursor != null) {
+                locationCursor.close();
+            }
         }
 
         // If no links were found or location was empty, return an empty list.
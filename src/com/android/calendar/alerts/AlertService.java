@@ -19,11 +19,13 @@ package com.android.calendar.alerts;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.Service;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
@@ -34,6 +36,8 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.CalendarContract;
 import android.provider.CalendarContract.Attendees;
 import android.provider.CalendarContract.CalendarAlerts;
@@ -108,6 +112,17 @@ public class AlertService extends Service {
     // The grace period before changing a notification's priority bucket.
     private static final int MIN_DEPRIORITIZE_GRACE_PERIOD_MS = 15 * MINUTE_MS;
 
+    // b/7652098: Refreshing notifications right after a provider change left stale
+    // notifications with the unbundled app installed on HTC. Provider changes also come in
+    // bursts while syncing, so the refresh waits until there haven't been any for this
+    // long...
+    private static final long PROVIDER_CHANGED_QUIET_MS = 5 * DateUtils.SECOND_IN_MILLIS;
+
+    // ...but no longer than this after the first change of a burst.
+    private static final long PROVIDER_CHANGED_MAX_LATENCY_MS = 30 * DateUtils.SECOND_IN_MILLIS;
+
+    private static final int MSG_PROVIDER_CHANGED_REFRESH = 1;
+
     // Hard limit to the number of notifications displayed.
     public static final int MAX_NOTIFICATIONS = 20;
 
@@ -155,19 +170,89 @@ public class AlertService extends Service {
     public static class NotificationMgrWrapper extends NotificationMgr {
         NotificationManager mNm;
 
+        // What is showing under each notification id, as far as this process knows.
+        // Unknown until the id is first posted or canceled through this wrapper.
+        private final boolean[] mKnown = new boolean[MAX_NOTIFICATIONS + 1];
+        private final boolean[] mShowing = new boolean[MAX_NOTIFICATIONS + 1];
+        private final long[] mFingerprints = new long[MAX_NOTIFICATIONS + 1];
+
         public NotificationMgrWrapper(NotificationManager nm) {
             mNm = nm;
         }
 
         @Override
-        public void cancel(int id) {
-            mNm.cancel(id);
+        public synchronized void cancel(int id) {
+            if (isTracked(id)) {
+                if (mKnown[id] && !mShowing[id]) {
+                    // Already gone; skip the call into the notification manager.
+                    return;
+                }
+                mKnown[id] = true;
+                mShowing[id] = false;
+            }
+            cancelInManager(id);
+        }
+
+        @Override
+        public synchronized void notify(int id, NotificationWrapper nw) {
+            if (isTracked(id)) {
+                // Content unknown, so never treated as showing.
+                mKnown[id] = false;
+            }
+            postToManager(id, nw.mNotification);
+        }
+
+        @Override
+        public synchronized void notify(int id, long fingerprint, NotificationWrapper nw) {
+            postToManager(id, nw.mNotification);
+            if (isTracked(id)) {
+                mKnown[id] = true;
+                mShowing[id] = true;
+                mFingerprints[id] = fingerprint;
+            }
         }
 
         @Override
-        public void notify(int id, NotificationWrapper nw) {
-            mNm.notify(id, nw.mNotification);
+        public synchronized boolean isShowing(int id, long fingerprint) {
+            return isTracked(id) && mKnown[id] && mShowing[id] && mFingerprints[id] == fingerprint;
+        }
+
+        /**
+         * Called when notifications were removed without going through this wrapper.
+         */
+        public synchronized void forgetAll() {
+            for (int i = 0; i < mKnown.length; i++) {
+                mKnown[i] = false;
+            }
+        }
+
+        private boolean isTracked(int id) {
+            return id >= 0 && id < mKnown.length;
+        }
+
+        // Overridden in tests
+        void postToManager(int id, Notification notification) {
+            mNm.notify(id, notification);
+        }
+
+        // Overridden in tests
+        void cancelInManager(int id) {
+            mNm.cancel(id);
+        }
+    }
+
+    private static NotificationMgrWrapper sNotificationMgr;
+
+    /**
+     * Returns the notification manager wrapper shared by the alert services, which
+     * remembers what was posted so unchanged notifications aren't posted again.
+     */
+    static synchronized NotificationMgrWrapper getNotificationMgr(Context context) {
+        if (sNotificationMgr == null) {
+            sNotificationMgr = new NotificationMgrWrapper((NotificationManager) context
+                    .getApplicationContext().getSystemService(Context.NOTIFICATION_SERVICE));
         }
+        return sNotificationMgr;
     }
 
     void processMessage(Message msg) {
@@ -205,17 +290,8 @@ public class AlertService extends Service {
                 action.equals(AlertReceiver.EVENT_REMINDER_APP_ACTION) ||
                 action.equals(Intent.ACTION_LOCALE_CHANGED)) {
 
-            // b/7652098: Add a delay after the provider-changed event before refreshing
-            // notifications to help issue with the unbundled app installed on HTC having
-            // stale notifications.
-            if (action.equals(Intent.ACTION_PROVIDER_CHANGED)) {
-                try {
-                    Thread.sleep(5000);
-                } catch (Exception e) {
-                    // Ignore.
-                }
-            }
-
+            // ACTION_PROVIDER_CHANGED only gets here once the provider has settled, see
+            // ServiceHandler.
             updateAlertNotification(this);
         } else if (action.equals(Intent.ACTION_BOOT_COMPLETED)) {
             // The provider usually initiates this setting up of alarms on startup,
@@ -226,10 +302,16 @@ public class AlertService extends Service {
             // the 2nd time and still miss alarms.
             //
             // TODO: Remove this when the provider fix is rolled out everywhere.
+            //
+            // Provider changes made while this app couldn't receive them (before the
+            // boot completed, or while it was stopped) would be missed by the reminder
+            // timeline otherwise.
+            ReminderTimeline.getInstance(this).invalidate();
             Intent intent = new Intent();
             intent.setClass(this, InitAlarmsService.class);
             startService(intent);
         } else if (action.equals(Intent.ACTION_TIME_CHANGED)) {
+            ReminderTimeline.getInstance(this).requestRebuild();
             doTimeChanged();
         } else if (action.equals(AlertReceiver.ACTION_DISMISS_OLD_REMINDERS)) {
             dismissOldAlerts(this);
@@ -257,8 +339,7 @@ public class AlertService extends Service {
 
     static boolean updateAlertNotification(Context context) {
         ContentResolver cr = context.getContentResolver();
-        NotificationMgr nm = new NotificationMgrWrapper(
-                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE));
+        NotificationMgr nm = getNotificationMgr(context);
         final long currentTime = System.currentTimeMillis();
         SharedPreferences prefs = GeneralPreferences.getSharedPreferences(context);
 
@@ -317,6 +398,7 @@ public class AlertService extends Service {
 
         long nextRefreshTime = Long.MAX_VALUE;
         int currentNotificationId = 1;
+        int numPosted = 0;
         NotificationPrefs notificationPrefs = new NotificationPrefs(context, prefs,
                 (numFired == 0));
 
@@ -332,8 +414,10 @@ public class AlertService extends Service {
             NotificationInfo info = highPriorityEvents.get(i);
             String summaryText = AlertUtils.formatTimeLocation(context, info.startMillis,
                     info.allDay, info.location);
-            postNotification(info, summaryText, context, true, notificationPrefs, nm,
-                    currentNotificationId++);
+            if (postNotification(info, summaryText, context, true, notificationPrefs, nm,
+                    currentNotificationId++)) {
+                numPosted++;
+            }
 
             // Keep concurrent events high priority (to appear higher in the notification list)
             // until 15 minutes into the event.
@@ -351,8 +435,10 @@ public class AlertService extends Service {
             // This requires constant refreshing to the message as time goes.
             String summaryText = AlertUtils.formatTimeLocation(context, info.startMillis,
                     info.allDay, info.location);
-            postNotification(info, summaryText, context, false, notificationPrefs, nm,
-                    currentNotificationId++);
+            if (postNotification(info, summaryText, context, false, notificationPrefs, nm,
+                    currentNotificationId++)) {
+                numPosted++;
+            }
 
             // Refresh when concurrent event ends so it will drop into the expired digest.
             nextRefreshTime = Math.min(nextRefreshTime, getNextRefreshTime(info, currentTime));
@@ -360,7 +446,14 @@ public class AlertService extends Service {
 
         // Post the low priority events as 1 combined notification.
         int numLowPriority = lowPriorityEvents.size();
-        if (numLowPriority > 0) {
+        long digestFingerprint = numLowPriority > 0
+                ? getDigestFingerprint(context, lowPriorityEvents) : 0;
+        if (numLowPriority > 0 && nm.isShowing(AlertUtils.EXPIRED_GROUP_NOTIFICATION_ID,
+                digestFingerprint)) {
+            if (DEBUG) {
+                Log.d(TAG, "Digest notification unchanged, numEvents:" + numLowPriority);
+            }
+        } else if (numLowPriority > 0) {
             String expiredDigestTitle = getDigestTitle(lowPriorityEvents);
             NotificationWrapper notification;
             if (numLowPriority == 1) {
@@ -390,7 +483,8 @@ public class AlertService extends Service {
           }
 
             // Post the new notification for the group.
-            nm.notify(AlertUtils.EXPIRED_GROUP_NOTIFICATION_ID, notification);
+            nm.notify(AlertUtils.EXPIRED_GROUP_NOTIFICATION_ID, digestFingerprint, notification);
+            numPosted++;
         } else {
             nm.cancel(AlertUtils.EXPIRED_GROUP_NOTIFICATION_ID);
             if (DEBUG) {
@@ -406,6 +500,10 @@ public class AlertService extends Service {
                         + maxNotifications);
             }
         }
+        if (DEBUG) {
+            Log.d(TAG, "Posted " + numPosted + " of " + (currentNotificationId - 1
+                    + (numLowPriority > 0 ? 1 : 0)) + " notifications, the rest were unchanged");
+        }
 
         // Schedule the next silent refresh time so notifications will change
         // buckets (eg. drop into expired digest, etc).
@@ -583,6 +681,9 @@ public class AlertService extends Service {
 
         ContentResolver cr = context.getContentResolver();
         HashMap<Long, NotificationInfo> eventIds = new HashMap<Long, NotificationInfo>();
+        // State changes are collected and written in one transaction after the walk.
+        ArrayList<Uri> updateUris = new ArrayList<Uri>();
+        ArrayList<ContentValues> updateValues = new ArrayList<ContentValues>();
         int numFired = 0;
         try {
             while (alertCursor.moveToNext()) {
@@ -652,7 +753,7 @@ public class AlertService extends Service {
                     // we can get refires for non-dismissed alerts after app installation, or if the
                     // SharedPrefs was cleared too early.  This means alerts that were timed while
                     // the phone was off may show up silently in the notification bar.
-                    boolean alreadyFired = AlertUtils.hasAlertFiredInSharedPrefs(context, eventId,
+                    boolean alreadyFired = AlertUtils.hasAlertFired(context, eventId,
                             beginTime, alarmTime);
                     if (!alreadyFired) {
                         newAlertOverride = true;
@@ -723,8 +824,7 @@ public class AlertService extends Service {
                     state = newState;
 
                     if (AlertUtils.BYPASS_DB) {
-                        AlertUtils.setAlertFiredInSharedPrefs(context, eventId, beginTime,
-                                alarmTime);
+                        AlertUtils.setAlertFired(context, eventId, beginTime, alarmTime);
                     }
                 }
 
@@ -735,7 +835,10 @@ public class AlertService extends Service {
                 }
 
                 // Write row to if anything changed
-                if (values.size() > 0) cr.update(alertUri, values, null, null);
+                if (values.size() > 0) {
+                    updateUris.add(alertUri);
+                    updateValues.add(values);
+                }
 
                 if (state != CalendarAlerts.STATE_FIRED) {
                     continue;
@@ -814,6 +917,7 @@ public class AlertService extends Service {
                     lowPriorityEvents.add(newInfo);
                 }
             }
+            updateAlerts(cr, updateUris, updateValues);
             // TODO(cwren) add beginTime/startTime
             GlobalDismissManager.processEventIds(context, eventIds.keySet());
         } finally {
@@ -824,6 +928,41 @@ public class AlertService extends Service {
         return numFired;
     }
 
+    /**
+     * Writes the alert state changes from {@link #processQuery} as a single batch, so a
+     * burst of reminders costs one provider transaction. Falls back to updating the rows
+     * one at a time if the batch fails.
+     */
+    private static void updateAlerts(ContentResolver cr, ArrayList<Uri> uris,
+            ArrayList<ContentValues> values) {
+        if (uris.isEmpty()) {
+            return;
+        }
+        if (uris.size() > 1) {
+            ArrayList<ContentProviderOperation> ops =
+                    new ArrayList<ContentProviderOperation>(uris.size());
+            for (int i = 0; i < uris.size(); i++) {
+                ops.add(ContentProviderOperation.newUpdate(uris.get(i))
+                        .withValues(values.get(i))
+                        .build());
+            }
+            try {
+                cr.applyBatch(CalendarContract.AUTHORITY, ops);
+                return;
+            } catch (RemoteException e) {
+                Log.w(TAG, "Batched alert update failed, updating one by one. " + e);
+            } catch (OperationApplicationException e) {
+                Log.w(TAG, "Batched alert update failed, updating one by one. " + e);
+            } catch (RuntimeException e) {
+                // e.g. a provider that rejects batches on this uri
+                Log.w(TAG, "Batched alert update failed, updating one by one. " + e);
+            }
+        }
+        for (int i = 0; i < uris.size(); i++) {
+            cr.update(uris.get(i), values.get(i), null, null);
+        }
+    }
+
     /**
      * High priority cutoff should be 1/4 event duration or 15 min, whichever is longer.
      */
@@ -850,9 +989,60 @@ public class AlertService extends Service {
         return digestTitle.toString();
     }
 
-    private static void postNotification(NotificationInfo info, String summaryText,
+    /**
+     * Fingerprint of everything shown in the digest notification.
+     */
+    private static long getDigestFingerprint(Context context,
+            ArrayList<NotificationInfo> events) {
+        String[] fields = new String[events.size() * 5];
+        int i = 0;
+        for (NotificationInfo info : events) {
+            fields[i++] = Long.toString(info.eventId);
+            fields[i++] = Long.toString(info.startMillis);
+            fields[i++] = Long.toString(info.endMillis);
+            fields[i++] = info.eventName;
+            fields[i++] = AlertUtils.formatTimeLocation(context, info.startMillis, info.allDay,
+                    info.location);
+        }
+        return Utils.fingerprint(fields);
+    }
+
+    /**
+     * Fingerprint of everything shown in the notification for a single event.
+     *
+     * @param actions the AlertReceiver.ACTION_ flags of the notification's actions
+     */
+    static long getNotificationFingerprint(NotificationInfo info, String summaryText,
+            boolean highPriority, boolean doPopup, int actions) {
+        return Utils.fingerprint(Long.toString(info.eventId), Long.toString(info.startMillis),
+                Long.toString(info.endMillis), info.eventName, info.location, info.description,
+                summaryText, Boolean.toString(highPriority), Boolean.toString(doPopup),
+                Integer.toString(actions));
+    }
+
+    /**
+     * Posts the notification for a single event, unless the same content is already showing
+     * under this id and there is nothing new to alert about.
+     *
+     * @return whether the notification was posted
+     */
+    private static boolean postNotification(NotificationInfo info, String summaryText,
             Context context, boolean highPriority, NotificationPrefs prefs,
             NotificationMgr notificationMgr, int notificationId) {
+        // The map and call actions follow the location, but the email action depends on
+        // the attendees, which are not part of the info.
+        int actions = AlertReceiver.getNotificationActionFlags(context, info.eventId,
+                info.eventName);
+        long fingerprint = getNotificationFingerprint(info, summaryText, highPriority,
+                prefs.getDoPopup(), actions);
+        if (!info.newAlert && notificationMgr.isShowing(notificationId, fingerprint)) {
+            if (DEBUG) {
+                Log.d(TAG, "Individual alarm notification unchanged, eventId:" + info.eventId
+                        + ", notificationId:" + notificationId);
+            }
+            return false;
+        }
+
         int priorityVal = Notification.PRIORITY_DEFAULT;
         if (highPriority) {
             priorityVal = Notification.PRIORITY_HIGH;
@@ -877,7 +1067,7 @@ public class AlertService extends Service {
                 true); /* Show the LED for these non-expired events */
 
         // Post the notification.
-        notificationMgr.notify(notificationId, notification);
+        notificationMgr.notify(notificationId, fingerprint, notification);
 
         if (DEBUG) {
             Log.d(TAG, "Posting individual alarm notification, eventId:" + info.eventId
@@ -885,6 +1075,7 @@ public class AlertService extends Service {
                     + (TextUtils.isEmpty(ringtone) ? ", quiet" : ", LOUD")
                     + (highPriority ? ", high-priority" : ""));
         }
+        return true;
     }
 
     private static String getTickerText(String eventName, String location) {
@@ -1023,6 +1214,10 @@ public class AlertService extends Service {
             + " AND "
             + CalendarContract.CalendarAlerts.END + ">=?";
 
+    private static final String[] MISSED_ALARMS_PROJECTION = new String[] {
+        CalendarContract.CalendarAlerts.ALARM_TIME,
+    };
+
     /**
      * Searches the CalendarAlerts table for alarms that should have fired but
      * have not and then reschedules them. This method can be called at boot
@@ -1034,57 +1229,176 @@ public class AlertService extends Service {
      */
     private static final void rescheduleMissedAlarms(ContentResolver cr, Context context,
             AlarmManagerInterface manager) {
+        // Missed alarms whose times fall within this window of each other are rescheduled
+        // as a single wakeup. They are all in the past, so they fire right away either way,
+        // and one reminder broadcast picks up every alert that is due.
+        long windowMillis = context.getResources().getInteger(
+                R.integer.missed_alarm_window_seconds) * DateUtils.SECOND_IN_MILLIS;
+        rescheduleMissedAlarms(cr, context, manager, System.currentTimeMillis(), windowMillis);
+    }
+
+    /**
+     * Reschedules the missed alarms, with one wakeup for each group of alarm times that
+     * fall within windowMillis of the first alarm of the group. Alerts sharing an alarm
+     * time always fall in the same group.
+     *
+     * @return the number of wakeups scheduled
+     */
+    static int rescheduleMissedAlarms(ContentResolver cr, Context context,
+            AlarmManagerInterface manager, long now, long windowMillis) {
         // Get all the alerts that have been scheduled but have not fired
         // and should have fired by now and are not too old.
-        long now = System.currentTimeMillis();
         long ancient = now - DateUtils.DAY_IN_MILLIS;
-        String[] projection = new String[] {
-            CalendarContract.CalendarAlerts.ALARM_TIME,
+        String[] selectionArgs = new String[] {
+                Long.toString(now), Long.toString(ancient), Long.toString(now)
         };
 
-        // TODO: construct an explicit SQL query so that we can add
-        // "GROUPBY" instead of doing a sort and de-dup
-        Cursor cursor = cr.query(CalendarAlerts.CONTENT_URI, projection,
-                WHERE_RESCHEDULE_MISSED_ALARMS, (new String[] {
-                        Long.toString(now), Long.toString(ancient), Long.toString(now)
-                }), SORT_ORDER_ALARMTIME_ASC);
+        Cursor cursor = cr.query(CalendarAlerts.CONTENT_URI, MISSED_ALARMS_PROJECTION,
+                WHERE_RESCHEDULE_MISSED_ALARMS, selectionArgs, SORT_ORDER_ALARMTIME_ASC);
         if (cursor == null) {
-            return;
+            return 0;
         }
 
         if (DEBUG) {
-            Log.d(TAG, "missed alarms found: " + cursor.getCount());
+            Log.d(TAG, "missed alarm times found: " + cursor.getCount());
         }
 
+        int wakeups = 0;
         try {
-            long alarmTime = -1;
+            long windowStart = -1;
+            long windowEnd = -1;
 
             while (cursor.moveToNext()) {
-                long newAlarmTime = cursor.getLong(0);
-                if (alarmTime != newAlarmTime) {
-                    if (DEBUG) {
-                        Log.w(TAG, "rescheduling missed alarm. alarmTime: " + newAlarmTime);
-                    }
-                    AlertUtils.scheduleAlarm(context, manager, newAlarmTime);
-                    alarmTime = newAlarmTime;
+                long alarmTime = cursor.getLong(0);
+                if (windowStart != -1 && alarmTime - windowStart <= windowMillis) {
+                    windowEnd = alarmTime;
+                    continue;
+                }
+                if (windowStart != -1) {
+                    scheduleMissedAlarm(context, manager, windowStart, windowEnd);
+                    wakeups++;
                 }
+                windowStart = alarmTime;
+                windowEnd = alarmTime;
+            }
+            if (windowStart != -1) {
+                scheduleMissedAlarm(context, manager, windowStart, windowEnd);
+                wakeups++;
             }
         } finally {
             cursor.close();
         }
+        return wakeups;
+    }
+
+    private static void scheduleMissedAlarm(Context context, AlarmManagerInterface manager,
+            long windowStart, long windowEnd) {
+        if (DEBUG) {
+            Log.w(TAG, "rescheduling missed alarms. alarmTime: " + windowStart + " - "
+                    + windowEnd);
+        }
+        // Schedule the latest time in the window so every alert in it is due when the
+        // reminder broadcast is handled.
+        AlertUtils.scheduleAlarm(context, manager, windowEnd);
+    }
+
+    /**
+     * Drops the caches derived from the provider on every provider change, and
+     * decides when the refresh for a burst of changes runs: once the provider
+     * has been quiet for {@link #PROVIDER_CHANGED_QUIET_MS}, capped at
+     * {@link #PROVIDER_CHANGED_MAX_LATENCY_MS} after the first change.
+     */
+    static class ProviderChangeDebouncer {
+        private final ReminderTimeline mTimeline;
+
+        // Uptime of the first provider change since the last refresh, or 0 if no
+        // refresh is pending
+        private long mFirstChange;
+
+        int mChanges;
+        int mRefreshes;
+
+        ProviderChangeDebouncer(ReminderTimeline timeline) {
+            mTimeline = timeline;
+        }
+
+        /**
+         * Records a provider change at uptime {@code now}.
+         *
+         * @return the uptime the pending refresh should be moved to
+         */
+        long onProviderChanged(long now) {
+            mTimeline.invalidate();
+            AlertReceiver.clearNotificationActions();
+            GlobalDismissManager.clearCaches();
+            mChanges++;
+            if (mFirstChange == 0) {
+                mFirstChange = now;
+            }
+            return Math.min(now + PROVIDER_CHANGED_QUIET_MS,
+                    mFirstChange + PROVIDER_CHANGED_MAX_LATENCY_MS);
+        }
+
+        void onRefresh() {
+            mFirstChange = 0;
+            mRefreshes++;
+            if (DEBUG) {
+                Log.d(TAG, "Refreshing after provider changes. Changes: " + mChanges
+                        + ", refreshes: " + mRefreshes + ", coalesced: "
+                        + (mChanges - mRefreshes));
+            }
+        }
+
+        boolean isRefreshPending() {
+            return mFirstChange != 0;
+        }
     }
 
     private final class ServiceHandler extends Handler {
+        private final ProviderChangeDebouncer mDebouncer;
+
+        // Latest start id handled while a refresh is pending
+        private int mPendingStartId;
+
         public ServiceHandler(Looper looper) {
             super(looper);
+            mDebouncer = new ProviderChangeDebouncer(
+                    ReminderTimeline.getInstance(AlertService.this));
         }
 
         @Override
         public void handleMessage(Message msg) {
-            processMessage(msg);
-            // NOTE: We MUST not call stopSelf() directly, since we need to
-            // make sure the wake lock acquired by AlertReceiver is released.
-            AlertReceiver.finishStartingService(AlertService.this, msg.arg1);
+            if (msg.what == MSG_PROVIDER_CHANGED_REFRESH) {
+                mDebouncer.onRefresh();
+                processMessage(msg);
+                AlertReceiver.finishStartingService(AlertService.this, mPendingStartId);
+                return;
+            }
+
+            Bundle bundle = (Bundle) msg.obj;
+            if (Intent.ACTION_PROVIDER_CHANGED.equals(bundle.getString("action"))) {
+                onProviderChanged(bundle);
+            } else {
+                processMessage(msg);
+            }
+
+            if (mDebouncer.isRefreshPending()) {
+                // Keep the service, and the wake lock, until the refresh has run.
+                mPendingStartId = msg.arg1;
+            } else {
+                // NOTE: We MUST not call stopSelf() directly, since we need to
+                // make sure the wake lock acquired by AlertReceiver is released.
+                AlertReceiver.finishStartingService(AlertService.this, msg.arg1);
+            }
+        }
+
+        /**
+         * Pushes the pending refresh back, see {@link ProviderChangeDebouncer}.
+         */
+        private void onProviderChanged(Bundle bundle) {
+            long refreshTime = mDebouncer.onProviderChanged(SystemClock.uptimeMillis());
+            removeMessages(MSG_PROVIDER_CHANGED_REFRESH);
+            sendMessageAtTime(obtainMessage(MSG_PROVIDER_CHANGED_REFRESH, bundle), refreshTime);
         }
     }
 
@@ -17,10 +17,8 @@
 package com.android.calendar.alerts;
 
 import android.app.IntentService;
-import android.app.NotificationManager;
 import android.content.ContentResolver;
 import android.content.ContentValues;
-import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.IBinder;
@@ -91,9 +89,7 @@ public class DismissAlarmsService extends IntentService {
 
         // Remove from notification bar.
         if (notificationId != -1) {
-            NotificationManager nm =
-                    (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-            nm.cancel(notificationId);
+            AlertService.getNotificationMgr(this).cancel(notificationId);
         }
 
         if (showEvent) {
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Remembers which alerts this app has fired, so that other installed calendar apps
+ * can't eat them (see {@link AlertUtils#BYPASS_DB}).
+ *
+ * Alerts are kept in a hash set for constant time lookups and in a queue ordered by
+ * alarm time for expiry. On disk they are an append-only log of fixed-width records
+ * (event id, begin time and alarm time), so firing an alert appends 24 bytes instead
+ * of rewriting every entry. The log is only rewritten when old alerts are expired.
+ */
+class FiredAlertsStore {
+    private static final String TAG = "FiredAlertsStore";
+    private static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "fired_alerts.bin";
+
+    // Three longs: event id, begin time, alarm time
+    private static final int RECORD_SIZE = 3 * 8;
+
+    // How long fired alerts are remembered. This can be any value, since AlertService
+    // also checks for a recent alarm time before ringing the alert.
+    private static final long EXPIRY_MS = DateUtils.DAY_IN_MILLIS;
+
+    // Where fired alerts used to be stored, one key per alert. Imported on first load.
+    private static final String LEGACY_PREFS_NAME = "calendar_alerts";
+    private static final String LEGACY_KEY_PREFIX = "preference_alert_";
+
+    private static final class FiredAlert implements Comparable<FiredAlert> {
+        final long eventId;
+        final long beginTime;
+        final long alarmTime;
+
+        FiredAlert(long eventId, long beginTime, long alarmTime) {
+            this.eventId = eventId;
+            this.beginTime = beginTime;
+            this.alarmTime = alarmTime;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FiredAlert)) {
+                return false;
+            }
+            FiredAlert other = (FiredAlert) o;
+            return eventId == other.eventId && beginTime == other.beginTime
+                    && alarmTime == other.alarmTime;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = eventId;
+            hash = hash * 31 + beginTime;
+            hash = hash * 31 + alarmTime;
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        @Override
+        public int compareTo(FiredAlert another) {
+            return alarmTime < another.alarmTime ? -1 : (alarmTime == another.alarmTime ? 0 : 1);
+        }
+    }
+
+    private static FiredAlertsStore sInstance;
+
+    private final Context mContext;
+    private final File mFile;
+    private final String mLegacyPrefsName;
+
+    // Lazily loaded from the log
+    private HashSet<FiredAlert> mAlerts;
+    private PriorityQueue<FiredAlert> mByAlarmTime;
+
+    private long mLastExpiryTime;
+
+    static synchronized FiredAlertsStore getInstance(Context context) {
+        if (sInstance == null) {
+            context = context.getApplicationContext();
+            sInstance = new FiredAlertsStore(context, new File(context.getFilesDir(), FILE_NAME),
+                    LEGACY_PREFS_NAME);
+        }
+        return sInstance;
+    }
+
+    /* @VisibleForTesting */
+    FiredAlertsStore(Context context, File file, String legacyPrefsName) {
+        mContext = context;
+        mFile = file;
+        mLegacyPrefsName = legacyPrefsName;
+    }
+
+    synchronized boolean contains(long eventId, long beginTime, long alarmTime) {
+        load();
+        return mAlerts.contains(new FiredAlert(eventId, beginTime, alarmTime));
+    }
+
+    synchronized void add(long eventId, long beginTime, long alarmTime) {
+        load();
+        FiredAlert alert = new FiredAlert(eventId, beginTime, alarmTime);
+        if (mAlerts.add(alert)) {
+            mByAlarmTime.add(alert);
+            append(alert);
+        }
+    }
+
+    /**
+     * Forgets the alerts whose alarm time is older than {@link #EXPIRY_MS}. Only does
+     * the work once per expiry interval.
+     */
+    synchronized void expire(long nowTime) {
+        if (nowTime - mLastExpiryTime <= EXPIRY_MS) {
+            return;
+        }
+        mLastExpiryTime = nowTime;
+        load();
+
+        int removed = 0;
+        while (!mByAlarmTime.isEmpty() && nowTime - mByAlarmTime.peek().alarmTime >= EXPIRY_MS) {
+            mAlerts.remove(mByAlarmTime.poll());
+            removed++;
+        }
+        if (removed > 0) {
+            rewrite();
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Expired " + removed + " fired alerts, " + mAlerts.size() + " left");
+        }
+    }
+
+    private void load() {
+        if (mAlerts != null) {
+            return;
+        }
+        mAlerts = new HashSet<FiredAlert>();
+        mByAlarmTime = new PriorityQueue<FiredAlert>();
+
+        // A record cut short by a crash while appending is dropped. It has to go from the
+        // file too, or every record appended after it would be misaligned.
+        boolean torn = false;
+        if (mFile.exists()) {
+            torn = mFile.length() % RECORD_SIZE != 0;
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+                long records = mFile.length() / RECORD_SIZE;
+                for (long i = 0; i < records; i++) {
+                    FiredAlert alert = new FiredAlert(in.readLong(), in.readLong(),
+                            in.readLong());
+                    if (mAlerts.add(alert)) {
+                        mByAlarmTime.add(alert);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read fired alerts", e);
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        if (importLegacyPrefs() > 0 || torn) {
+            rewrite();
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Loaded " + mAlerts.size() + " fired alerts");
+        }
+    }
+
+    /**
+     * Moves the alerts stored as "preference_alert_<eventId>_<begin>_<alarmTime>" keys
+     * in the old SharedPreferences table into this store.
+     */
+    private int importLegacyPrefs() {
+        SharedPreferences prefs = mContext.getSharedPreferences(mLegacyPrefsName,
+                Context.MODE_PRIVATE);
+        Map<String, ?> entries = prefs.getAll();
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        int imported = 0;
+        for (String key : entries.keySet()) {
+            if (!key.startsWith(LEGACY_KEY_PREFIX)) {
+                continue;
+            }
+            String[] parts = key.substring(LEGACY_KEY_PREFIX.length()).split("_");
+            if (parts.length != 3) {
+                continue;
+            }
+            try {
+                FiredAlert alert = new FiredAlert(Long.parseLong(parts[0]),
+                        Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                if (mAlerts.add(alert)) {
+                    mByAlarmTime.add(alert);
+                    imported++;
+                }
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Skipping malformed fired alert key " + key);
+            }
+        }
+        prefs.edit().clear().apply();
+        return imported;
+    }
+
+    private void append(FiredAlert alert) {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mFile, true), RECORD_SIZE));
+            writeRecord(out, alert);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to record fired alert", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Replaces the log with the alerts currently in memory, through a temporary file
+     * so a crash can't leave a half written log behind.
+     */
+    private void rewrite() {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            for (FiredAlert alert : mAlerts) {
+                writeRecord(out, alert);
+            }
+            out.close();
+            out = null;
+            written = tmp.renameTo(mFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to rewrite fired alerts", e);
+        } finally {
+            closeQuietly(out);
+            if (!written) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, FiredAlert alert) throws IOException {
+        out.writeLong(alert.eventId);
+        out.writeLong(alert.beginTime);
+        out.writeLong(alert.alarmTime);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+}
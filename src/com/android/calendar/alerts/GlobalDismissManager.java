@@ -74,6 +74,16 @@ public class GlobalDismissManager extends BroadcastReceiver {
     public static final String ACCOUNT_NAME = KEY_PREFIX + "account_name";
     public static final String DISMISS_INTENT = KEY_PREFIX + "DISMISS";
 
+    // Event and calendar rows rarely move between calendars or accounts, so the lookups
+    // are cached until the provider changes. Guarded by the class lock.
+    private static final HashMap<Long, Long> sEventToCalendar = new HashMap<Long, Long>();
+    private static final HashMap<Long, Pair<String, String>> sCalendarToAccount =
+            new HashMap<Long, Pair<String, String>>();
+    private static final HashMap<Long, String> sEventToSyncId = new HashMap<Long, String>();
+
+    // Accounts we have subscribed to, mirrored from ACCOUNT_KEY. Lazily loaded.
+    private static Set<String> sKnownAccounts;
+
     public static class AlarmId {
         public long mEventId;
         public long mStart;
@@ -122,12 +132,7 @@ public class GlobalDismissManager extends BroadcastReceiver {
         }
 
         // filter out accounts we already know about
-        SharedPreferences prefs =
-                context.getSharedPreferences(GLOBAL_DISMISS_MANAGER_PREFS,
-                        Context.MODE_PRIVATE);
-        Set<String> existingAccounts = prefs.getStringSet(ACCOUNT_KEY,
-                new HashSet<String>());
-        accounts.removeAll(existingAccounts);
+        accounts.removeAll(getKnownAccounts(context));
 
         if (accounts.isEmpty()) {
             // nothing to do, we've already registered all the accounts.
@@ -138,20 +143,52 @@ public class GlobalDismissManager extends BroadcastReceiver {
         CloudNotificationBackplane cnb =
                 ExtensionsFactory.getCloudNotificationBackplane();
         if (cnb.open(context)) {
+            Set<String> subscribed = new HashSet<String>();
             for (String account : accounts) {
                 try {
                     if (cnb.subscribeToGroup(senderId, account, account)) {
-                        existingAccounts.add(account);
+                        subscribed.add(account);
                     }
                 } catch (IOException e) {
                     // Try again, next time the account triggers and alert.
                 }
             }
             cnb.close();
-            prefs.edit()
-            .putStringSet(ACCOUNT_KEY, existingAccounts)
-            .commit();
+            addKnownAccounts(context, subscribed);
+        }
+    }
+
+    private static synchronized Set<String> getKnownAccounts(Context context) {
+        if (sKnownAccounts == null) {
+            SharedPreferences prefs = context.getSharedPreferences(GLOBAL_DISMISS_MANAGER_PREFS,
+                    Context.MODE_PRIVATE);
+            // Copy, since the set returned by the preferences must not be modified.
+            sKnownAccounts = new HashSet<String>(prefs.getStringSet(ACCOUNT_KEY,
+                    new HashSet<String>()));
+        }
+        return new HashSet<String>(sKnownAccounts);
+    }
+
+    private static synchronized void addKnownAccounts(Context context, Set<String> accounts) {
+        if (accounts.isEmpty()) {
+            return;
         }
+        getKnownAccounts(context);
+        sKnownAccounts.addAll(accounts);
+        context.getSharedPreferences(GLOBAL_DISMISS_MANAGER_PREFS, Context.MODE_PRIVATE)
+                .edit()
+                .putStringSet(ACCOUNT_KEY, new HashSet<String>(sKnownAccounts))
+                .apply();
+    }
+
+    /**
+     * Forgets the cached event, calendar and account lookups. Called when the provider
+     * reports a change, since events may have been moved or deleted.
+     */
+    static synchronized void clearCaches() {
+        sEventToCalendar.clear();
+        sCalendarToAccount.clear();
+        sEventToSyncId.clear();
     }
 
     /**
@@ -194,26 +231,14 @@ public class GlobalDismissManager extends BroadcastReceiver {
         // TODO group by account to reduce queries
         Map<String, String> syncIdToAccount = new HashMap<String, String>();
         Map<Long, String> eventIdToSyncId = new HashMap<Long, String>();
-        ContentResolver resolver = context.getContentResolver();
         for (Long eventId : eventsToCalendars.keySet()) {
             Long calendar = eventsToCalendars.get(eventId);
             Pair<String, String> account = calendarsToAccounts.get(calendar);
-            if (GOOGLE_ACCOUNT_TYPE.equals(account.first)) {
-                Uri uri = asSync(Events.CONTENT_URI, account.first, account.second);
-                Cursor cursor = resolver.query(uri, EVENT_SYNC_PROJECTION,
-                        Events._ID + " = " + eventId, null, null);
-                try {
-                    cursor.moveToPosition(-1);
-                    int sync_id_idx = cursor.getColumnIndex(Events._SYNC_ID);
-                    if (sync_id_idx != -1) {
-                        while (cursor.moveToNext()) {
-                            String syncId = cursor.getString(sync_id_idx);
-                            syncIdToAccount.put(syncId, account.second);
-                            eventIdToSyncId.put(eventId, syncId);
-                        }
-                    }
-                } finally {
-                    cursor.close();
+            if (account != null && GOOGLE_ACCOUNT_TYPE.equals(account.first)) {
+                String syncId = lookupSyncId(context, eventId, account);
+                if (syncId != null) {
+                    syncIdToAccount.put(syncId, account.second);
+                    eventIdToSyncId.put(eventId, syncId);
                 }
             }
         }
@@ -243,6 +268,30 @@ public class GlobalDismissManager extends BroadcastReceiver {
         }
     }
 
+    private static synchronized String lookupSyncId(Context context, long eventId,
+            Pair<String, String> account) {
+        if (sEventToSyncId.containsKey(eventId)) {
+            return sEventToSyncId.get(eventId);
+        }
+        String syncId = null;
+        Uri uri = asSync(Events.CONTENT_URI, account.first, account.second);
+        Cursor cursor = context.getContentResolver().query(uri, EVENT_SYNC_PROJECTION,
+                Events._ID + " = " + eventId, null, null);
+        try {
+            cursor.moveToPosition(-1);
+            int sync_id_idx = cursor.getColumnIndex(Events._SYNC_ID);
+            if (sync_id_idx != -1) {
+                while (cursor.moveToNext()) {
+                    syncId = cursor.getString(sync_id_idx);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        sEventToSyncId.put(eventId, syncId);
+        return syncId;
+    }
+
     private static Uri asSync(Uri uri, String accountType, String account) {
         return uri
                 .buildUpon()
@@ -280,11 +329,24 @@ public class GlobalDismissManager extends BroadcastReceiver {
      * @param eventIds Event row IDs to query.
      * @return a map from event to calendar
      */
-    private static Map<Long, Long> lookupEventToCalendarMap(final Context context,
-            final Set<Long> eventIds) {
+    private static synchronized Map<Long, Long> lookupEventToCalendarMap(
+            final Context context, final Set<Long> eventIds) {
         Map<Long, Long> eventsToCalendars = new HashMap<Long, Long>();
+        Set<Long> missing = new HashSet<Long>();
+        for (Long eventId : eventIds) {
+            Long calendar = sEventToCalendar.get(eventId);
+            if (calendar != null) {
+                eventsToCalendars.put(eventId, calendar);
+            } else {
+                missing.add(eventId);
+            }
+        }
+        if (missing.isEmpty()) {
+            return eventsToCalendars;
+        }
+
         ContentResolver resolver = context.getContentResolver();
-        String eventSelection = buildMultipleIdQuery(eventIds, Events._ID);
+        String eventSelection = buildMultipleIdQuery(missing, Events._ID);
         Cursor eventCursor = resolver.query(Events.CONTENT_URI, EVENT_PROJECTION,
                 eventSelection, null, null);
         try {
@@ -293,8 +355,10 @@ public class GlobalDismissManager extends BroadcastReceiver {
             int event_id_idx = eventCursor.getColumnIndex(Events._ID);
             if (calendar_id_idx != -1 && event_id_idx != -1) {
                 while (eventCursor.moveToNext()) {
-                    eventsToCalendars.put(eventCursor.getLong(event_id_idx),
-                            eventCursor.getLong(calendar_id_idx));
+                    long eventId = eventCursor.getLong(event_id_idx);
+                    long calendar = eventCursor.getLong(calendar_id_idx);
+                    eventsToCalendars.put(eventId, calendar);
+                    sEventToCalendar.put(eventId, calendar);
                 }
             }
         } finally {
@@ -308,13 +372,25 @@ public class GlobalDismissManager extends BroadcastReceiver {
      * @param calendars Calendar row IDs to query.
      * @return a map from Calendar to a pair (account type, account name)
      */
-    private static Map<Long, Pair<String, String>> lookupCalendarToAccountMap(final Context context,
-            Set<Long> calendars) {
+    private static synchronized Map<Long, Pair<String, String>> lookupCalendarToAccountMap(
+            final Context context, Set<Long> calendars) {
         Map<Long, Pair<String, String>> calendarsToAccounts =
                 new HashMap<Long, Pair<String, String>>();
-        ;
+        Set<Long> missing = new HashSet<Long>();
+        for (Long calendar : calendars) {
+            Pair<String, String> account = sCalendarToAccount.get(calendar);
+            if (account != null) {
+                calendarsToAccounts.put(calendar, account);
+            } else {
+                missing.add(calendar);
+            }
+        }
+        if (missing.isEmpty()) {
+            return calendarsToAccounts;
+        }
+
         ContentResolver resolver = context.getContentResolver();
-        String calendarSelection = buildMultipleIdQuery(calendars, Calendars._ID);
+        String calendarSelection = buildMultipleIdQuery(missing, Calendars._ID);
         Cursor calendarCursor = resolver.query(Calendars.CONTENT_URI, CALENDARS_PROJECTION,
                 calendarSelection, null, null);
         try {
@@ -327,7 +403,9 @@ public class GlobalDismissManager extends BroadcastReceiver {
                     Long id = calendarCursor.getLong(calendar_id_idx);
                     String name = calendarCursor.getString(account_name_idx);
                     String type = calendarCursor.getString(account_type_idx);
-                    calendarsToAccounts.put(id, new Pair<String, String>(type, name));
+                    Pair<String, String> account = new Pair<String, String>(type, name);
+                    calendarsToAccounts.put(id, account);
+                    sCalendarToAccount.put(id, account);
                 }
             }
         } finally {
@@ -22,6 +22,23 @@ public abstract class NotificationMgr {
     public abstract void notify(int id, NotificationWrapper notification);
     public abstract void cancel(int id);
 
+    /**
+     * Posts a notification whose content is summed up by {@code fingerprint}, see
+     * {@link #isShowing}.
+     */
+    public void notify(int id, long fingerprint, NotificationWrapper notification) {
+        notify(id, notification);
+    }
+
+    /**
+     * Returns whether the notification last posted under this id had the given
+     * fingerprint and is still showing, in which case it doesn't need to be posted
+     * again. Managers that don't keep track of posted notifications always return false.
+     */
+    public boolean isShowing(int id, long fingerprint) {
+        return false;
+    }
+
     /**
      * Don't actually use the notification framework's cancelAll since the SyncAdapter
      * might post notifications and we don't want to affect those.
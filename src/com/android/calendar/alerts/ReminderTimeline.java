@@ -0,0 +1,631 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.provider.CalendarContract.Events;
+import android.provider.CalendarContract.Instances;
+import android.provider.CalendarContract.Reminders;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.android.calendar.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * App-private table of upcoming reminder fire times, sorted by alarm time, so
+ * that finding the next alarm is a read of the head of the table instead of an
+ * instance expansion plus a reminders query per batch of events.
+ *
+ * The table covers the instances beginning between now and a window end a
+ * little over {@link AlarmScheduler#EVENT_LOOKAHEAD_WINDOW_MS} ahead. After a
+ * provider change the events that can have an instance in the window, and the
+ * reminders of their event id ranges, are scanned once (without instance
+ * expansion), and only the events whose fingerprint changed have their
+ * instances queried again. When the window runs short it is extended by
+ * querying the new days only. Everything is rebuilt when the time zone or the
+ * system time changes. Whether a provider change is pending is kept with the
+ * table, so a new process doesn't rescan the provider for nothing.
+ */
+class ReminderTimeline {
+    private static final String TAG = "ReminderTimeline";
+    private static final boolean DEBUG = false;
+
+    private static final String DATABASE_NAME = "reminder_timeline.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE_ALARMS = "alarms";
+    private static final String TABLE_EVENTS = "events";
+    private static final String TABLE_STATE = "state";
+
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_EVENT_ID = "event_id";
+    private static final String COLUMN_BEGIN = "begin";
+    private static final String COLUMN_ALARM_TIME = "alarm_time";
+    private static final String COLUMN_HASH = "hash";
+    private static final String COLUMN_ORIGINAL_ID = "original_id";
+    private static final String COLUMN_KEY = "key";
+    private static final String COLUMN_VALUE = "value";
+
+    private static final String STATE_TIMEZONE = "timezone";
+    private static final String STATE_WINDOW_END = "window_end";
+    private static final String STATE_STALE = "stale";
+
+    // How far past the lookahead window the table is filled, so that it only
+    // has to be extended about once a day.
+    private static final long WINDOW_SLACK_MS = DateUtils.DAY_IN_MILLIS;
+
+    // Beyond this many changed events, requerying all instances at once is
+    // cheaper than querying them by id.
+    private static final int MAX_INCREMENTAL_EVENTS = 100;
+
+    private static final String[] EVENTS_PROJECTION = new String[] {
+            Events._ID,
+            Events.ORIGINAL_ID,
+            Events.DTSTART,
+            Events.DTEND,
+            Events.DURATION,
+            Events.ALL_DAY,
+            Events.EVENT_TIMEZONE,
+            Events.RRULE,
+            Events.RDATE,
+            Events.EXRULE,
+            Events.EXDATE,
+            Events.ORIGINAL_INSTANCE_TIME,
+    };
+    private static final int EVENTS_INDEX_ID = 0;
+    private static final int EVENTS_INDEX_ORIGINAL_ID = 1;
+
+    // Events that haven't ended and start before the end of the window
+    private static final String EVENTS_WHERE = Events.VISIBLE + "=1 AND " + Events.DELETED
+            + "=0 AND (" + Events.LAST_DATE + " IS NULL OR " + Events.LAST_DATE + ">=?) AND "
+            + Events.DTSTART + "<=?";
+
+    private static final String[] REMINDERS_PROJECTION = new String[] {
+            Reminders.EVENT_ID,
+            Reminders.MINUTES,
+    };
+    private static final int REMINDERS_INDEX_EVENT_ID = 0;
+    private static final int REMINDERS_INDEX_MINUTES = 1;
+
+    private static final String REMINDERS_WHERE = Reminders.METHOD + "="
+            + Reminders.METHOD_ALERT + " AND " + Reminders.EVENT_ID + ">=? AND "
+            + Reminders.EVENT_ID + "<=?";
+
+    private static final String[] INSTANCES_PROJECTION = new String[] {
+            Instances.EVENT_ID,
+            Instances.BEGIN,
+            Instances.ALL_DAY,
+    };
+    private static final int INSTANCES_INDEX_EVENT_ID = 0;
+    private static final int INSTANCES_INDEX_BEGIN = 1;
+    private static final int INSTANCES_INDEX_ALL_DAY = 2;
+
+    private static final String INSTANCES_WHERE = Events.VISIBLE + "=1";
+
+    private static final String INSTANCES_RANGE_WHERE = INSTANCES_WHERE + " AND "
+            + Instances.EVENT_ID + ">=? AND " + Instances.EVENT_ID + "<=?";
+
+    /**
+     * The next reminder to fire.
+     */
+    static class Alarm {
+        final long eventId;
+        final long alarmTime;
+
+        Alarm(long eventId, long alarmTime) {
+            this.eventId = eventId;
+            this.alarmTime = alarmTime;
+        }
+    }
+
+    /**
+     * The reminder minutes of events with reminders, sorted by event id so they
+     * can be joined with an instances cursor sorted the same way in one pass.
+     */
+    static class EventMinutes {
+        long[] mIds = new long[64];
+        int[][] mMinutes = new int[64][];
+        int mSize;
+
+        /**
+         * Adds an event, which must have a larger id than the ones added before.
+         */
+        void add(long eventId, int[] minutes) {
+            if (mSize == mIds.length) {
+                mIds = Arrays.copyOf(mIds, mSize * 2);
+                mMinutes = Arrays.copyOf(mMinutes, mSize * 2);
+            }
+            mIds[mSize] = eventId;
+            mMinutes[mSize] = minutes;
+            mSize++;
+        }
+
+        /**
+         * Returns the events whose ids are in {@code eventIds}.
+         */
+        EventMinutes subset(HashSet<Long> eventIds) {
+            EventMinutes subset = new EventMinutes();
+            for (int i = 0; i < mSize; i++) {
+                if (eventIds.contains(mIds[i])) {
+                    subset.add(mIds[i], mMinutes[i]);
+                }
+            }
+            return subset;
+        }
+    }
+
+    private static ReminderTimeline sInstance;
+
+    private final Context mContext;
+    private final TimelineOpenHelper mOpenHelper;
+
+    // Guarded by this. Whether a provider change came in since the table was
+    // last brought up to date, or null until read from the state table.
+    private Boolean mStale;
+    private boolean mRebuildPending = false;
+
+    static synchronized ReminderTimeline getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ReminderTimeline(context.getApplicationContext(), DATABASE_NAME);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param databaseName the file of the table, or null to keep it in memory
+     */
+    // @VisibleForTesting
+    ReminderTimeline(Context context, String databaseName) {
+        mContext = context;
+        mOpenHelper = new TimelineOpenHelper(context, databaseName);
+    }
+
+    /**
+     * Called when the provider reports a change. The changed events are found
+     * and updated on the next call to {@link #getNextAlarm}.
+     */
+    synchronized void invalidate() {
+        if (mStale != null && mStale) {
+            return;
+        }
+        mStale = true;
+        try {
+            writeState(mOpenHelper.getWritableDatabase(), STATE_STALE, "1");
+        } catch (RuntimeException e) {
+            // The next getNextAlarm() most likely fails too and falls back to
+            // querying the provider.
+            Log.e(TAG, "Unable to mark the timeline stale", e);
+        }
+    }
+
+    /**
+     * Called when the system time is set. The whole table is rebuilt on the
+     * next call to {@link #getNextAlarm}.
+     */
+    synchronized void requestRebuild() {
+        mRebuildPending = true;
+    }
+
+    /**
+     * Brings the table up to date if needed and returns the first reminder
+     * firing after {@code currentMillis} for an instance beginning within the
+     * lookahead window, or null if there is none. Queries the provider, so it
+     * must not be called on the UI thread.
+     *
+     * @throws RuntimeException if the table or the provider cannot be read
+     */
+    synchronized Alarm getNextAlarm(long currentMillis) {
+        long startTime = System.currentTimeMillis();
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        String timezone = Time.getCurrentTimezone();
+        boolean rebuild = mRebuildPending;
+        boolean updated = false;
+
+        db.beginTransaction();
+        try {
+            long windowEnd = 0;
+            if (timezone.equals(readState(db, STATE_TIMEZONE))) {
+                String value = readState(db, STATE_WINDOW_END);
+                windowEnd = value != null ? Long.parseLong(value) : 0;
+            }
+            if (windowEnd < currentMillis) {
+                // Never built, built in another time zone, or too old to extend.
+                rebuild = true;
+            }
+
+            // Events only enter the scan once the window reaches their start, so
+            // extending the window rescans too.
+            long newWindowEnd = currentMillis + AlarmScheduler.EVENT_LOOKAHEAD_WINDOW_MS
+                    + WINDOW_SLACK_MS;
+            boolean extend = !rebuild
+                    && windowEnd - currentMillis < AlarmScheduler.EVENT_LOOKAHEAD_WINDOW_MS;
+            boolean stale = mStale != null ? mStale : !"0".equals(readState(db, STATE_STALE));
+            if (rebuild || extend || stale) {
+                EventMinutes minutes = new EventMinutes();
+                HashSet<Long> changed = syncEvents(db, currentMillis, newWindowEnd, rebuild,
+                        minutes);
+                if (rebuild) {
+                    db.delete(TABLE_ALARMS, null, null);
+                    addInstances(db, minutes, false, currentMillis, newWindowEnd);
+                    windowEnd = newWindowEnd;
+                } else if (changed.size() > MAX_INCREMENTAL_EVENTS) {
+                    db.delete(TABLE_ALARMS, null, null);
+                    addInstances(db, minutes, false, currentMillis, windowEnd);
+                } else if (!changed.isEmpty()) {
+                    deleteAlarms(db, changed);
+                    addInstances(db, minutes.subset(changed), true, currentMillis, windowEnd);
+                }
+                if (extend) {
+                    addInstances(db, minutes, false, windowEnd + 1, newWindowEnd);
+                    db.delete(TABLE_ALARMS, COLUMN_BEGIN + "<?",
+                            new String[] { Long.toString(currentMillis) });
+                    windowEnd = newWindowEnd;
+                }
+                if (DEBUG) {
+                    Log.d(TAG, (rebuild ? "Rebuilt" : "Updated") + " with " + changed.size()
+                            + " changed events" + (extend ? ", extended" : ""));
+                }
+            }
+
+            writeState(db, STATE_TIMEZONE, timezone);
+            writeState(db, STATE_WINDOW_END, Long.toString(windowEnd));
+            writeState(db, STATE_STALE, "0");
+            db.setTransactionSuccessful();
+            updated = true;
+        } finally {
+            db.endTransaction();
+        }
+        if (updated) {
+            mStale = false;
+            mRebuildPending = false;
+        }
+
+        Alarm alarm = null;
+        Cursor cursor = db.query(TABLE_ALARMS,
+                new String[] { COLUMN_EVENT_ID, COLUMN_ALARM_TIME },
+                COLUMN_ALARM_TIME + ">? AND " + COLUMN_BEGIN + ">=? AND " + COLUMN_BEGIN + "<=?",
+                new String[] {
+                        Long.toString(currentMillis),
+                        Long.toString(currentMillis),
+                        Long.toString(currentMillis + AlarmScheduler.EVENT_LOOKAHEAD_WINDOW_MS)
+                }, null, null, COLUMN_ALARM_TIME + " ASC", "1");
+        try {
+            if (cursor.moveToFirst()) {
+                alarm = new Alarm(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "getNextAlarm took " + (System.currentTimeMillis() - startTime) + "ms");
+        }
+        return alarm;
+    }
+
+    /**
+     * Scans the visible events that haven't ended and start before
+     * {@code windowEnd}, and the reminders of their event id ranges, both
+     * sorted by event id, and rewrites the rows of the events table whose
+     * fingerprint changed. Fills {@code allMinutes} with the reminder
+     * minutes of every event scanned that has reminders.
+     *
+     * @return the ids of the events whose instances or reminders may have
+     *         changed, including removed events and the recurring events of
+     *         changed exceptions
+     */
+    private HashSet<Long> syncEvents(SQLiteDatabase db, long currentMillis, long windowEnd,
+            boolean rebuild, EventMinutes allMinutes) {
+        ContentResolver cr = mContext.getContentResolver();
+        HashSet<Long> changed = new HashSet<Long>();
+        HashMap<Long, Long> known;
+        if (rebuild) {
+            db.delete(TABLE_EVENTS, null, null);
+            known = new HashMap<Long, Long>();
+        } else {
+            known = loadFingerprints(db);
+        }
+
+        // All-day events start and end at UTC midnight, so leave a day of slack.
+        Cursor events = cr.query(Events.CONTENT_URI, EVENTS_PROJECTION, EVENTS_WHERE,
+                new String[] {
+                        Long.toString(currentMillis - DateUtils.DAY_IN_MILLIS),
+                        Long.toString(windowEnd + DateUtils.DAY_IN_MILLIS)
+                }, Events._ID + " ASC");
+        if (events == null) {
+            throw new IllegalStateException("Events query failed");
+        }
+        try {
+            ContentValues values = new ContentValues();
+            String[] fields = new String[EVENTS_PROJECTION.length + 1];
+            StringBuilder minutes = new StringBuilder();
+            ArrayList<Integer> eventMinutes = new ArrayList<Integer>();
+            int rangeStart = 0;
+            while (rangeStart < events.getCount()) {
+                int rangeEnd = AlarmScheduler.findEventIdRangeEnd(events, rangeStart,
+                        EVENTS_INDEX_ID);
+                events.moveToPosition(rangeEnd - 1);
+                String maxEventId = events.getString(EVENTS_INDEX_ID);
+                events.moveToPosition(rangeStart);
+                String minEventId = events.getString(EVENTS_INDEX_ID);
+                Cursor reminders = cr.query(Reminders.CONTENT_URI, REMINDERS_PROJECTION,
+                        REMINDERS_WHERE, new String[] { minEventId, maxEventId },
+                        Reminders.EVENT_ID + " ASC");
+                if (reminders == null) {
+                    throw new IllegalStateException("Reminders query failed");
+                }
+                try {
+                    boolean remindersLeft = reminders.moveToFirst();
+                    for (int position = rangeStart; position < rangeEnd; position++) {
+                        events.moveToPosition(position);
+                        long eventId = events.getLong(EVENTS_INDEX_ID);
+
+                        // The reminders of this event are the next run in the reminders
+                        // cursor.
+                        eventMinutes.clear();
+                        while (remindersLeft
+                                && reminders.getLong(REMINDERS_INDEX_EVENT_ID) <= eventId) {
+                            if (reminders.getLong(REMINDERS_INDEX_EVENT_ID) == eventId) {
+                                eventMinutes.add(reminders.getInt(REMINDERS_INDEX_MINUTES));
+                            }
+                            remindersLeft = reminders.moveToNext();
+                        }
+                        int[] minutesArray = new int[eventMinutes.size()];
+                        minutes.setLength(0);
+                        for (int i = 0; i < minutesArray.length; i++) {
+                            minutesArray[i] = eventMinutes.get(i);
+                            if (i > 0) {
+                                minutes.append(',');
+                            }
+                            minutes.append(minutesArray[i]);
+                        }
+                        if (minutesArray.length > 0) {
+                            allMinutes.add(eventId, minutesArray);
+                        }
+
+                        for (int i = 0; i < EVENTS_PROJECTION.length; i++) {
+                            fields[i] = events.getString(i);
+                        }
+                        fields[EVENTS_PROJECTION.length] = minutes.toString();
+                        long hash = Utils.fingerprint(fields);
+                        Long oldHash = known.remove(eventId);
+                        if (oldHash != null && oldHash == hash) {
+                            continue;
+                        }
+
+                        changed.add(eventId);
+                        Long originalId = null;
+                        if (!events.isNull(EVENTS_INDEX_ORIGINAL_ID)) {
+                            originalId = events.getLong(EVENTS_INDEX_ORIGINAL_ID);
+                            changed.add(originalId);
+                        }
+                        values.clear();
+                        values.put(COLUMN_ID, eventId);
+                        values.put(COLUMN_HASH, hash);
+                        values.put(COLUMN_ORIGINAL_ID, originalId);
+                        db.replace(TABLE_EVENTS, null, values);
+                    }
+                } finally {
+                    reminders.close();
+                }
+                rangeStart = rangeEnd;
+            }
+        } finally {
+            events.close();
+        }
+
+        // Whatever is left was deleted, hidden or has ended since the last scan.
+        Iterator<Long> it = known.keySet().iterator();
+        while (it.hasNext()) {
+            long eventId = it.next();
+            String[] whereArgs = new String[] { Long.toString(eventId) };
+            Cursor cursor = db.query(TABLE_EVENTS, new String[] { COLUMN_ORIGINAL_ID },
+                    COLUMN_ID + "=?", whereArgs, null, null, null);
+            try {
+                if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                    changed.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            db.delete(TABLE_EVENTS, COLUMN_ID + "=?", whereArgs);
+            changed.add(eventId);
+        }
+        return changed;
+    }
+
+    /**
+     * Queries the instances beginning between {@code rangeStart} and
+     * {@code rangeEnd} (local time, inclusive) and adds a row for each
+     * reminder of the events in {@code minutes}. With {@code byRange} set,
+     * only the instances of those events' id ranges are queried, split
+     * wherever the ids are more than {@link AlarmScheduler#EVENT_ID_RANGE_MAX_GAP}
+     * apart; otherwise all instances in the time range are.
+     */
+    private void addInstances(SQLiteDatabase db, EventMinutes minutes, boolean byRange,
+            long rangeStart, long rangeEnd) {
+        if (minutes.mSize == 0) {
+            return;
+        }
+        if (!byRange) {
+            addInstances(db, minutes, 0, minutes.mSize, null, rangeStart, rangeEnd);
+            return;
+        }
+        int first = 0;
+        while (first < minutes.mSize) {
+            int last = first;
+            while (last + 1 < minutes.mSize && minutes.mIds[last + 1] - minutes.mIds[last]
+                    <= AlarmScheduler.EVENT_ID_RANGE_MAX_GAP) {
+                last++;
+            }
+            addInstances(db, minutes, first, last + 1, new String[] {
+                    Long.toString(minutes.mIds[first]), Long.toString(minutes.mIds[last])
+            }, rangeStart, rangeEnd);
+            first = last + 1;
+        }
+    }
+
+    /**
+     * Adds the alarms of the events at indexes {@code from} to {@code to}
+     * (exclusive) of {@code minutes}, walking them along the instances cursor,
+     * which is sorted by event id too.
+     *
+     * @param idRange the first and last event id to query, or null for all
+     */
+    private void addInstances(SQLiteDatabase db, EventMinutes minutes, int from, int to,
+            String[] idRange, long rangeStart, long rangeEnd) {
+        // Expand the range by a day on either end to account for all-day events,
+        // which are stored in UTC.
+        Uri.Builder builder = Instances.CONTENT_URI.buildUpon();
+        ContentUris.appendId(builder, rangeStart - DateUtils.DAY_IN_MILLIS);
+        ContentUris.appendId(builder, rangeEnd + DateUtils.DAY_IN_MILLIS);
+
+        Cursor cursor = mContext.getContentResolver().query(builder.build(),
+                INSTANCES_PROJECTION, idRange == null ? INSTANCES_WHERE : INSTANCES_RANGE_WHERE,
+                idRange, Instances.EVENT_ID + " ASC");
+        if (cursor == null) {
+            throw new IllegalStateException("Instances query failed");
+        }
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_ALARMS + " ("
+                + COLUMN_EVENT_ID + ", " + COLUMN_BEGIN + ", " + COLUMN_ALARM_TIME
+                + ") VALUES (?, ?, ?)");
+        try {
+            Time timeObj = new Time();
+            String timezone = Time.getCurrentTimezone();
+            int next = from;
+            while (next < to && cursor.moveToNext()) {
+                long eventId = cursor.getLong(INSTANCES_INDEX_EVENT_ID);
+                // Skip the events without instances in the range.
+                while (next < to && minutes.mIds[next] < eventId) {
+                    next++;
+                }
+                if (next == to || minutes.mIds[next] != eventId) {
+                    continue;
+                }
+                long begin = cursor.getLong(INSTANCES_INDEX_BEGIN);
+                if (cursor.getInt(INSTANCES_INDEX_ALL_DAY) != 0) {
+                    begin = Utils.convertAlldayUtcToLocal(timeObj, begin, timezone);
+                }
+                if (begin < rangeStart || begin > rangeEnd) {
+                    continue;
+                }
+                for (int reminderMinutes : minutes.mMinutes[next]) {
+                    insert.bindLong(1, eventId);
+                    insert.bindLong(2, begin);
+                    insert.bindLong(3, begin - reminderMinutes * DateUtils.MINUTE_IN_MILLIS);
+                    insert.executeInsert();
+                }
+            }
+        } finally {
+            insert.close();
+            cursor.close();
+        }
+    }
+
+    private static void deleteAlarms(SQLiteDatabase db, HashSet<Long> eventIds) {
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_ALARMS + " WHERE "
+                + COLUMN_EVENT_ID + "=?");
+        try {
+            for (long eventId : eventIds) {
+                delete.bindLong(1, eventId);
+                delete.execute();
+            }
+        } finally {
+            delete.close();
+        }
+    }
+
+    private static HashMap<Long, Long> loadFingerprints(SQLiteDatabase db) {
+        HashMap<Long, Long> known = new HashMap<Long, Long>();
+        Cursor cursor = db.query(TABLE_EVENTS, new String[] { COLUMN_ID, COLUMN_HASH },
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                known.put(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return known;
+    }
+
+    private static String readState(SQLiteDatabase db, String key) {
+        Cursor cursor = db.query(TABLE_STATE, new String[] { COLUMN_VALUE }, COLUMN_KEY + "=?",
+                new String[] { key }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void writeState(SQLiteDatabase db, String key, String value) {
+        ContentValues values = new ContentValues(2);
+        values.put(COLUMN_KEY, key);
+        values.put(COLUMN_VALUE, value);
+        db.replace(TABLE_STATE, null, values);
+    }
+
+    private static class TimelineOpenHelper extends SQLiteOpenHelper {
+        public TimelineOpenHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_ALARMS + " ("
+                    + COLUMN_EVENT_ID + " INTEGER NOT NULL, "
+                    + COLUMN_BEGIN + " INTEGER NOT NULL, "
+                    + COLUMN_ALARM_TIME + " INTEGER NOT NULL)");
+            db.execSQL("CREATE INDEX " + TABLE_ALARMS + "_" + COLUMN_ALARM_TIME + " ON "
+                    + TABLE_ALARMS + " (" + COLUMN_ALARM_TIME + ")");
+            db.execSQL("CREATE INDEX " + TABLE_ALARMS + "_" + COLUMN_EVENT_ID + " ON "
+                    + TABLE_ALARMS + " (" + COLUMN_EVENT_ID + ")");
+            db.execSQL("CREATE TABLE " + TABLE_EVENTS + " ("
+                    + COLUMN_ID + " INTEGER PRIMARY KEY, "
+                    + COLUMN_HASH + " INTEGER NOT NULL, "
+                    + COLUMN_ORIGINAL_ID + " INTEGER)");
+            db.execSQL("CREATE TABLE " + TABLE_STATE + " ("
+                    + COLUMN_KEY + " TEXT PRIMARY KEY, "
+                    + COLUMN_VALUE + " TEXT)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // The timeline is derived data; just rebuild it.
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_ALARMS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_EVENTS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_STATE);
+            onCreate(db);
+        }
+    }
+}
@@ -17,10 +17,8 @@
 package com.android.calendar.alerts;
 
 import android.app.IntentService;
-import android.app.NotificationManager;
 import android.content.ContentResolver;
 import android.content.ContentValues;
-import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.IBinder;
@@ -66,9 +64,7 @@ public class SnoozeAlarmsService extends IntentService {
 
             // Remove notification
             if (notificationId != AlertUtils.EXPIRED_GROUP_NOTIFICATION_ID) {
-                NotificationManager nm =
-                    (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-                nm.cancel(notificationId);
+                AlertService.getNotificationMgr(this).cancel(notificationId);
             }
 
             // Dismiss current alarm
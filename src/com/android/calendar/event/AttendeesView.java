@@ -28,12 +28,15 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.ColorMatrix;
 import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Paint;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.CalendarContract.Attendees;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Identity;
@@ -44,6 +47,7 @@ import android.text.TextUtils;
 import android.text.util.Rfc822Token;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.ImageButton;
@@ -54,6 +58,8 @@ import android.widget.TextView;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 
 public class AttendeesView extends LinearLayout implements View.OnClickListener {
     private static final String TAG = "AttendeesView";
@@ -62,6 +68,7 @@ public class AttendeesView extends LinearLayout implements View.OnClickListener
     private static final int EMAIL_PROJECTION_CONTACT_ID_INDEX = 0;
     private static final int EMAIL_PROJECTION_CONTACT_LOOKUP_INDEX = 1;
     private static final int EMAIL_PROJECTION_PHOTO_ID_INDEX = 2;
+    private static final int EMAIL_PROJECTION_ADDRESS_INDEX = 3;
 
     private static final String[] PROJECTION = new String[] {
         RawContacts.CONTACT_ID,     // 0
@@ -69,6 +76,58 @@ public class AttendeesView extends LinearLayout implements View.OnClickListener
         Contacts.PHOTO_ID,          // 2
     };
 
+    private static final String[] EMAIL_LOOKUP_PROJECTION = new String[] {
+        Data.CONTACT_ID,            // 0
+        Data.LOOKUP_KEY,            // 1
+        Data.PHOTO_ID,              // 2
+        Email.ADDRESS,              // 3
+    };
+
+    // Attendees are looked up by email this many at a time, well below SQLite's limit
+    // on query arguments.
+    private static final int LOOKUP_BATCH_SIZE = 50;
+    private static final int CONTACT_CACHE_SIZE = 500;
+
+    /**
+     * What an email address resolved to in the contacts.
+     */
+    private static final class ContactInfo {
+        static final ContactInfo NOT_FOUND = new ContactInfo(0, null, 0);
+
+        final long mContactId;
+        final String mLookupKey;
+        final long mPhotoId;
+
+        ContactInfo(long contactId, String lookupKey, long photoId) {
+            mContactId = contactId;
+            mLookupKey = lookupKey;
+            mPhotoId = photoId;
+        }
+    }
+
+    /**
+     * The attendees of one batched email lookup, with the update count each one's
+     * result is for.
+     */
+    private static final class LookupBatch {
+        final ArrayList<AttendeeItem> mItems;
+        final String[] mKeys;
+        final int[] mUpdateCounts;
+
+        LookupBatch(List<AttendeeItem> items) {
+            mItems = new ArrayList<AttendeeItem>(items);
+            mKeys = new String[items.size()];
+            mUpdateCounts = new int[items.size()];
+            for (int i = 0; i < mKeys.length; i++) {
+                mKeys[i] = getCacheKey(mItems.get(i).mAttendee.mEmail);
+                mUpdateCounts[i] = mItems.get(i).mUpdateCounts + 1;
+            }
+        }
+    }
+
+    // Contacts found for email addresses, shared by all events. Main thread only.
+    private static LruCache<String, ContactInfo> sContactCache;
+
     private final Context mContext;
     private final LayoutInflater mInflater;
     private final PresenceQueryHandler mPresenceQueryHandler;
@@ -99,6 +158,16 @@ public class AttendeesView extends LinearLayout implements View.OnClickListener
     // Cache for loaded photos
     HashMap<String, Drawable> mRecycledPhotos;
 
+    // Attendees waiting to be looked up by email, sent together by mFlushLookups
+    private final ArrayList<AttendeeItem> mPendingLookups = new ArrayList<AttendeeItem>();
+    private final Handler mHandler = new Handler();
+    private final Runnable mFlushLookups = new Runnable() {
+        @Override
+        public void run() {
+            flushLookups();
+        }
+    };
+
     public AttendeesView(Context context, AttributeSet attrs) {
         super(context, attrs);
         mContext = context;
@@ -270,6 +339,8 @@ public class AttendeesView extends LinearLayout implements View.OnClickListener
             mRecycledPhotos.put(attendeeItem.mAttendee.mEmail, attendeeItem.mBadge);
         }
 
+        mPendingLookups.clear();
+        mHandler.removeCallbacks(mFlushLookups);
         removeAllViews();
         mYes = 0;
         mNo = 0;
@@ -347,23 +418,147 @@ public class AttendeesView extends LinearLayout implements View.OnClickListener
             }
         }
 
-        Uri uri;
-        String selection = null;
-        String[] selectionArgs = null;
         if (attendee.mIdentity != null && attendee.mIdNamespace != null) {
             // Query by identity + namespace
-            uri = Data.CONTENT_URI;
-            selection = Data.MIMETYPE + "=? AND " + Identity.IDENTITY + "=? AND " +
+            String selection = Data.MIMETYPE + "=? AND " + Identity.IDENTITY + "=? AND " +
                     Identity.NAMESPACE + "=?";
-            selectionArgs = new String[] {Identity.CONTENT_ITEM_TYPE, attendee.mIdentity,
-                    attendee.mIdNamespace};
-        } else {
-            // Query by email
-            uri = Uri.withAppendedPath(Email.CONTENT_LOOKUP_URI, Uri.encode(attendee.mEmail));
+            String[] selectionArgs = new String[] {Identity.CONTENT_ITEM_TYPE,
+                    attendee.mIdentity, attendee.mIdNamespace};
+            mPresenceQueryHandler.startQuery(item.mUpdateCounts + 1, item, Data.CONTENT_URI,
+                    PROJECTION, selection, selectionArgs, null);
+        } else if (!TextUtils.isEmpty(attendee.mEmail)) {
+            // Query by email, together with the other attendees added in this pass
+            ContactInfo cached = getContactCache(mContext).get(getCacheKey(attendee.mEmail));
+            if (cached != null) {
+                applyContactInfo(item, cached);
+            } else {
+                if (mPendingLookups.isEmpty()) {
+                    mHandler.post(mFlushLookups);
+                }
+                mPendingLookups.add(item);
+            }
+        }
+    }
+
+    private static String getCacheKey(String email) {
+        return email == null ? null : email.toLowerCase(Locale.ROOT);
+    }
+
+    private static LruCache<String, ContactInfo> getContactCache(Context context) {
+        if (sContactCache == null) {
+            sContactCache = new LruCache<String, ContactInfo>(CONTACT_CACHE_SIZE);
+            // Contacts that were added, removed or given a photo have to be looked up again.
+            context.getApplicationContext().getContentResolver().registerContentObserver(
+                    Contacts.CONTENT_URI, true,
+                    new ContentObserver(new Handler(Looper.getMainLooper())) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            sContactCache.evictAll();
+                        }
+                    });
         }
+        return sContactCache;
+    }
+
+    /**
+     * Looks up the pending attendees with one query per LOOKUP_BATCH_SIZE emails, instead
+     * of one query each.
+     */
+    private void flushLookups() {
+        final int count = mPendingLookups.size();
+        for (int start = 0; start < count; start += LOOKUP_BATCH_SIZE) {
+            final LookupBatch batch = new LookupBatch(
+                    mPendingLookups.subList(start, Math.min(count, start + LOOKUP_BATCH_SIZE)));
+            // Email.CONTENT_LOOKUP_URI matches addresses regardless of case, so do the same.
+            StringBuilder selection = new StringBuilder();
+            selection.append(Data.MIMETYPE).append("=? AND ").append(Email.ADDRESS)
+                    .append(" COLLATE NOCASE IN (");
+            String[] selectionArgs = new String[batch.mKeys.length + 1];
+            selectionArgs[0] = Email.CONTENT_ITEM_TYPE;
+            for (int i = 0; i < batch.mKeys.length; i++) {
+                if (i > 0) {
+                    selection.append(',');
+                }
+                selection.append('?');
+                selectionArgs[i + 1] = batch.mKeys[i];
+            }
+            selection.append(')');
+            if (DEBUG) {
+                Log.d(TAG, "Looking up " + batch.mKeys.length + " attendees");
+            }
+            mPresenceQueryHandler.startQuery(0, batch, Data.CONTENT_URI,
+                    EMAIL_LOOKUP_PROJECTION, selection.toString(), selectionArgs, null);
+        }
+        mPendingLookups.clear();
+    }
+
+    private static ContactInfo readContactInfo(Cursor cursor) {
+        return new ContactInfo(cursor.getLong(EMAIL_PROJECTION_CONTACT_ID_INDEX),
+                cursor.getString(EMAIL_PROJECTION_CONTACT_LOOKUP_INDEX),
+                cursor.getLong(EMAIL_PROJECTION_PHOTO_ID_INDEX));
+    }
+
+    /**
+     * Updates the results of a batched lookup, caching what each email resolved to.
+     */
+    private void applyLookupBatch(LookupBatch batch, Cursor cursor) {
+        final HashMap<String, ContactInfo> found = new HashMap<String, ContactInfo>();
+        while (cursor.moveToNext()) {
+            final String key = getCacheKey(cursor.getString(EMAIL_PROJECTION_ADDRESS_INDEX));
+            if (key != null && !found.containsKey(key)) {
+                found.put(key, readContactInfo(cursor));
+            }
+        }
+
+        final LruCache<String, ContactInfo> cache = getContactCache(mContext);
+        for (int i = 0; i < batch.mKeys.length; i++) {
+            final ContactInfo info = found.get(batch.mKeys[i]);
+            cache.put(batch.mKeys[i], info != null ? info : ContactInfo.NOT_FOUND);
 
-        mPresenceQueryHandler.startQuery(item.mUpdateCounts + 1, item, uri, PROJECTION, selection,
-                selectionArgs, null);
+            final AttendeeItem item = batch.mItems.get(i);
+            if (item.mUpdateCounts < batch.mUpdateCounts[i]) {
+                item.mUpdateCounts = batch.mUpdateCounts[i];
+                applyContactInfo(item, info);
+            }
+        }
+    }
+
+    /**
+     * Shows what the attendee resolved to in the contacts, and starts loading the
+     * contact's photo.
+     *
+     * @param info the contact, or null or NOT_FOUND if there is none
+     */
+    private void applyContactInfo(final AttendeeItem item, ContactInfo info) {
+        if (info != null && info != ContactInfo.NOT_FOUND) {
+            final Uri contactUri =
+                    ContentUris.withAppendedId(Contacts.CONTENT_URI, info.mContactId);
+            item.mContactLookupUri = Contacts.getLookupUri(info.mContactId, info.mLookupKey);
+
+            // If we found a picture, start the async loading
+            if (info.mPhotoId > 0) {
+                // Query for this contacts picture
+                ContactsAsyncHelper.retrieveContactPhotoAsync(
+                        mContext, item, new Runnable() {
+                            @Override
+                            public void run() {
+                                updateAttendeeView(item);
+                            }
+                        }, contactUri);
+            } else {
+                // call update view to make sure that the lookup key gets set in
+                // the QuickContactBadge
+                updateAttendeeView(item);
+            }
+        } else {
+            // Contact not found.  For real emails, keep the QuickContactBadge with
+            // its Email address set, so that the user can create a contact by tapping.
+            item.mContactLookupUri = null;
+            if (!Utils.isValidEmail(item.mAttendee.mEmail)) {
+                item.mAttendee.mEmail = null;
+                updateAttendeeView(item);
+            }
+        }
     }
 
     public void addAttendees(ArrayList<Attendee> attendees) {
@@ -423,44 +618,15 @@ public class AttendeesView extends LinearLayout implements View.OnClickListener
                 return;
             }
 
-            final AttendeeItem item = (AttendeeItem)cookie;
             try {
+                if (cookie instanceof LookupBatch) {
+                    applyLookupBatch((LookupBatch) cookie, cursor);
+                    return;
+                }
+                final AttendeeItem item = (AttendeeItem)cookie;
                 if (item.mUpdateCounts < queryIndex) {
                     item.mUpdateCounts = queryIndex;
-                    if (cursor.moveToFirst()) {
-                        final long contactId = cursor.getLong(EMAIL_PROJECTION_CONTACT_ID_INDEX);
-                        final Uri contactUri =
-                                ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
-
-                        final String lookupKey =
-                                cursor.getString(EMAIL_PROJECTION_CONTACT_LOOKUP_INDEX);
-                        item.mContactLookupUri = Contacts.getLookupUri(contactId, lookupKey);
-
-                        final long photoId = cursor.getLong(EMAIL_PROJECTION_PHOTO_ID_INDEX);
-                        // If we found a picture, start the async loading
-                        if (photoId > 0) {
-                            // Query for this contacts picture
-                            ContactsAsyncHelper.retrieveContactPhotoAsync(
-                                    mContext, item, new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            updateAttendeeView(item);
-                                        }
-                                    }, contactUri);
-                        } else {
-                            // call update view to make sure that the lookup key gets set in
-                            // the QuickContactBadge
-                            updateAttendeeView(item);
-                        }
-                    } else {
-                        // Contact not found.  For real emails, keep the QuickContactBadge with
-                        // its Email address set, so that the user can create a contact by tapping.
-                        item.mContactLookupUri = null;
-                        if (!Utils.isValidEmail(item.mAttendee.mEmail)) {
-                            item.mAttendee.mEmail = null;
-                            updateAttendeeView(item);
-                        }
-                    }
+                    applyContactInfo(item, cursor.moveToFirst() ? readContactInfo(cursor) : null);
                 }
             } finally {
                 cursor.close();
@@ -144,6 +144,8 @@ public class SelectCalendarsSyncFragment extends ListFragment
     public void onAttach(Activity activity) {
         super.onAttach(activity);
         mService = new AsyncQueryService(activity);
+        // The changes are saved all at once, so send them as one batch
+        mService.setCoalescingEnabled(true);
 
         Bundle bundle = getArguments();
         if (bundle != null && bundle.containsKey(Calendars.ACCOUNT_NAME)
@@ -90,6 +90,8 @@ public class SelectVisibleCalendarsFragment extends Fragment
                 mCursor = cursor;
             }
         };
+        // Quick successive toggles end up in one provider call
+        mService.setCoalescingEnabled(true);
     }
 
     @Override
@@ -29,7 +29,6 @@ import android.util.Log;
 import android.view.View;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.TimeZone;
 
@@ -37,35 +36,17 @@ class CalendarAppWidgetModel {
     private static final String TAG = CalendarAppWidgetModel.class.getSimpleName();
     private static final boolean LOGD = false;
 
-    private String mHomeTZName;
-    private boolean mShowTZ;
     /**
-     * {@link RowInfo} is a class that represents a single row in the widget. It
-     * is actually only a pointer to either a {@link DayInfo} or an
-     * {@link EventInfo} instance, since a row in the widget might be either a
-     * day header or an event.
+     * A row in the widget is either a day header (TYPE_DAY) or an event
+     * (TYPE_MEETING), see {@link #getRowType}.
      */
-    static class RowInfo {
-        static final int TYPE_DAY = 0;
-        static final int TYPE_MEETING = 1;
-
-        /**
-         *  mType is either a day header (TYPE_DAY) or an event (TYPE_MEETING)
-         */
-        final int mType;
-
-        /**
-         * If mType is TYPE_DAY, then mData is the index into day infos.
-         * Otherwise mType is TYPE_MEETING and mData is the index into event
-         * infos.
-         */
-        final int mIndex;
-
-        RowInfo(int type, int index) {
-            mType = type;
-            mIndex = index;
-        }
-    }
+    static final int TYPE_DAY = 0;
+    static final int TYPE_MEETING = 1;
+
+    private static final int[] NO_ROWS = new int[0];
+
+    private String mHomeTZName;
+    private boolean mShowTZ;
 
     /**
      * {@link EventInfo} is a class that represents an event in the widget. It
@@ -74,7 +55,9 @@ class CalendarAppWidgetModel {
      */
     static class EventInfo {
         int visibWhen; // Visibility value for When textview (View.GONE or View.VISIBLE)
-        String when;
+        String when; // Formatted on first use, see CalendarAppWidgetModel#getWhen
+        int whenFlags; // DateUtils flags when is formatted with
+        String whenSuffix; // Appended to when, or null
         int visibWhere; // Visibility value for Where textview (View.GONE or View.VISIBLE)
         String where;
         int visibTitle; // Visibility value for Title textview (View.GONE or View.VISIBLE)
@@ -130,7 +113,8 @@ class CalendarAppWidgetModel {
             result = prime * result + visibTitle;
             result = prime * result + visibWhen;
             result = prime * result + visibWhere;
-            result = prime * result + ((when == null) ? 0 : when.hashCode());
+            result = prime * result + whenFlags;
+            result = prime * result + ((whenSuffix == null) ? 0 : whenSuffix.hashCode());
             result = prime * result + ((where == null) ? 0 : where.hashCode());
             result = prime * result + color;
             result = prime * result + selfAttendeeStatus;
@@ -165,10 +149,14 @@ class CalendarAppWidgetModel {
                 return false;
             if (visibWhere != other.visibWhere)
                 return false;
-            if (when == null) {
-                if (other.when != null)
+            // when is formatted lazily, so compare what it is formatted from.
+            if (whenFlags != other.whenFlags) {
+                return false;
+            }
+            if (whenSuffix == null) {
+                if (other.whenSuffix != null)
                     return false;
-            } else if (!when.equals(other.when)) {
+            } else if (!whenSuffix.equals(other.whenSuffix)) {
                 return false;
             }
             if (where == null) {
@@ -240,7 +228,9 @@ class CalendarAppWidgetModel {
 
     }
 
-    final List<RowInfo> mRowInfos;
+    // Event rows hold their index into mEventInfos, day header rows hold
+    // -(index into mDayInfos + 1).
+    private int[] mRows = NO_ROWS;
     final List<EventInfo> mEventInfos;
     final List<DayInfo> mDayInfos;
     final Context mContext;
@@ -255,43 +245,47 @@ class CalendarAppWidgetModel {
         mTodayJulianDay = Time.getJulianDay(mNow, time.gmtoff);
         mMaxJulianDay = mTodayJulianDay + CalendarAppWidgetService.MAX_DAYS - 1;
         mEventInfos = new ArrayList<EventInfo>(50);
-        mRowInfos = new ArrayList<RowInfo>(50);
         mDayInfos = new ArrayList<DayInfo>(8);
         mContext = context;
     }
 
     public void buildFromCursor(Cursor cursor, String timeZone) {
+        buildFromInstances(WidgetInstances.fromCursor(cursor), timeZone);
+    }
+
+    /**
+     * Builds the rows with a counting sort: the first pass creates the event infos and
+     * counts the rows of each day, the second writes every row straight into its slot.
+     */
+    void buildFromInstances(WidgetInstances instances, String timeZone) {
         final Time recycle = new Time(timeZone);
-        final ArrayList<LinkedList<RowInfo>> mBuckets =
-                new ArrayList<LinkedList<RowInfo>>(CalendarAppWidgetService.MAX_DAYS);
-        for (int i = 0; i < CalendarAppWidgetService.MAX_DAYS; i++) {
-            mBuckets.add(new LinkedList<RowInfo>());
-        }
         recycle.setToNow();
         mShowTZ = !TextUtils.equals(timeZone, Time.getCurrentTimezone());
         if (mShowTZ) {
             mHomeTZName = TimeZone.getTimeZone(timeZone).getDisplayName(recycle.isDst != 0,
                     TimeZone.SHORT);
         }
+        int timeFlags = DateUtils.FORMAT_ABBREV_ALL | DateUtils.FORMAT_SHOW_TIME;
+        if (DateFormat.is24HourFormat(mContext)) {
+            timeFlags |= DateUtils.FORMAT_24HOUR;
+        }
 
-        cursor.moveToPosition(-1);
         String tz = Utils.getTimeZone(mContext, null);
-        while (cursor.moveToNext()) {
-            final int rowId = cursor.getPosition();
-            final long eventId = cursor.getLong(CalendarAppWidgetService.INDEX_EVENT_ID);
-            final boolean allDay = cursor.getInt(CalendarAppWidgetService.INDEX_ALL_DAY) != 0;
-            long start = cursor.getLong(CalendarAppWidgetService.INDEX_BEGIN);
-            long end = cursor.getLong(CalendarAppWidgetService.INDEX_END);
-            final String title = cursor.getString(CalendarAppWidgetService.INDEX_TITLE);
-            final String location =
-                    cursor.getString(CalendarAppWidgetService.INDEX_EVENT_LOCATION);
+        final int days = CalendarAppWidgetService.MAX_DAYS;
+        final int rowCount = instances.size();
+        // The event info of each instance, or -1 if it has already ended
+        final int[] eventIndexes = new int[rowCount];
+        final int[] allDayCounts = new int[days];
+        final int[] timedCounts = new int[days];
+        for (int rowId = 0; rowId < rowCount; rowId++) {
+            final long eventId = instances.getEventId(rowId);
+            final boolean allDay = instances.isAllDay(rowId);
+            long start = instances.getBegin(rowId);
+            long end = instances.getEnd(rowId);
             // we don't compute these ourselves because it seems to produce the
             // wrong endDay for all day events
-            final int startDay = cursor.getInt(CalendarAppWidgetService.INDEX_START_DAY);
-            final int endDay = cursor.getInt(CalendarAppWidgetService.INDEX_END_DAY);
-            final int color = cursor.getInt(CalendarAppWidgetService.INDEX_COLOR);
-            final int selfStatus = cursor
-                    .getInt(CalendarAppWidgetService.INDEX_SELF_ATTENDEE_STATUS);
+            final int startDay = instances.getStartDay(rowId);
+            final int endDay = instances.getEndDay(rowId);
 
             // Adjust all-day times into local timezone
             if (allDay) {
@@ -307,82 +301,163 @@ class CalendarAppWidgetModel {
             // we might get some extra events when querying, in order to
             // deal with all-day events
             if (end < mNow) {
+                eventIndexes[rowId] = -1;
                 continue;
             }
 
-            int i = mEventInfos.size();
-            mEventInfos.add(populateEventInfo(eventId, allDay, start, end, startDay, endDay, title,
-                    location, color, selfStatus));
-            // populate the day buckets that this event falls into
-            int from = Math.max(startDay, mTodayJulianDay);
-            int to = Math.min(endDay, mMaxJulianDay);
+            eventIndexes[rowId] = mEventInfos.size();
+            mEventInfos.add(populateEventInfo(eventId, allDay, start, end, startDay, endDay,
+                    instances.getTitle(rowId), instances.getLocation(rowId),
+                    instances.getColor(rowId), instances.getSelfAttendeeStatus(rowId),
+                    timeFlags));
+            // count the rows in the days this event falls into
+            int from = Math.max(startDay, mTodayJulianDay) - mTodayJulianDay;
+            int to = Math.min(endDay, mMaxJulianDay) - mTodayJulianDay;
             for (int day = from; day <= to; day++) {
-                LinkedList<RowInfo> bucket = mBuckets.get(day - mTodayJulianDay);
-                RowInfo rowInfo = new RowInfo(RowInfo.TYPE_MEETING, i);
                 if (allDay) {
-                    bucket.addFirst(rowInfo);
+                    allDayCounts[day]++;
                 } else {
-                    bucket.add(rowInfo);
+                    timedCounts[day]++;
                 }
             }
         }
 
-        int day = mTodayJulianDay;
+        // Pick the days to show and where their rows start. We don't show a day
+        // header for today.
+        final int[] offsets = new int[days];
+        int size = 0;
         int count = 0;
-        for (LinkedList<RowInfo> bucket : mBuckets) {
-            if (!bucket.isEmpty()) {
-                // We don't show day header in today
-                if (day != mTodayJulianDay) {
-                    final DayInfo dayInfo = populateDayInfo(day, recycle);
-                    // Add the day header
-                    final int dayIndex = mDayInfos.size();
-                    mDayInfos.add(dayInfo);
-                    mRowInfos.add(new RowInfo(RowInfo.TYPE_DAY, dayIndex));
+        int shownDays = 0;
+        while (shownDays < days && count < CalendarAppWidgetService.EVENT_MIN_COUNT) {
+            int day = shownDays++;
+            int dayCount = allDayCounts[day] + timedCounts[day];
+            if (dayCount > 0) {
+                if (day > 0) {
+                    size++;
                 }
+                offsets[day] = size;
+                size += dayCount;
+                count += dayCount;
+            }
+        }
 
-                // Add the event row infos
-                mRowInfos.addAll(bucket);
-                count += bucket.size();
+        final int[] rows = new int[size];
+        // All-day events fill the top of their day from the bottom up, timed events
+        // follow in query order.
+        final int[] nextAllDay = new int[days];
+        final int[] nextTimed = new int[days];
+        for (int day = 0; day < shownDays; day++) {
+            if (allDayCounts[day] + timedCounts[day] == 0) {
+                continue;
             }
-            day++;
-            if (count >= CalendarAppWidgetService.EVENT_MIN_COUNT) {
-                break;
+            if (day > 0) {
+                rows[offsets[day] - 1] = -(mDayInfos.size() + 1);
+                mDayInfos.add(populateDayInfo(mTodayJulianDay + day, recycle));
+            }
+            nextAllDay[day] = offsets[day] + allDayCounts[day] - 1;
+            nextTimed[day] = offsets[day] + allDayCounts[day];
+        }
+        for (int rowId = 0; rowId < rowCount; rowId++) {
+            final int eventIndex = eventIndexes[rowId];
+            if (eventIndex < 0) {
+                continue;
+            }
+            final boolean allDay = instances.isAllDay(rowId);
+            int from = Math.max(instances.getStartDay(rowId), mTodayJulianDay) - mTodayJulianDay;
+            int to = Math.min(instances.getEndDay(rowId), mMaxJulianDay) - mTodayJulianDay;
+            to = Math.min(to, shownDays - 1);
+            for (int day = from; day <= to; day++) {
+                if (allDay) {
+                    rows[nextAllDay[day]--] = eventIndex;
+                } else {
+                    rows[nextTimed[day]++] = eventIndex;
+                }
+            }
+        }
+        mRows = rows;
+    }
+
+    /**
+     * Returns whether more events after the given day could still change the rows,
+     * because the days up to it don't hold EVENT_MIN_COUNT events yet.
+     */
+    boolean needsEventsAfter(int julianDay) {
+        if (julianDay >= mMaxJulianDay) {
+            return false;
+        }
+        int count = 0;
+        for (int i = 0; i < mRows.length; i++) {
+            if (getRowType(i) == TYPE_DAY) {
+                if (mDayInfos.get(getRowIndex(i)).mJulianDay > julianDay) {
+                    return true;
+                }
+            } else if (++count >= CalendarAppWidgetService.EVENT_MIN_COUNT) {
+                return false;
             }
         }
+        return true;
+    }
+
+    int getRowCount() {
+        return mRows.length;
+    }
+
+    /**
+     * Returns TYPE_DAY or TYPE_MEETING.
+     */
+    int getRowType(int position) {
+        return mRows[position] < 0 ? TYPE_DAY : TYPE_MEETING;
+    }
+
+    /**
+     * Returns the index into mDayInfos or mEventInfos, depending on the row type.
+     */
+    int getRowIndex(int position) {
+        int row = mRows[position];
+        return row < 0 ? -row - 1 : row;
+    }
+
+    /**
+     * Returns the event's formatted time range. It isn't needed until the event's row
+     * is drawn, which for most events of a long model is never, so it is formatted here
+     * on first use. Different widgets may race to fill it in, but always with the same
+     * string.
+     */
+    String getWhen(EventInfo eventInfo) {
+        String when = eventInfo.when;
+        if (when == null) {
+            when = Utils.formatDateRange(mContext, eventInfo.start, eventInfo.end,
+                    eventInfo.whenFlags);
+            if (eventInfo.whenSuffix != null) {
+                when = when + " " + eventInfo.whenSuffix;
+            }
+            eventInfo.when = when;
+        }
+        return when;
     }
 
     private EventInfo populateEventInfo(long eventId, boolean allDay, long start, long end,
-            int startDay, int endDay, String title, String location, int color, int selfStatus) {
+            int startDay, int endDay, String title, String location, int color, int selfStatus,
+            int timeFlags) {
         EventInfo eventInfo = new EventInfo();
 
-        // Compute a human-readable string for the start time of the event
-        StringBuilder whenString = new StringBuilder();
-        int visibWhen;
-        int flags = DateUtils.FORMAT_ABBREV_ALL;
-        visibWhen = View.VISIBLE;
+        // The human-readable string for the start time of the event is left to getWhen
         if (allDay) {
-            flags |= DateUtils.FORMAT_SHOW_DATE;
-            whenString.append(Utils.formatDateRange(mContext, start, end, flags));
+            eventInfo.whenFlags = DateUtils.FORMAT_ABBREV_ALL | DateUtils.FORMAT_SHOW_DATE;
         } else {
-            flags |= DateUtils.FORMAT_SHOW_TIME;
-            if (DateFormat.is24HourFormat(mContext)) {
-                flags |= DateUtils.FORMAT_24HOUR;
-            }
+            eventInfo.whenFlags = timeFlags;
             if (endDay > startDay) {
-                flags |= DateUtils.FORMAT_SHOW_DATE;
+                eventInfo.whenFlags |= DateUtils.FORMAT_SHOW_DATE;
             }
-            whenString.append(Utils.formatDateRange(mContext, start, end, flags));
-
             if (mShowTZ) {
-                whenString.append(" ").append(mHomeTZName);
+                eventInfo.whenSuffix = mHomeTZName;
             }
         }
         eventInfo.id = eventId;
         eventInfo.start = start;
         eventInfo.end = end;
         eventInfo.allDay = allDay;
-        eventInfo.when = whenString.toString();
-        eventInfo.visibWhen = visibWhen;
+        eventInfo.visibWhen = View.VISIBLE;
         eventInfo.color = color;
         eventInfo.selfAttendeeStatus = selfStatus;
 
@@ -419,8 +494,48 @@ class CalendarAppWidgetModel {
         return new DayInfo(julianDay, label);
     }
 
+    /**
+     * Returns whether this model shows the same rows as a model that was shown at
+     * shownAt, including which events are highlighted as in progress.
+     */
+    boolean hasSameRows(CalendarAppWidgetModel shown, long shownAt) {
+        if (shown == null || mRows.length != shown.mRows.length) {
+            return false;
+        }
+        for (int i = 0; i < mRows.length; i++) {
+            int type = getRowType(i);
+            if (type != shown.getRowType(i)) {
+                return false;
+            }
+            if (type == TYPE_DAY) {
+                if (!mDayInfos.get(getRowIndex(i)).equals(
+                        shown.mDayInfos.get(shown.getRowIndex(i)))) {
+                    return false;
+                }
+            } else {
+                EventInfo event = mEventInfos.get(getRowIndex(i));
+                EventInfo shownEvent = shown.mEventInfos.get(shown.getRowIndex(i));
+                if (!event.equals(shownEvent)
+                        || isInProgress(event, mNow) != isInProgress(shownEvent, shownAt)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the event's row gets the in progress background.
+     */
+    static boolean isInProgress(EventInfo event, long now) {
+        return !event.allDay && event.start <= now && now <= event.end;
+    }
+
     @Override
     public String toString() {
+        for (EventInfo eventInfo : mEventInfos) {
+            getWhen(eventInfo);
+        }
         StringBuilder builder = new StringBuilder();
         builder.append("\nCalendarAppWidgetModel [eventInfos=");
         builder.append(mEventInfos);
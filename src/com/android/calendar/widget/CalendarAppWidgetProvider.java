@@ -60,10 +60,11 @@ public class CalendarAppWidgetProvider extends AppWidgetProvider {
         if (LOGD)
             Log.d(TAG, "AppWidgetProvider got the intent: " + intent.toString());
         if (Utils.getWidgetUpdateAction(context).equals(action)) {
+            // Sent when the date changes. The list rolls over on its own, see
+            // WidgetDataSource, so only the header needs updating.
             AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
-            performUpdate(context, appWidgetManager,
-                    appWidgetManager.getAppWidgetIds(getComponentName(context)),
-                    null /* no eventIds */);
+            updateHeaders(context, appWidgetManager,
+                    appWidgetManager.getAppWidgetIds(getComponentName(context)));
         } else if (action.equals(Intent.ACTION_PROVIDER_CHANGED)
                 || action.equals(Intent.ACTION_TIME_CHANGED)
                 || action.equals(Intent.ACTION_TIMEZONE_CHANGED)
@@ -130,31 +131,11 @@ public class CalendarAppWidgetProvider extends AppWidgetProvider {
             updateIntent.setData(Uri.parse(updateIntent.toUri(Intent.URI_INTENT_SCHEME)));
 
             RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.appwidget);
-            // Calendar header
-            Time time = new Time(Utils.getTimeZone(context, null));
-            time.setToNow();
-            long millis = time.toMillis(true);
-            final String dayOfWeek = DateUtils.getDayOfWeekString(time.weekDay + 1,
-                    DateUtils.LENGTH_MEDIUM);
-            final String date = Utils.formatDateRange(context, millis, millis,
-                    DateUtils.FORMAT_ABBREV_ALL | DateUtils.FORMAT_SHOW_DATE
-                            | DateUtils.FORMAT_NO_YEAR);
-            views.setTextViewText(R.id.day_of_week, dayOfWeek);
-            views.setTextViewText(R.id.date, date);
+            setHeader(context, views);
             // Attach to list of events
             views.setRemoteAdapter(appWidgetId, R.id.events_list, updateIntent);
             appWidgetManager.notifyAppWidgetViewDataChanged(appWidgetId, R.id.events_list);
 
-
-            // Launch calendar app when the user taps on the header
-            final Intent launchCalendarIntent = new Intent(Intent.ACTION_VIEW);
-            launchCalendarIntent.setClass(context, AllInOneActivity.class);
-            launchCalendarIntent
-                    .setData(Uri.parse("content://com.android.calendar/time/" + millis));
-            final PendingIntent launchCalendarPendingIntent = PendingIntent.getActivity(
-                    context, 0 /* no requestCode */, launchCalendarIntent, 0 /* no flags */);
-            views.setOnClickPendingIntent(R.id.header, launchCalendarPendingIntent);
-
             // Each list item will call setOnClickExtra() to let the list know
             // which item
             // is selected by a user.
@@ -165,6 +146,46 @@ public class CalendarAppWidgetProvider extends AppWidgetProvider {
         }
     }
 
+    /**
+     * Updates only the day and date in the header of the given widgets, leaving the
+     * list and its adapter as they are.
+     */
+    private static void updateHeaders(Context context, AppWidgetManager appWidgetManager,
+            int[] appWidgetIds) {
+        if (appWidgetIds == null || appWidgetIds.length == 0) {
+            return;
+        }
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.appwidget);
+        setHeader(context, views);
+        appWidgetManager.partiallyUpdateAppWidget(appWidgetIds, views);
+    }
+
+    /**
+     * Sets the calendar header to today, and to launch the calendar at today when the
+     * user taps on it.
+     */
+    private static void setHeader(Context context, RemoteViews views) {
+        Time time = new Time(Utils.getTimeZone(context, null));
+        time.setToNow();
+        long millis = time.toMillis(true);
+        final String dayOfWeek = DateUtils.getDayOfWeekString(time.weekDay + 1,
+                DateUtils.LENGTH_MEDIUM);
+        final String date = Utils.formatDateRange(context, millis, millis,
+                DateUtils.FORMAT_ABBREV_ALL | DateUtils.FORMAT_SHOW_DATE
+                        | DateUtils.FORMAT_NO_YEAR);
+        views.setTextViewText(R.id.day_of_week, dayOfWeek);
+        views.setTextViewText(R.id.date, date);
+
+        // Launch calendar app when the user taps on the header
+        final Intent launchCalendarIntent = new Intent(Intent.ACTION_VIEW);
+        launchCalendarIntent.setClass(context, AllInOneActivity.class);
+        launchCalendarIntent
+                .setData(Uri.parse("content://com.android.calendar/time/" + millis));
+        final PendingIntent launchCalendarPendingIntent = PendingIntent.getActivity(
+                context, 0 /* no requestCode */, launchCalendarIntent, 0 /* no flags */);
+        views.setOnClickPendingIntent(R.id.header, launchCalendarPendingIntent);
+    }
+
     /**
      * Build the {@link PendingIntent} used to trigger an update of all calendar
      * widgets. Uses {@link Utils#getWidgetScheduledUpdateAction(Context)} to
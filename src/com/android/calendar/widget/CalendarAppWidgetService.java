@@ -16,19 +16,11 @@
 
 package com.android.calendar.widget;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
-import android.appwidget.AppWidgetManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.CursorLoader;
 import android.content.Intent;
-import android.content.Loader;
 import android.content.res.Resources;
 import android.database.Cursor;
-import android.database.MatrixCursor;
-import android.net.Uri;
-import android.os.Handler;
 import android.provider.CalendarContract.Attendees;
 import android.provider.CalendarContract.Calendars;
 import android.provider.CalendarContract.Instances;
@@ -43,11 +35,8 @@ import org.sufficientlysecure.standalonecalendar.R;
 import com.android.calendar.Utils;
 import com.android.calendar.widget.CalendarAppWidgetModel.DayInfo;
 import com.android.calendar.widget.CalendarAppWidgetModel.EventInfo;
-import com.android.calendar.widget.CalendarAppWidgetModel.RowInfo;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.HashMap;
 
 
 public class CalendarAppWidgetService extends RemoteViewsService {
@@ -58,12 +47,12 @@ public class CalendarAppWidgetService extends RemoteViewsService {
     // Minimum delay between queries on the database for widget updates in ms
     static final int WIDGET_UPDATE_THROTTLE = 500;
 
-    private static final String EVENT_SORT_ORDER = Instances.START_DAY + " ASC, "
+    static final String EVENT_SORT_ORDER = Instances.START_DAY + " ASC, "
             + Instances.START_MINUTE + " ASC, " + Instances.END_DAY + " ASC, "
             + Instances.END_MINUTE + " ASC LIMIT " + EVENT_MAX_COUNT;
 
-    private static final String EVENT_SELECTION = Calendars.VISIBLE + "=1";
-    private static final String EVENT_SELECTION_HIDE_DECLINED = Calendars.VISIBLE + "=1 AND "
+    static final String EVENT_SELECTION = Calendars.VISIBLE + "=1";
+    static final String EVENT_SELECTION_HIDE_DECLINED = Calendars.VISIBLE + "=1 AND "
             + Instances.SELF_ATTENDEE_STATUS + "!=" + Attendees.ATTENDEE_STATUS_DECLINED;
 
     static final String[] EVENT_PROJECTION = new String[] {
@@ -97,13 +86,13 @@ public class CalendarAppWidgetService extends RemoteViewsService {
     }
     static final int MAX_DAYS = 7;
 
-    private static final long SEARCH_DURATION = MAX_DAYS * DateUtils.DAY_IN_MILLIS;
+    static final long SEARCH_DURATION = MAX_DAYS * DateUtils.DAY_IN_MILLIS;
 
     /**
      * Update interval used when no next-update calculated, or bad trigger time in past.
      * Unit: milliseconds.
      */
-    private static final long UPDATE_TIME_NO_EVENTS = DateUtils.HOUR_IN_MILLIS * 6;
+    static final long UPDATE_TIME_NO_EVENTS = DateUtils.HOUR_IN_MILLIS * 6;
 
     @Override
     public RemoteViewsFactory onGetViewFactory(Intent intent) {
@@ -111,64 +100,60 @@ public class CalendarAppWidgetService extends RemoteViewsService {
     }
 
     public static class CalendarFactory extends BroadcastReceiver implements
-            RemoteViewsService.RemoteViewsFactory, Loader.OnLoadCompleteListener<Cursor> {
+            RemoteViewsService.RemoteViewsFactory {
         private static final boolean LOGD = false;
 
-        // Suppress unnecessary logging about update time. Need to be static as this object is
-        // re-instanciated frequently.
-        // TODO: It seems loadData() is called via onCreate() four times, which should mean
-        // unnecessary CalendarFactory object is created and dropped. It is not efficient.
-        private static long sLastUpdateTime = UPDATE_TIME_NO_EVENTS;
+        /**
+         * Identifies what a row shows: its day or event info, and for events whether it
+         * is drawn as in progress. Rows with equal keys can share their RemoteViews.
+         */
+        private static final class RowKey {
+            final Object mInfo;
+            final boolean mInProgress;
 
-        private Context mContext;
-        private Resources mResources;
-        private static CalendarAppWidgetModel mModel;
-        private static Object mLock = new Object();
-        private static volatile int mSerialNum = 0;
-        private int mLastSerialNum = -1;
-        private CursorLoader mLoader;
-        private final Handler mHandler = new Handler();
-        private static final AtomicInteger currentVersion = new AtomicInteger(0);
-        private final ExecutorService executor = Executors.newSingleThreadExecutor();
-        private int mAppWidgetId;
-        private int mDeclinedColor;
-        private int mStandardColor;
-        private int mAllDayColor;
+            RowKey(Object info, boolean inProgress) {
+                mInfo = info;
+                mInProgress = inProgress;
+            }
 
-        private final Runnable mTimezoneChanged = new Runnable() {
             @Override
-            public void run() {
-                if (mLoader != null) {
-                    mLoader.forceLoad();
+            public boolean equals(Object o) {
+                if (!(o instanceof RowKey)) {
+                    return false;
                 }
+                RowKey other = (RowKey) o;
+                return mInProgress == other.mInProgress && mInfo.equals(other.mInfo);
+            }
+
+            @Override
+            public int hashCode() {
+                return mInfo.hashCode() * 2 + (mInProgress ? 1 : 0);
             }
-        };
-
-        private Runnable createUpdateLoaderRunnable(final String selection,
-                final PendingResult result, final int version) {
-            return new Runnable() {
-                @Override
-                public void run() {
-                    // If there is a newer load request in the queue, skip loading.
-                    if (mLoader != null && version >= currentVersion.get()) {
-                        Uri uri = createLoaderUri();
-                        mLoader.setUri(uri);
-                        mLoader.setSelection(selection);
-                        synchronized (mLock) {
-                            mLastSerialNum = ++mSerialNum;
-                        }
-                        mLoader.forceLoad();
-                    }
-                    result.finish();
-                }
-            };
         }
 
+        private Context mContext;
+        private Resources mResources;
+        private WidgetDataSource mDataSource;
+        // The model this widget is showing, from mDataSource
+        private CalendarAppWidgetModel mModel;
+        // The time rows are drawn at, taken when the model is picked up. At every event
+        // start and end the data source rebuilds its rows from the loaded instances, without
+        // a query, and only notifies the widgets if the rows or their in-progress state
+        // changed. A new model is picked up on that notification, so this only needs to
+        // move with the model.
+        private long mNow;
+        // Rows built for the current model, and the ones left from the previous model that
+        // haven't been asked for again yet.
+        private HashMap<RowKey, RemoteViews> mRowViews = new HashMap<RowKey, RemoteViews>();
+        private HashMap<RowKey, RemoteViews> mOldRowViews = new HashMap<RowKey, RemoteViews>();
+        private int mDeclinedColor;
+        private int mStandardColor;
+        private int mAllDayColor;
+
         protected CalendarFactory(Context context, Intent intent) {
             mContext = context;
             mResources = context.getResources();
-            mAppWidgetId = intent.getIntExtra(
-                    AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
+            mDataSource = WidgetDataSource.getInstance(context);
 
             mDeclinedColor = mResources.getColor(R.color.appwidget_item_declined_color);
             mStandardColor = mResources.getColor(R.color.appwidget_item_standard_color);
@@ -182,19 +167,38 @@ public class CalendarAppWidgetService extends RemoteViewsService {
 
         @Override
         public void onCreate() {
-            String selection = queryForSelection();
-            initLoader(selection);
+            mDataSource.acquire();
         }
 
         @Override
         public void onDataSetChanged() {
+            setModel(mDataSource.getModel());
         }
 
         @Override
         public void onDestroy() {
-            if (mLoader != null) {
-                mLoader.reset();
+            mDataSource.release();
+        }
+
+        /**
+         * The model to show. Picked up from the data source until the first load is done,
+         * then only when the data set changes.
+         */
+        private CalendarAppWidgetModel getModel() {
+            if (mModel == null) {
+                setModel(mDataSource.getModel());
+            }
+            return mModel;
+        }
+
+        private void setModel(CalendarAppWidgetModel model) {
+            mNow = System.currentTimeMillis();
+            if (model != mModel) {
+                // Rows that didn't change are moved over as they are asked for.
+                mOldRowViews = mRowViews;
+                mRowViews = new HashMap<RowKey, RemoteViews>();
             }
+            mModel = model;
         }
 
         @Override
@@ -220,7 +224,7 @@ public class CalendarAppWidgetService extends RemoteViewsService {
                 return views;
 
             }
-            if (mModel.mEventInfos.isEmpty() || mModel.mRowInfos.isEmpty()) {
+            if (mModel.mEventInfos.isEmpty() || mModel.getRowCount() == 0) {
                 RemoteViews views = new RemoteViews(mContext.getPackageName(),
                         R.layout.appwidget_no_events);
                 final Intent intent = CalendarAppWidgetProvider.getLaunchFillInIntent(mContext, 0,
@@ -229,16 +233,36 @@ public class CalendarAppWidgetService extends RemoteViewsService {
                 return views;
             }
 
-            RowInfo rowInfo = mModel.mRowInfos.get(position);
-            if (rowInfo.mType == RowInfo.TYPE_DAY) {
+            RowKey key;
+            int index = mModel.getRowIndex(position);
+            if (mModel.getRowType(position) == CalendarAppWidgetModel.TYPE_DAY) {
+                key = new RowKey(mModel.mDayInfos.get(index), false);
+            } else {
+                EventInfo eventInfo = mModel.mEventInfos.get(index);
+                key = new RowKey(eventInfo, CalendarAppWidgetModel.isInProgress(eventInfo, mNow));
+            }
+
+            RemoteViews views = mRowViews.get(key);
+            if (views == null) {
+                views = mOldRowViews.remove(key);
+                if (views == null) {
+                    views = buildRowViews(key);
+                }
+                mRowViews.put(key, views);
+            }
+            return views;
+        }
+
+        private RemoteViews buildRowViews(RowKey key) {
+            if (key.mInfo instanceof DayInfo) {
                 RemoteViews views = new RemoteViews(mContext.getPackageName(),
                         R.layout.appwidget_day);
-                DayInfo dayInfo = mModel.mDayInfos.get(rowInfo.mIndex);
+                DayInfo dayInfo = (DayInfo) key.mInfo;
                 updateTextView(views, R.id.date, View.VISIBLE, dayInfo.mDayLabel);
                 return views;
             } else {
                 RemoteViews views;
-                final EventInfo eventInfo = mModel.mEventInfos.get(rowInfo.mIndex);
+                final EventInfo eventInfo = (EventInfo) key.mInfo;
                 if (eventInfo.allDay) {
                     views = new RemoteViews(mContext.getPackageName(),
                             R.layout.widget_all_day_item);
@@ -247,8 +271,7 @@ public class CalendarAppWidgetService extends RemoteViewsService {
                 }
                 int displayColor = Utils.getDisplayColorFromColor(eventInfo.color);
 
-                final long now = System.currentTimeMillis();
-                if (!eventInfo.allDay && eventInfo.start <= now && now <= eventInfo.end) {
+                if (key.mInProgress) {
                     views.setInt(R.id.widget_row, "setBackgroundResource",
                             R.drawable.agenda_item_bg_secondary);
                 } else {
@@ -257,7 +280,8 @@ public class CalendarAppWidgetService extends RemoteViewsService {
                 }
 
                 if (!eventInfo.allDay) {
-                    updateTextView(views, R.id.when, eventInfo.visibWhen, eventInfo.when);
+                    updateTextView(views, R.id.when, eventInfo.visibWhen,
+                            mModel.getWhen(eventInfo));
                     updateTextView(views, R.id.where, eventInfo.visibWhere, eventInfo.where);
                 }
                 updateTextView(views, R.id.title, eventInfo.visibTitle, eventInfo.title);
@@ -332,22 +356,21 @@ public class CalendarAppWidgetService extends RemoteViewsService {
         public int getCount() {
             // if there are no events, we still return 1 to represent the "no
             // events" view
-            if (mModel == null) {
+            if (getModel() == null) {
                 return 1;
             }
-            return Math.max(1, mModel.mRowInfos.size());
+            return Math.max(1, mModel.getRowCount());
         }
 
         @Override
         public long getItemId(int position) {
-            if (mModel == null ||  mModel.mRowInfos.isEmpty() || position >= getCount()) {
+            if (getModel() == null || mModel.getRowCount() == 0 || position >= getCount()) {
                 return 0;
             }
-            RowInfo rowInfo = mModel.mRowInfos.get(position);
-            if (rowInfo.mType == RowInfo.TYPE_DAY) {
-                return rowInfo.mIndex;
+            if (mModel.getRowType(position) == CalendarAppWidgetModel.TYPE_DAY) {
+                return mModel.getRowIndex(position);
             }
-            EventInfo eventInfo = mModel.mEventInfos.get(rowInfo.mIndex);
+            EventInfo eventInfo = mModel.mEventInfos.get(mModel.getRowIndex(position));
             long prime = 31;
             long result = 1;
             result = prime * result + (int) (eventInfo.id ^ (eventInfo.id >>> 32));
@@ -360,55 +383,6 @@ public class CalendarAppWidgetService extends RemoteViewsService {
             return true;
         }
 
-        /**
-         * Query across all calendars for upcoming event instances from now
-         * until some time in the future. Widen the time range that we query by
-         * one day on each end so that we can catch all-day events. All-day
-         * events are stored starting at midnight in UTC but should be included
-         * in the list of events starting at midnight local time. This may fetch
-         * more events than we actually want, so we filter them out later.
-         *
-         * @param selection The selection string for the loader to filter the query with.
-         */
-        public void initLoader(String selection) {
-            if (LOGD)
-                Log.d(TAG, "Querying for widget events...");
-
-            // Search for events from now until some time in the future
-            Uri uri = createLoaderUri();
-            mLoader = new CursorLoader(mContext, uri, EVENT_PROJECTION, selection, null,
-                    EVENT_SORT_ORDER);
-            mLoader.setUpdateThrottle(WIDGET_UPDATE_THROTTLE);
-            synchronized (mLock) {
-                mLastSerialNum = ++mSerialNum;
-            }
-            mLoader.registerListener(mAppWidgetId, this);
-            mLoader.startLoading();
-
-        }
-
-        /**
-         * This gets the selection string for the loader.  This ends up doing a query in the
-         * shared preferences.
-         */
-        private String queryForSelection() {
-            return Utils.getHideDeclinedEvents(mContext) ? EVENT_SELECTION_HIDE_DECLINED
-                    : EVENT_SELECTION;
-        }
-
-        /**
-         * @return The uri for the loader
-         */
-        private Uri createLoaderUri() {
-            long now = System.currentTimeMillis();
-            // Add a day on either side to catch all-day events
-            long begin = now - DateUtils.DAY_IN_MILLIS;
-            long end = now + SEARCH_DURATION + DateUtils.DAY_IN_MILLIS;
-
-            Uri uri = Uri.withAppendedPath(Instances.CONTENT_URI, Long.toString(begin) + "/" + end);
-            return uri;
-        }
-
         /* @VisibleForTesting */
         protected static CalendarAppWidgetModel buildAppWidgetModel(
                 Context context, Cursor cursor, String timeZone) {
@@ -417,48 +391,6 @@ public class CalendarAppWidgetService extends RemoteViewsService {
             return model;
         }
 
-        /**
-         * Calculates and returns the next time we should push widget updates.
-         */
-        private long calculateUpdateTime(CalendarAppWidgetModel model, long now, String timeZone) {
-            // Make sure an update happens at midnight or earlier
-            long minUpdateTime = getNextMidnightTimeMillis(timeZone);
-            for (EventInfo event : model.mEventInfos) {
-                final long start;
-                final long end;
-                start = event.start;
-                end = event.end;
-
-                // We want to update widget when we enter/exit time range of an event.
-                if (now < start) {
-                    minUpdateTime = Math.min(minUpdateTime, start);
-                } else if (now < end) {
-                    minUpdateTime = Math.min(minUpdateTime, end);
-                }
-            }
-            return minUpdateTime;
-        }
-
-        private static long getNextMidnightTimeMillis(String timezone) {
-            Time time = new Time();
-            time.setToNow();
-            time.monthDay++;
-            time.hour = 0;
-            time.minute = 0;
-            time.second = 0;
-            long midnightDeviceTz = time.normalize(true);
-
-            time.timezone = timezone;
-            time.setToNow();
-            time.monthDay++;
-            time.hour = 0;
-            time.minute = 0;
-            time.second = 0;
-            long midnightHomeTz = time.normalize(true);
-
-            return Math.min(midnightDeviceTz, midnightHomeTz);
-        }
-
         static void updateTextView(RemoteViews views, int id, int visibility, String string) {
             views.setViewVisibility(id, visibility);
             if (visibility == View.VISIBLE) {
@@ -466,137 +398,18 @@ public class CalendarAppWidgetService extends RemoteViewsService {
             }
         }
 
-        /*
-         * (non-Javadoc)
-         * @see
-         * android.content.Loader.OnLoadCompleteListener#onLoadComplete(android
-         * .content.Loader, java.lang.Object)
-         */
-        @Override
-        public void onLoadComplete(Loader<Cursor> loader, Cursor cursor) {
-            if (cursor == null) {
-                return;
-            }
-            // If a newer update has happened since we started clean up and
-            // return
-            synchronized (mLock) {
-                if (cursor.isClosed()) {
-                    Log.wtf(TAG, "Got a closed cursor from onLoadComplete");
-                    return;
-                }
-
-                if (mLastSerialNum != mSerialNum) {
-                    return;
-                }
-
-                final long now = System.currentTimeMillis();
-                String tz = Utils.getTimeZone(mContext, mTimezoneChanged);
-
-                // Copy it to a local static cursor.
-                MatrixCursor matrixCursor = Utils.matrixCursorFromCursor(cursor);
-                try {
-                    mModel = buildAppWidgetModel(mContext, matrixCursor, tz);
-                } finally {
-                    if (matrixCursor != null) {
-                        matrixCursor.close();
-                    }
-
-                    if (cursor != null) {
-                        cursor.close();
-                    }
-                }
-
-                // Schedule an alarm to wake ourselves up for the next update.
-                // We also cancel
-                // all existing wake-ups because PendingIntents don't match
-                // against extras.
-                long triggerTime = calculateUpdateTime(mModel, now, tz);
-
-                // If no next-update calculated, or bad trigger time in past,
-                // schedule
-                // update about six hours from now.
-                if (triggerTime < now) {
-                    Log.w(TAG, "Encountered bad trigger time " + formatDebugTime(triggerTime, now));
-                    triggerTime = now + UPDATE_TIME_NO_EVENTS;
-                }
-
-                final AlarmManager alertManager = (AlarmManager) mContext
-                        .getSystemService(Context.ALARM_SERVICE);
-                final PendingIntent pendingUpdate = CalendarAppWidgetProvider
-                        .getUpdateIntent(mContext);
-
-                alertManager.cancel(pendingUpdate);
-                alertManager.set(AlarmManager.RTC, triggerTime, pendingUpdate);
-                Time time = new Time(Utils.getTimeZone(mContext, null));
-                time.setToNow();
-
-                if (time.normalize(true) != sLastUpdateTime) {
-                    Time time2 = new Time(Utils.getTimeZone(mContext, null));
-                    time2.set(sLastUpdateTime);
-                    time2.normalize(true);
-                    if (time.year != time2.year || time.yearDay != time2.yearDay) {
-                        final Intent updateIntent = new Intent(
-                                Utils.getWidgetUpdateAction(mContext));
-                        mContext.sendBroadcast(updateIntent);
-                    }
-
-                    sLastUpdateTime = time.toMillis(true);
-                }
-
-                AppWidgetManager widgetManager = AppWidgetManager.getInstance(mContext);
-                if (mAppWidgetId == -1) {
-                    int[] ids = widgetManager.getAppWidgetIds(CalendarAppWidgetProvider
-                            .getComponentName(mContext));
-
-                    widgetManager.notifyAppWidgetViewDataChanged(ids, R.id.events_list);
-                } else {
-                    widgetManager.notifyAppWidgetViewDataChanged(mAppWidgetId, R.id.events_list);
-                }
-            }
-        }
-
         @Override
         public void onReceive(Context context, Intent intent) {
             if (LOGD)
                 Log.d(TAG, "AppWidgetService received an intent. It was " + intent.toString());
-            mContext = context;
-
-            // We cannot do any queries from the UI thread, so push the 'selection' query
-            // to a background thread.  However the implementation of the latter query
-            // (cursor loading) uses CursorLoader which must be initiated from the UI thread,
-            // so there is some convoluted handshaking here.
-            //
-            // Note that as currently implemented, this must run in a single threaded executor
-            // or else the loads may be run out of order.
-            //
-            // TODO: Remove use of mHandler and CursorLoader, and do all the work synchronously
-            // in the background thread.  All the handshaking going on here between the UI and
-            // background thread with using goAsync, mHandler, and CursorLoader is confusing.
-            final PendingResult result = goAsync();
-            executor.submit(new Runnable() {
-                @Override
-                public void run() {
-                    // We always complete queryForSelection() even if the load task ends up being
-                    // canceled because of a more recent one.  Optimizing this to allow
-                    // canceling would require keeping track of all the PendingResults
-                    // (from goAsync) to abort them.  Defer this until it becomes a problem.
-                    final String selection = queryForSelection();
-
-                    if (mLoader == null) {
-                        mAppWidgetId = -1;
-                        mHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                initLoader(selection);
-                                result.finish();
-                            }
-                        });
-                    } else {
-                        mHandler.post(createUpdateLoaderRunnable(selection, result,
-                                currentVersion.incrementAndGet()));
-                    }
-                }
-            });
+            WidgetDataSource dataSource = WidgetDataSource.getInstance(context);
+            String action = intent.getAction();
+            if (Utils.getWidgetScheduledUpdateAction(context).equals(action)
+                    || Intent.ACTION_DATE_CHANGED.equals(action)) {
+                dataSource.onScheduledUpdate(goAsync());
+            } else {
+                dataSource.requestUpdate(goAsync());
+            }
         }
     }
 
@@ -0,0 +1,576 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.widget;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.BroadcastReceiver.PendingResult;
+import android.content.Context;
+import android.content.CursorLoader;
+import android.content.Intent;
+import android.content.Loader;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.CalendarContract.Instances;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+import android.util.Log;
+
+import org.sufficientlysecure.standalonecalendar.R;
+import com.android.calendar.Utils;
+import com.android.calendar.widget.CalendarAppWidgetModel.EventInfo;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The events shown by the calendar widgets.
+ *
+ * Every widget instance shows the same rows, so one loader and one model are shared by
+ * all the {@link CalendarAppWidgetService.CalendarFactory} instances in the process.
+ * Factories hold a reference while they are bound, and the loader is stopped when the
+ * last one goes away. The model is immutable once built, so factories can keep using
+ * the one they have until they are told the data set changed.
+ *
+ * Rows only change with the time when an event starts or ends, or at midnight. Both
+ * just rebuild the rows from the loaded instances, which moves events into the new
+ * day's buckets at midnight. The provider is only queried again when it changes, or
+ * for the days the loaded instances don't reach yet.
+ *
+ * Loads start with a short lookahead, R.integer.widget_initial_search_days. If that
+ * doesn't fill the widget, only the instances starting after it are queried, a few days
+ * at a time, up to {@link CalendarAppWidgetService#SEARCH_DURATION}.
+ */
+final class WidgetDataSource implements Loader.OnLoadCompleteListener<Cursor> {
+    private static final String TAG = "CalendarWidget";
+    private static final boolean LOGD = false;
+
+    private static WidgetDataSource sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    // Runs the selection and changed event queries in order.
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicInteger mVersion = new AtomicInteger(0);
+    // Days of events queried at first, and then at a time until the rows are filled
+    private final int mInitialSearchDays;
+    private final int mSearchStepDays;
+
+    // Main thread only
+    private CursorLoader mLoader;
+    // The end of the range mLoader queries
+    private long mLoaderEnd;
+    private int mRefCount;
+
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private CalendarAppWidgetModel mModel;
+    // The rows mModel was built from, kept to rebuild the rows without a query
+    private WidgetInstances mInstances;
+    // The end of the range mInstances were queried for
+    private long mInstancesEnd;
+    // Counts loader results, so a stale horizon extension isn't published
+    private int mLoadGeneration;
+    // When mModel was last pushed to the widgets
+    private long mModelShownAt;
+    // The upcoming starts and ends of the events in mModel, in order
+    private long[] mBoundaries = new long[0];
+    // The next midnight, when the rows move to a new day
+    private long mRolloverTime;
+    // Suppress unnecessary logging about update time.
+    private long mLastUpdateTime = CalendarAppWidgetService.UPDATE_TIME_NO_EVENTS;
+
+    private final Runnable mTimezoneChanged = new Runnable() {
+        @Override
+        public void run() {
+            if (mLoader != null) {
+                mLoader.forceLoad();
+            }
+        }
+    };
+
+    static synchronized WidgetDataSource getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WidgetDataSource(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private WidgetDataSource(Context context) {
+        mContext = context;
+        mHandler = new Handler(Looper.getMainLooper());
+        Resources res = context.getResources();
+        mInitialSearchDays = Math.max(1, res.getInteger(R.integer.widget_initial_search_days));
+        mSearchStepDays = Math.max(1, res.getInteger(R.integer.widget_search_step_days));
+    }
+
+    /**
+     * Takes a reference for a bound factory, loading the events if nobody has yet. Must
+     * be called on the main thread.
+     */
+    void acquire() {
+        mRefCount++;
+        if (mLoader == null) {
+            initLoader(queryForSelection(mContext));
+        }
+    }
+
+    /**
+     * Drops a reference taken with {@link #acquire}, stopping the loader after the last
+     * one. Must be called on the main thread.
+     */
+    void release() {
+        if (mRefCount > 0 && --mRefCount == 0 && mLoader != null) {
+            mLoader.reset();
+            mLoader = null;
+        }
+    }
+
+    /**
+     * @return the current model, or null if the events haven't been loaded yet.
+     */
+    CalendarAppWidgetModel getModel() {
+        synchronized (mLock) {
+            return mModel;
+        }
+    }
+
+    /**
+     * Queries the events again after a broadcast. The widgets are only told to refresh
+     * if the rows they show changed.
+     */
+    void requestUpdate(final PendingResult result) {
+        // We cannot do any queries from the UI thread, so push the 'selection' query
+        // to a background thread.  However the implementation of the latter query
+        // (cursor loading) uses CursorLoader which must be initiated from the UI thread,
+        // so there is some convoluted handshaking here.
+        //
+        // Note that as currently implemented, this must run in a single threaded executor
+        // or else the loads may be run out of order.
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                // We always complete queryForSelection() even if the load task ends up being
+                // canceled because of a more recent one.  Optimizing this to allow
+                // canceling would require keeping track of all the PendingResults
+                // (from goAsync) to abort them.  Defer this until it becomes a problem.
+                final String selection = queryForSelection(mContext);
+
+                final int version = mVersion.incrementAndGet();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mLoader == null) {
+                            initLoader(selection);
+                        } else if (version >= mVersion.get()) {
+                            // Skipped if there is a newer load request in the queue.
+                            mLoader.setUri(createLoaderUri());
+                            mLoader.setSelection(selection);
+                            mLoader.forceLoad();
+                        }
+                        result.finish();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Handles the scheduled update alarm and the date changing. Either way the rows are
+     * rebuilt from the loaded instances instead of querying them again.
+     */
+    void onScheduledUpdate(final PendingResult result) {
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (refreshFromInstances()) {
+                    result.finish();
+                } else {
+                    requestUpdate(result);
+                }
+            }
+        });
+    }
+
+    /**
+     * Rebuilds the model from the loaded instances for the current time, which drops
+     * events that ended, moves the in progress highlight and at midnight shifts the rows
+     * to the new day. Days past the loaded range are queried on their own if needed.
+     *
+     * @return false if the instances have to be loaded again instead.
+     */
+    private boolean refreshFromInstances() {
+        synchronized (mLock) {
+            final long now = System.currentTimeMillis();
+            if (mInstances == null) {
+                return false;
+            }
+            boolean rollover = now >= mRolloverTime;
+            if (rollover && mInstances.size() >= CalendarAppWidgetService.EVENT_MAX_COUNT) {
+                // Events after the last one loaded could belong in the new day's rows.
+                return false;
+            }
+            String tz = Utils.getTimeZone(mContext, null);
+            notifyIfDateChanged();
+            CalendarAppWidgetModel model = buildAppWidgetModel(mContext, mInstances, tz);
+            if (needsLongerHorizon(model, mInstances, mInstancesEnd, tz)) {
+                // Events that ended, or the new day, left room for ones that weren't
+                // loaded.
+                extendHorizon(mInstances, mInstancesEnd, model, queryForSelection(mContext),
+                        mLoadGeneration);
+                return true;
+            }
+            boolean rowsChanged = !model.hasSameRows(mModel, mModelShownAt);
+            mModel = model;
+            if (rollover) {
+                scheduleUpdateAlarm(model, now, tz);
+            } else {
+                scheduleNextWakeup(now);
+            }
+            if (LOGD) {
+                Log.d(TAG, "Refreshed rows without a query, rows changed: " + rowsChanged);
+            }
+            if (rowsChanged) {
+                mModelShownAt = now;
+                notifyWidgets();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Query across all calendars for upcoming event instances from now
+     * until some time in the future. Widen the time range that we query by
+     * one day on each end so that we can catch all-day events. All-day
+     * events are stored starting at midnight in UTC but should be included
+     * in the list of events starting at midnight local time. This may fetch
+     * more events than we actually want, so we filter them out later.
+     *
+     * @param selection The selection string for the loader to filter the query with.
+     */
+    private void initLoader(String selection) {
+        if (LOGD)
+            Log.d(TAG, "Querying for widget events...");
+
+        // Search for events from now until some time in the future
+        mLoader = new CursorLoader(mContext, createLoaderUri(),
+                CalendarAppWidgetService.EVENT_PROJECTION, selection, null,
+                CalendarAppWidgetService.EVENT_SORT_ORDER);
+        mLoader.setUpdateThrottle(CalendarAppWidgetService.WIDGET_UPDATE_THROTTLE);
+        mLoader.registerListener(0, this);
+        mLoader.startLoading();
+    }
+
+    /**
+     * This gets the selection string for the loader.  This ends up doing a query in the
+     * shared preferences.
+     */
+    private static String queryForSelection(Context context) {
+        return Utils.getHideDeclinedEvents(context)
+                ? CalendarAppWidgetService.EVENT_SELECTION_HIDE_DECLINED
+                : CalendarAppWidgetService.EVENT_SELECTION;
+    }
+
+    /**
+     * @return The uri for the loader, which starts with the initial lookahead
+     */
+    private Uri createLoaderUri() {
+        long now = System.currentTimeMillis();
+        // Add a day on either side to catch all-day events
+        long begin = now - DateUtils.DAY_IN_MILLIS;
+        mLoaderEnd = now + (mInitialSearchDays + 1) * DateUtils.DAY_IN_MILLIS;
+        return createInstancesUri(begin, mLoaderEnd);
+    }
+
+    private static Uri createInstancesUri(long begin, long end) {
+        return Uri.withAppendedPath(Instances.CONTENT_URI, Long.toString(begin) + "/" + end);
+    }
+
+    /**
+     * Returns whether instances queried up to end leave rows of the model unknown, in
+     * which case the query should be extended.
+     */
+    private static boolean needsLongerHorizon(CalendarAppWidgetModel model,
+            WidgetInstances instances, long end, String timeZone) {
+        if (instances.size() >= CalendarAppWidgetService.EVENT_MAX_COUNT) {
+            return false;
+        }
+        // The extra day at the end of the range is for all-day events, so the days
+        // before it are complete.
+        Time time = new Time(timeZone);
+        long lastDayTime = end - DateUtils.DAY_IN_MILLIS;
+        time.set(lastDayTime);
+        return model.needsEventsAfter(Time.getJulianDay(lastDayTime, time.gmtoff) - 1);
+    }
+
+    /**
+     * Queries the instances that start after end, mSearchStepDays at a time, until the
+     * model is complete or the whole SEARCH_DURATION is covered. Runs on the executor, and
+     * publishes the result unless a newer load completed in the meantime.
+     */
+    private void extendHorizon(final WidgetInstances loaded, final long loadedEnd,
+            final CalendarAppWidgetModel loadedModel, final String selection,
+            final int generation) {
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                String tz = Utils.getTimeZone(mContext, null);
+                long maxEnd = System.currentTimeMillis()
+                        + CalendarAppWidgetService.SEARCH_DURATION + DateUtils.DAY_IN_MILLIS;
+                WidgetInstances instances = loaded;
+                long end = loadedEnd;
+                CalendarAppWidgetModel model = loadedModel;
+                while (end < maxEnd) {
+                    long newEnd = Math.min(maxEnd,
+                            end + mSearchStepDays * DateUtils.DAY_IN_MILLIS);
+                    // The ranges are inclusive, so instances starting right at the end were
+                    // already read.
+                    Cursor cursor = mContext.getContentResolver().query(
+                            createInstancesUri(end, newEnd),
+                            CalendarAppWidgetService.EVENT_PROJECTION,
+                            "(" + selection + ") AND " + Instances.BEGIN + ">" + end, null,
+                            CalendarAppWidgetService.EVENT_SORT_ORDER);
+                    if (cursor != null) {
+                        try {
+                            instances = instances.merge(WidgetInstances.fromCursor(cursor),
+                                    CalendarAppWidgetService.EVENT_MAX_COUNT);
+                        } finally {
+                            cursor.close();
+                        }
+                    }
+                    end = newEnd;
+                    model = buildAppWidgetModel(mContext, instances, tz);
+                    if (LOGD) {
+                        Log.d(TAG, "Extended widget horizon to "
+                                + CalendarAppWidgetService.formatDebugTime(end,
+                                        System.currentTimeMillis())
+                                + ", " + instances.size() + " instances");
+                    }
+                    if (!needsLongerHorizon(model, instances, end, tz)) {
+                        break;
+                    }
+                }
+
+                synchronized (mLock) {
+                    if (generation == mLoadGeneration) {
+                        publish(instances, end, model, System.currentTimeMillis(), tz);
+                    }
+                }
+            }
+        });
+    }
+
+    private static CalendarAppWidgetModel buildAppWidgetModel(
+            Context context, WidgetInstances instances, String timeZone) {
+        CalendarAppWidgetModel model = new CalendarAppWidgetModel(context, timeZone);
+        model.buildFromInstances(instances, timeZone);
+        return model;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see
+     * android.content.Loader.OnLoadCompleteListener#onLoadComplete(android
+     * .content.Loader, java.lang.Object)
+     */
+    @Override
+    public void onLoadComplete(Loader<Cursor> loader, Cursor cursor) {
+        if (cursor == null) {
+            return;
+        }
+        synchronized (mLock) {
+            if (cursor.isClosed()) {
+                Log.wtf(TAG, "Got a closed cursor from onLoadComplete");
+                return;
+            }
+
+            final long now = System.currentTimeMillis();
+            String tz = Utils.getTimeZone(mContext, mTimezoneChanged);
+
+            // Copy it to a typed snapshot, since the cursor is closed here.
+            WidgetInstances instances;
+            try {
+                instances = WidgetInstances.fromCursor(cursor);
+            } finally {
+                cursor.close();
+            }
+            CalendarAppWidgetModel model = buildAppWidgetModel(mContext, instances, tz);
+            final int generation = ++mLoadGeneration;
+            if (needsLongerHorizon(model, instances, mLoaderEnd, tz)) {
+                // Keep showing the current rows until the rest is loaded.
+                extendHorizon(instances, mLoaderEnd, model,
+                        ((CursorLoader) loader).getSelection(), generation);
+            } else {
+                publish(instances, mLoaderEnd, model, now, tz);
+            }
+
+            notifyIfDateChanged();
+        }
+    }
+
+    /**
+     * Tells the widgets to update their headers if the date changed since the last
+     * update. Must be called with mLock held.
+     */
+    private void notifyIfDateChanged() {
+        Time time = new Time(Utils.getTimeZone(mContext, null));
+        time.setToNow();
+
+        if (time.normalize(true) != mLastUpdateTime) {
+            Time time2 = new Time(Utils.getTimeZone(mContext, null));
+            time2.set(mLastUpdateTime);
+            time2.normalize(true);
+            if (time.year != time2.year || time.yearDay != time2.yearDay) {
+                final Intent updateIntent = new Intent(
+                        Utils.getWidgetUpdateAction(mContext));
+                mContext.sendBroadcast(updateIntent);
+            }
+
+            mLastUpdateTime = time.toMillis(true);
+        }
+    }
+
+    /**
+     * Makes a loaded model current. Must be called with mLock held.
+     */
+    private void publish(WidgetInstances instances, long instancesEnd,
+            CalendarAppWidgetModel model, long now, String tz) {
+        boolean rowsChanged = !model.hasSameRows(mModel, mModelShownAt);
+        mInstances = instances;
+        mInstancesEnd = instancesEnd;
+        mModel = model;
+
+        scheduleUpdateAlarm(model, now, tz);
+
+        // Most reloads are caused by changes to events that aren't shown, so
+        // only make the widgets rebuild their rows if something visible changed.
+        if (rowsChanged) {
+            mModelShownAt = now;
+            notifyWidgets();
+        } else if (LOGD) {
+            Log.d(TAG, "Widget rows unchanged, skipping refresh");
+        }
+    }
+
+    /**
+     * Works out when the rows of a freshly loaded model change with the time, and
+     * schedules the first of those.
+     */
+    private void scheduleUpdateAlarm(CalendarAppWidgetModel model, long now, String tz) {
+        // Make sure an update happens at midnight or earlier
+        mRolloverTime = getNextMidnightTimeMillis(tz);
+        mBoundaries = calculateBoundaries(model, now, mRolloverTime);
+        scheduleNextWakeup(now);
+    }
+
+    /**
+     * Schedules an alarm to wake ourselves up for the next update: the next event
+     * boundary, or else midnight. Existing wake-ups are cancelled because
+     * PendingIntents don't match against extras. If the alarm is delivered late, all the
+     * boundaries passed in the meantime are handled by one refresh.
+     */
+    private void scheduleNextWakeup(long now) {
+        long triggerTime = mRolloverTime;
+        int next = Arrays.binarySearch(mBoundaries, now);
+        next = next >= 0 ? next + 1 : -next - 1;
+        if (next < mBoundaries.length) {
+            triggerTime = mBoundaries[next];
+        }
+
+        // If no next-update calculated, or bad trigger time in past, schedule
+        // update about six hours from now.
+        if (triggerTime < now) {
+            Log.w(TAG, "Encountered bad trigger time "
+                    + CalendarAppWidgetService.formatDebugTime(triggerTime, now));
+            triggerTime = now + CalendarAppWidgetService.UPDATE_TIME_NO_EVENTS;
+        }
+        if (LOGD) {
+            Log.d(TAG, "Next widget update at "
+                    + CalendarAppWidgetService.formatDebugTime(triggerTime, now));
+        }
+
+        final AlarmManager alertManager = (AlarmManager) mContext
+                .getSystemService(Context.ALARM_SERVICE);
+        final PendingIntent pendingUpdate = CalendarAppWidgetProvider
+                .getUpdateIntent(mContext);
+
+        alertManager.cancel(pendingUpdate);
+        alertManager.set(AlarmManager.RTC, triggerTime, pendingUpdate);
+    }
+
+    /**
+     * Tells every widget to reload its rows. They all show the same model.
+     */
+    private void notifyWidgets() {
+        AppWidgetManager widgetManager = AppWidgetManager.getInstance(mContext);
+        int[] ids = widgetManager.getAppWidgetIds(CalendarAppWidgetProvider
+                .getComponentName(mContext));
+        widgetManager.notifyAppWidgetViewDataChanged(ids, R.id.events_list);
+    }
+
+    /**
+     * Returns the times before the limit at which an event of the model starts or ends,
+     * sorted and without duplicates, since back to back events share theirs.
+     */
+    static long[] calculateBoundaries(CalendarAppWidgetModel model, long now, long limit) {
+        long[] boundaries = new long[model.mEventInfos.size() * 2];
+        int count = 0;
+        for (EventInfo event : model.mEventInfos) {
+            // We want to update widget when we enter/exit time range of an event.
+            if (now < event.start && event.start < limit) {
+                boundaries[count++] = event.start;
+            }
+            if (now < event.end && event.end < limit) {
+                boundaries[count++] = event.end;
+            }
+        }
+        Arrays.sort(boundaries, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || boundaries[i] != boundaries[distinct - 1]) {
+                boundaries[distinct++] = boundaries[i];
+            }
+        }
+        return Arrays.copyOf(boundaries, distinct);
+    }
+
+    private static long getNextMidnightTimeMillis(String timezone) {
+        Time time = new Time();
+        time.setToNow();
+        time.monthDay++;
+        time.hour = 0;
+        time.minute = 0;
+        time.second = 0;
+        long midnightDeviceTz = time.normalize(true);
+
+        time.timezone = timezone;
+        time.setToNow();
+        time.monthDay++;
+        time.hour = 0;
+        time.minute = 0;
+        time.second = 0;
+        long midnightHomeTz = time.normalize(true);
+
+        return Math.min(midnightDeviceTz, midnightHomeTz);
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.widget;
+
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * An immutable copy of the instances loaded for the widget, one array per column of
+ * {@link CalendarAppWidgetService#EVENT_PROJECTION}.
+ *
+ * The loader's cursor can't be kept around once it is delivered, so the widget used to
+ * copy it into a MatrixCursor, which stores every value as a String and then parses
+ * them back. This reads each column once with its own type instead. Titles and
+ * locations repeat a lot across the instances of recurring events, so equal strings
+ * share one instance.
+ */
+final class WidgetInstances {
+    private final long[] mEventIds;
+    private final long[] mBegins;
+    private final long[] mEnds;
+    private final boolean[] mAllDays;
+    private final int[] mStartDays;
+    private final int[] mEndDays;
+    private final int[] mColors;
+    private final int[] mSelfAttendeeStatuses;
+    private final String[] mTitles;
+    private final String[] mLocations;
+
+    private WidgetInstances(int count) {
+        mEventIds = new long[count];
+        mBegins = new long[count];
+        mEnds = new long[count];
+        mAllDays = new boolean[count];
+        mStartDays = new int[count];
+        mEndDays = new int[count];
+        mColors = new int[count];
+        mSelfAttendeeStatuses = new int[count];
+        mTitles = new String[count];
+        mLocations = new String[count];
+    }
+
+    /**
+     * Copies the rows of a cursor over {@link CalendarAppWidgetService#EVENT_PROJECTION}.
+     * The cursor's position is not restored.
+     */
+    static WidgetInstances fromCursor(Cursor cursor) {
+        WidgetInstances instances = new WidgetInstances(cursor.getCount());
+        HashMap<String, String> strings = new HashMap<String, String>();
+        cursor.moveToPosition(-1);
+        int i = 0;
+        while (cursor.moveToNext() && i < instances.mEventIds.length) {
+            instances.mEventIds[i] = cursor.getLong(CalendarAppWidgetService.INDEX_EVENT_ID);
+            instances.mBegins[i] = cursor.getLong(CalendarAppWidgetService.INDEX_BEGIN);
+            instances.mEnds[i] = cursor.getLong(CalendarAppWidgetService.INDEX_END);
+            instances.mAllDays[i] = cursor.getInt(CalendarAppWidgetService.INDEX_ALL_DAY) != 0;
+            instances.mStartDays[i] = cursor.getInt(CalendarAppWidgetService.INDEX_START_DAY);
+            instances.mEndDays[i] = cursor.getInt(CalendarAppWidgetService.INDEX_END_DAY);
+            instances.mColors[i] = cursor.getInt(CalendarAppWidgetService.INDEX_COLOR);
+            instances.mSelfAttendeeStatuses[i] =
+                    cursor.getInt(CalendarAppWidgetService.INDEX_SELF_ATTENDEE_STATUS);
+            instances.mTitles[i] = share(strings,
+                    cursor.getString(CalendarAppWidgetService.INDEX_TITLE));
+            instances.mLocations[i] = share(strings,
+                    cursor.getString(CalendarAppWidgetService.INDEX_EVENT_LOCATION));
+            i++;
+        }
+        return instances;
+    }
+
+    /**
+     * Returns a copy with the rows of more added, in the order of the widget query. At
+     * most maxCount rows are kept.
+     */
+    WidgetInstances merge(final WidgetInstances more, int maxCount) {
+        // Rows of this snapshot are stored as i, rows of more as -(i + 1).
+        ArrayList<Integer> rows = new ArrayList<Integer>(size() + more.size());
+        for (int i = 0; i < size(); i++) {
+            rows.add(i);
+        }
+        for (int i = 0; i < more.size(); i++) {
+            rows.add(-(i + 1));
+        }
+        // The sort is stable, so rows that were already in query order stay that way.
+        Collections.sort(rows, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                WidgetInstances l = lhs >= 0 ? WidgetInstances.this : more;
+                WidgetInstances r = rhs >= 0 ? WidgetInstances.this : more;
+                int li = lhs >= 0 ? lhs : -lhs - 1;
+                int ri = rhs >= 0 ? rhs : -rhs - 1;
+                return compareRows(l, li, r, ri);
+            }
+        });
+
+        int count = Math.min(rows.size(), maxCount);
+        WidgetInstances result = new WidgetInstances(count);
+        for (int j = 0; j < count; j++) {
+            int row = rows.get(j);
+            if (row >= 0) {
+                copyRow(this, row, result, j);
+            } else {
+                copyRow(more, -row - 1, result, j);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Orders rows like the widget query: by start day, then start time with all-day
+     * events first, then end day and end time.
+     */
+    private static int compareRows(WidgetInstances l, int li, WidgetInstances r, int ri) {
+        if (l.mStartDays[li] != r.mStartDays[ri]) {
+            return l.mStartDays[li] < r.mStartDays[ri] ? -1 : 1;
+        }
+        if (l.mAllDays[li] != r.mAllDays[ri]) {
+            return l.mAllDays[li] ? -1 : 1;
+        }
+        if (!l.mAllDays[li] && l.mBegins[li] != r.mBegins[ri]) {
+            return l.mBegins[li] < r.mBegins[ri] ? -1 : 1;
+        }
+        if (l.mEndDays[li] != r.mEndDays[ri]) {
+            return l.mEndDays[li] < r.mEndDays[ri] ? -1 : 1;
+        }
+        if (l.mEnds[li] != r.mEnds[ri]) {
+            return l.mEnds[li] < r.mEnds[ri] ? -1 : 1;
+        }
+        return 0;
+    }
+
+    private static void copyRow(WidgetInstances from, int i, WidgetInstances to, int j) {
+        to.mEventIds[j] = from.mEventIds[i];
+        to.mBegins[j] = from.mBegins[i];
+        to.mEnds[j] = from.mEnds[i];
+        to.mAllDays[j] = from.mAllDays[i];
+        to.mStartDays[j] = from.mStartDays[i];
+        to.mEndDays[j] = from.mEndDays[i];
+        to.mColors[j] = from.mColors[i];
+        to.mSelfAttendeeStatuses[j] = from.mSelfAttendeeStatuses[i];
+        to.mTitles[j] = from.mTitles[i];
+        to.mLocations[j] = from.mLocations[i];
+    }
+
+    private static String share(HashMap<String, String> strings, String value) {
+        if (value == null) {
+            return null;
+        }
+        String shared = strings.get(value);
+        if (shared == null) {
+            strings.put(value, value);
+            shared = value;
+        }
+        return shared;
+    }
+
+    int size() {
+        return mEventIds.length;
+    }
+
+    long getEventId(int i) {
+        return mEventIds[i];
+    }
+
+    long getBegin(int i) {
+        return mBegins[i];
+    }
+
+    long getEnd(int i) {
+        return mEnds[i];
+    }
+
+    boolean isAllDay(int i) {
+        return mAllDays[i];
+    }
+
+    int getStartDay(int i) {
+        return mStartDays[i];
+    }
+
+    int getEndDay(int i) {
+        return mEndDays[i];
+    }
+
+    int getColor(int i) {
+        return mColors[i];
+    }
+
+    int getSelfAttendeeStatus(int i) {
+        return mSelfAttendeeStatuses[i];
+    }
+
+    String getTitle(int i) {
+        return mTitles[i];
+    }
+
+    String getLocation(int i) {
+        return mLocations[i];
+    }
+}
@@ -27,12 +27,14 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.test.IsolatedContext;
 import android.test.RenamingDelegatingContext;
 import android.test.ServiceTestCase;
@@ -270,6 +272,34 @@ public class AsyncQueryServiceTest extends ServiceTestCase<AsyncQueryServiceHelp
         Log.d(TAG, "testDelay Done <<<<<<<<<<<<<<");
     }
 
+    @LargeTest
+    public void testDelay_onlyDelayedOperations() throws Exception {
+        // Delayed operations must wait for their own time even when others are queued
+        int index = 0;
+        OperationInfo[] work = new OperationInfo[3];
+        work[index++] = generateWork(MIN_DELAY * 3);
+        work[index++] = generateWork(MIN_DELAY);
+        work[index++] = generateWork(MIN_DELAY * 2);
+
+        OperationInfo[] sorted = generateSortedWork(work, work.length);
+        AsyncQueryServiceHelper.QueueMetrics before = AsyncQueryServiceHelper.getQueueMetrics();
+
+        TestAsyncQueryService aqs = new TestAsyncQueryService(buildTestContext(sorted), sorted);
+        long start = SystemClock.elapsedRealtime();
+        startWork(aqs, work);
+
+        assertEquals("Operation ran before its delay", 0, aqs.waitForCompletion(MIN_DELAY / 2));
+        Log.d(TAG, "testDelay_onlyDelayedOperations Waiting >>>>>>>>>>>");
+        assertEquals("Not all operations were executed.", work.length, aqs
+                .waitForCompletion(BASE_TEST_WAIT_TIME));
+        assertTrue("Finished before the longest delay",
+                SystemClock.elapsedRealtime() - start >= MIN_DELAY * 3);
+
+        AsyncQueryServiceHelper.QueueMetrics after = AsyncQueryServiceHelper.getQueueMetrics();
+        assertEquals(work.length, after.dispatched - before.dispatched);
+        Log.d(TAG, "testDelay_onlyDelayedOperations Done <<<<<<<<<<<<<< " + after);
+    }
+
     @LargeTest
     public void testCancel_simpleCancelLastTest() throws Exception {
         int index = 0;
@@ -362,6 +392,122 @@ public class AsyncQueryServiceTest extends ServiceTestCase<AsyncQueryServiceHelp
         Log.d(TAG, "testCancel_multipleCancels Done <<<<<<<<<<<<<<");
     }
 
+    @LargeTest
+    public void testCancel_dropsDelayedOperationRightAway() throws Exception {
+        OperationInfo[] work = new OperationInfo[2];
+        work[0] = generateWork(MIN_DELAY * 100);
+        work[1] = generateWork(0);
+        OperationInfo[] expected = new OperationInfo[] { work[1] };
+        AsyncQueryServiceHelper.QueueMetrics before = AsyncQueryServiceHelper.getQueueMetrics();
+
+        TestAsyncQueryService aqs = new TestAsyncQueryService(buildTestContext(expected), expected);
+        startWork(aqs, work);
+        assertEquals("Can't cancel delay 100", 1, aqs.cancelOperation(work[0].token));
+        assertEquals("Not all operations were executed.", expected.length, aqs
+                .waitForCompletion(BASE_TEST_WAIT_TIME));
+
+        // The dispatcher drops the canceled operation without waiting out its delay
+        long deadline = SystemClock.elapsedRealtime() + BASE_TEST_WAIT_TIME;
+        while (AsyncQueryServiceHelper.getQueueMetrics().dropped == before.dropped
+                && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(MIN_DELAY / 5);
+        }
+        AsyncQueryServiceHelper.QueueMetrics after = AsyncQueryServiceHelper.getQueueMetrics();
+        assertEquals(1, after.dropped - before.dropped);
+        assertEquals(before.depth, after.depth);
+    }
+
+    @LargeTest
+    public void testCoalesce_updatesBehindSlowWrite() throws Exception {
+        Uri uri = Uri.parse(AUTHORITY_URI + "events/1");
+        ContentValues[] values = new ContentValues[3];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+        }
+        values[0].put("title", "first");
+        values[1].put("location", "here");
+        values[2].put("title", "last");
+
+        CoalescingTestProvider provider = runBehindSlowWrite(new Uri[] { uri, uri, uri }, values);
+
+        assertEquals("Updates were not merged into one write", 1, provider.mUpdates.size());
+        assertEquals(0, provider.mBatches);
+        assertEquals(uri, provider.mUpdateUris.get(0));
+        ContentValues merged = provider.mUpdates.get(0);
+        assertEquals(2, merged.size());
+        assertEquals("last", merged.getAsString("title"));
+        assertEquals("here", merged.getAsString("location"));
+    }
+
+    @LargeTest
+    public void testCoalesce_keepsOrderAcrossUris() throws Exception {
+        Uri uri1 = Uri.parse(AUTHORITY_URI + "events/1");
+        Uri uri2 = Uri.parse(AUTHORITY_URI + "events/2");
+        ContentValues[] values = new ContentValues[4];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put("value", i);
+        }
+
+        CoalescingTestProvider provider = runBehindSlowWrite(
+                new Uri[] { uri1, uri1, uri2, uri1 }, values);
+
+        // The last update on uri1 must not be folded in ahead of the one on uri2
+        assertEquals(1, provider.mBatches);
+        assertEquals(3, provider.mUpdates.size());
+        assertEquals(uri1, provider.mUpdateUris.get(0));
+        assertEquals(1, (int) provider.mUpdates.get(0).getAsInteger("value"));
+        assertEquals(uri2, provider.mUpdateUris.get(1));
+        assertEquals(2, (int) provider.mUpdates.get(1).getAsInteger("value"));
+        assertEquals(uri1, provider.mUpdateUris.get(2));
+        assertEquals(3, (int) provider.mUpdates.get(2).getAsInteger("value"));
+    }
+
+    /**
+     * Starts a delete that blocks in the provider, queues coalescing updates of
+     * the given uris behind it, then lets the delete finish and waits for every
+     * update to be called back.
+     */
+    private CoalescingTestProvider runBehindSlowWrite(Uri[] uris, ContentValues[] values)
+            throws Exception {
+        OperationInfo[] work = new OperationInfo[uris.length + 1];
+        work[0] = generateWork(0);
+        for (int i = 0; i < uris.length; i++) {
+            OperationInfo update = new OperationInfo();
+            update.op = Operation.EVENT_ARG_UPDATE;
+            update.token = ++mId;
+            update.uri = uris[i];
+            update.values = values[i];
+            update.result = 1;
+            work[i + 1] = update;
+        }
+
+        CoalescingTestProvider provider = new CoalescingTestProvider(work[0].result);
+        TestAsyncQueryService aqs = new TestAsyncQueryService(buildTestContext(provider), work);
+        aqs.setCoalescingEnabled(true);
+        aqs.startDelete(work[0].token, work[0].cookie, work[0].uri, work[0].selection,
+                work[0].selectionArgs, 0);
+        assertTrue("Delete did not start",
+                provider.mDeleteStarted.tryAcquire(BASE_TEST_WAIT_TIME, TimeUnit.MILLISECONDS));
+
+        AsyncQueryServiceHelper.QueueMetrics before = AsyncQueryServiceHelper.getQueueMetrics();
+        for (int i = 1; i < work.length; i++) {
+            aqs.startUpdate(work[i].token, null, work[i].uri, work[i].values, null, null, 0);
+        }
+        // Let every update reach its lane before the delete finishes
+        long deadline = SystemClock.elapsedRealtime() + BASE_TEST_WAIT_TIME;
+        while (AsyncQueryServiceHelper.getQueueMetrics().dispatched - before.dispatched
+                < uris.length && SystemClock.elapsedRealtime() < deadline) {
+            SystemClock.sleep(5);
+        }
+        SystemClock.sleep(MIN_DELAY);
+        provider.mReleaseDelete.release();
+
+        assertEquals("Not all operations were called back.", work.length,
+                aqs.waitForCompletion(BASE_TEST_WAIT_TIME));
+        return provider;
+    }
+
     private OperationInfo generateWork(long delayMillis) {
         OperationInfo work = new OperationInfo();
         work.op = Operation.EVENT_ARG_DELETE;
@@ -417,6 +563,10 @@ public class AsyncQueryServiceTest extends ServiceTestCase<AsyncQueryServiceHelp
     }
 
     private Context buildTestContext(final OperationInfo[] work) {
+        return buildTestContext(new TestProvider(work));
+    }
+
+    private Context buildTestContext(final ContentProvider provider) {
         MockContext context = new MockContext() {
             MockContentResolver mResolver;
 
@@ -431,7 +581,6 @@ public class AsyncQueryServiceTest extends ServiceTestCase<AsyncQueryServiceHelp
                     IsolatedContext providerContext =
                             new IsolatedContext(mResolver, targetContextWrapper);
 
-                    ContentProvider provider = new TestProvider(work);
                     provider.attachInfo(providerContext, null);
 
                     mResolver.addProvider(AUTHORITY, provider);
@@ -658,4 +807,67 @@ public class AsyncQueryServiceTest extends ServiceTestCase<AsyncQueryServiceHelp
             return false;
         }
     }
+
+    /**
+     * Blocks the first delete until released and records the updates it is
+     * given, directly or through a batch.
+     */
+    class CoalescingTestProvider extends ContentProvider {
+        final Semaphore mDeleteStarted = new Semaphore(0);
+        final Semaphore mReleaseDelete = new Semaphore(0);
+        final ArrayList<Uri> mUpdateUris = new ArrayList<Uri>();
+        final ArrayList<ContentValues> mUpdates = new ArrayList<ContentValues>();
+        int mBatches;
+
+        private final Object mDeleteResult;
+
+        public CoalescingTestProvider(Object deleteResult) {
+            mDeleteResult = deleteResult;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            mDeleteStarted.release();
+            mReleaseDelete.acquireUninterruptibly();
+            return (Integer) mDeleteResult;
+        }
+
+        @Override
+        public synchronized int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            mUpdateUris.add(uri);
+            mUpdates.add(new ContentValues(values));
+            return 1;
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            synchronized (this) {
+                mBatches++;
+            }
+            return super.applyBatch(operations);
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String orderBy) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            return null;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public boolean onCreate() {
+            return false;
+        }
+    }
 }
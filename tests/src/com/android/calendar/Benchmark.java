@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.calendar;
+
+import android.os.Debug;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Runs the stages of a benchmark test and logs their latency and allocations under the
+ * test's log tag. The numbers are logged rather than asserted on, since they depend on
+ * the device running the tests.
+ */
+public class Benchmark {
+    public static final int WARMUP_ITERATIONS = 2;
+    public static final int ITERATIONS = 10;
+
+    /**
+     * One step of a workload. setUp runs before every iteration and isn't measured.
+     */
+    public static abstract class Stage {
+        final String mName;
+
+        public Stage(String name) {
+            mName = name;
+        }
+
+        public void setUp() {
+        }
+
+        public abstract void run();
+    }
+
+    private final String mTag;
+
+    public Benchmark(String tag) {
+        mTag = tag;
+    }
+
+    /**
+     * Runs the stage and logs the median latency and mean allocations per iteration.
+     */
+    public void measure(Stage stage) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            stage.setUp();
+            stage.run();
+        }
+
+        long[] nanos = new long[ITERATIONS];
+        long allocCount = 0;
+        long allocSize = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            stage.setUp();
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            long start = System.nanoTime();
+            stage.run();
+            nanos[i] = System.nanoTime() - start;
+            allocCount += Debug.getThreadAllocCount();
+            allocSize += Debug.getThreadAllocSize();
+            Debug.stopAllocCounting();
+        }
+
+        Arrays.sort(nanos);
+        Log.i(mTag, stage.mName + ": median " + nanos[ITERATIONS / 2] / 1000 + "us, min "
+                + nanos[0] / 1000 + "us, max " + nanos[ITERATIONS - 1] / 1000 + "us, "
+                + allocCount / ITERATIONS + " allocations ("
+                + allocSize / ITERATIONS / 1024 + "KB) per run");
+    }
+}
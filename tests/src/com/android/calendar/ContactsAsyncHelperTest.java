@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract.Contacts;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.calendar.event.EditEventHelper.AttendeeItem;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ContactsAsyncHelperTest extends AndroidTestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final Uri mContactUri = Uri.withAppendedPath(Contacts.CONTENT_URI, "4711");
+
+    private TestDecoder mDecoder;
+
+    /**
+     * Counts decodes and holds each one until it is released.
+     */
+    private static class TestDecoder implements ContactsAsyncHelper.PhotoDecoder {
+        final AtomicInteger mDecodes = new AtomicInteger();
+        final Semaphore mStarted = new Semaphore(0);
+        final Semaphore mRelease = new Semaphore(0);
+
+        @Override
+        public Bitmap decode(Context context, Uri uri, int size) {
+            mDecodes.incrementAndGet();
+            mStarted.release();
+            try {
+                mRelease.acquire();
+            } catch (InterruptedException e) {
+                return null;
+            }
+            return Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDecoder = new TestDecoder();
+        ContactsAsyncHelper.setPhotoDecoder(mDecoder);
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                ContactsAsyncHelper.onContactsChanged();
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // Let any decode still held finish
+        mDecoder.mRelease.release(10);
+        ContactsAsyncHelper.setPhotoDecoder(null);
+        super.tearDown();
+    }
+
+    private void runOnMainThread(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                runnable.run();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Requests the photo for a new attendee item on the main thread.
+     */
+    private AttendeeItem request(final CountDownLatch loaded) throws InterruptedException {
+        final AttendeeItem item = new AttendeeItem(null, null);
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                ContactsAsyncHelper.retrieveContactPhotoAsync(getContext(), item,
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                loaded.countDown();
+                            }
+                        }, mContactUri);
+            }
+        });
+        return item;
+    }
+
+    private void loadAndCache() throws InterruptedException {
+        CountDownLatch loaded = new CountDownLatch(1);
+        request(loaded);
+        mDecoder.mRelease.release();
+        assertTrue(loaded.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @MediumTest
+    public void testConcurrentRequestsShareOneDecode() throws Exception {
+        CountDownLatch loaded = new CountDownLatch(2);
+        AttendeeItem first = request(loaded);
+        assertTrue(mDecoder.mStarted.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        AttendeeItem second = request(loaded);
+
+        mDecoder.mRelease.release();
+        assertTrue(loaded.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, mDecoder.mDecodes.get());
+        assertNotNull(first.mBadge);
+        assertNotNull(second.mBadge);
+        // Callers change their drawables, so they must not share one.
+        assertNotSame(first.mBadge, second.mBadge);
+    }
+
+    @MediumTest
+    public void testCachedPhotoIsDeliveredRightAway() throws Exception {
+        loadAndCache();
+
+        CountDownLatch loaded = new CountDownLatch(1);
+        AttendeeItem item = request(loaded);
+        // Delivered within the request, without another decode.
+        assertEquals(0, loaded.getCount());
+        assertNotNull(item.mBadge);
+        assertEquals(1, mDecoder.mDecodes.get());
+    }
+
+    @MediumTest
+    public void testContactsChangeClearsCache() throws Exception {
+        loadAndCache();
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                ContactsAsyncHelper.onContactsChanged();
+            }
+        });
+
+        loadAndCache();
+        assertEquals(2, mDecoder.mDecodes.get());
+    }
+
+    @MediumTest
+    public void testDecodeFromBeforeChangeIsNotCached() throws Exception {
+        CountDownLatch loaded = new CountDownLatch(1);
+        request(loaded);
+        assertTrue(mDecoder.mStarted.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                ContactsAsyncHelper.onContactsChanged();
+            }
+        });
+        mDecoder.mRelease.release();
+        assertTrue(loaded.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // The photo may have changed while it was decoded, so it is decoded again.
+        loadAndCache();
+        assertEquals(2, mDecoder.mDecodes.get());
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.CalendarContract;
+import android.provider.CalendarContract.Attendees;
+import android.provider.CalendarContract.Events;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class EventSearchIndexTest extends AndroidTestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private SearchTestProvider mProvider;
+    private HandlerThread mThread;
+    private EventSearchIndex mIndex;
+
+    /**
+     * Serves events (id, title, location, description, organizer) and attendees
+     * (event id, name, email), sorted by event id.
+     */
+    private static class SearchTestProvider extends MockContentProvider {
+        final TreeMap<Long, String[]> mEvents = new TreeMap<Long, String[]>();
+        final ArrayList<Object[]> mAttendees = new ArrayList<Object[]>();
+        int mEventsQueries;
+        // Run in the middle of the events query
+        Runnable mDuringQuery;
+
+        void addEvent(long id, String title, String location, String description,
+                String organizer) {
+            mEvents.put(id, new String[] { title, location, description, organizer });
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            if (Events.CONTENT_URI.equals(uri)) {
+                mEventsQueries++;
+                if (mDuringQuery != null) {
+                    mDuringQuery.run();
+                    mDuringQuery = null;
+                }
+                MatrixCursor cursor = new MatrixCursor(projection);
+                for (Long id : mEvents.keySet()) {
+                    String[] fields = mEvents.get(id);
+                    cursor.addRow(new Object[] { id, fields[0], fields[1], fields[2],
+                            fields[3] });
+                }
+                return cursor;
+            } else if (Attendees.CONTENT_URI.equals(uri)) {
+                MatrixCursor cursor = new MatrixCursor(projection);
+                for (Object[] attendee : mAttendees) {
+                    cursor.addRow(attendee);
+                }
+                return cursor;
+            }
+            return super.query(uri, projection, selection, selectionArgs, sortOrder);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new SearchTestProvider();
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(CalendarContract.AUTHORITY, mProvider);
+        Context context = new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+        mThread = new HandlerThread("EventSearchIndexTest");
+        mThread.start();
+        mIndex = new EventSearchIndex(context, null, mThread.getLooper());
+
+        mProvider.addEvent(1, "Team meeting", "Room 4", null, "boss@example.com");
+        mProvider.addEvent(2, "Lunch", "Cafe", "Bring 50% off coupon", null);
+        mProvider.addEvent(3, "Dentist", null, "Checkup", null);
+        mProvider.mAttendees.add(new Object[] { 2L, "Alice Smith", "alice@example.com" });
+        mProvider.mAttendees.add(new Object[] { 3L, null, "bob@example.com" });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    /**
+     * Waits for the index thread to finish the work queued so far, such as the
+     * scan a stale query asked for.
+     */
+    private void waitForIndexThread() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(mThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private void assertMatches(String query, long... expected) {
+        long[] ids = mIndex.queryEventIds(query);
+        assertNotNull(query, ids);
+        Arrays.sort(ids);
+        assertTrue(query + " matched " + Arrays.toString(ids), Arrays.equals(expected, ids));
+    }
+
+    @SmallTest
+    public void testTokenizeQuery() {
+        List<String> tokens = EventSearchIndex.tokenizeQuery("team, \"room 4\" meet?");
+        assertEquals(Arrays.asList("team", "room 4", "meet"), tokens);
+        assertTrue(EventSearchIndex.tokenizeQuery(" ,.!? ").isEmpty());
+    }
+
+    @SmallTest
+    public void testBuildSearchSelection() {
+        ArrayList<String> args = new ArrayList<String>();
+        assertNull(EventSearchIndex.buildSearchSelection(null, args));
+        assertNull(EventSearchIndex.buildSearchSelection("  ", args));
+        assertTrue(args.isEmpty());
+
+        String selection = EventSearchIndex.buildSearchSelection("eting 50%", args);
+        assertEquals("(title LIKE ? ESCAPE '#' OR location LIKE ? ESCAPE '#'"
+                + " OR description LIKE ? ESCAPE '#' OR attendees LIKE ? ESCAPE '#')"
+                + " AND (title LIKE ? ESCAPE '#' OR location LIKE ? ESCAPE '#'"
+                + " OR description LIKE ? ESCAPE '#' OR attendees LIKE ? ESCAPE '#')",
+                selection);
+        assertEquals(8, args.size());
+        assertEquals("%eting%", args.get(0));
+        assertEquals("%50#%%", args.get(4));
+    }
+
+    @SmallTest
+    public void testBuildMatchExpression() {
+        assertNull(EventSearchIndex.buildMatchExpression(null));
+        assertNull(EventSearchIndex.buildMatchExpression("% , #"));
+        assertEquals("meet* room* 4*",
+                EventSearchIndex.buildMatchExpression("MEET \"room 4\" meet"));
+        assertEquals("alice* example*", EventSearchIndex.buildMatchExpression("alice@example"));
+    }
+
+    @SmallTest
+    public void testBuildTerms() {
+        assertEquals("team eam am m 4", EventSearchIndex.buildTerms("Team", null, "4 am"));
+
+        // Long words are cut, but still indexed at every position.
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < EventSearchIndex.MAX_TERM_LENGTH + 2; i++) {
+            word.append((char) ('a' + i % 26));
+        }
+        String[] terms = EventSearchIndex.buildTerms(word.toString()).split(" ");
+        assertEquals(EventSearchIndex.MAX_TERM_LENGTH + 2, terms.length);
+        assertEquals(EventSearchIndex.MAX_TERM_LENGTH, terms[0].length());
+        assertEquals(1, terms[terms.length - 1].length());
+    }
+
+    @SmallTest
+    public void testSubstringMatches() throws Exception {
+        // The first search finds the index stale and has it scanned.
+        assertNull(mIndex.queryEventIds("meeting"));
+        waitForIndexThread();
+        assertTrue(mIndex.isUpToDate());
+
+        // Words match anywhere in a field, like the provider search.
+        assertMatches("eting", 1);
+        assertMatches("MEET", 1);
+        assertMatches("team room", 1);
+        assertMatches("team lunch");
+        assertMatches("\"room 4\"", 1);
+        assertMatches("50%", 2);
+        assertMatches("5_");
+        assertMatches("m 4", 1);
+        // A phrase is looked up by its words, then checked whole.
+        assertMatches("\"team room\"");
+    }
+
+    @SmallTest
+    public void testAttendeesAndOrganizerMatch() {
+        mIndex.sync();
+        assertMatches("smith", 2);
+        assertMatches("alice@example", 2);
+        assertMatches("bob", 3);
+        assertMatches("boss", 1);
+        assertMatches("example.com", 1, 2, 3);
+    }
+
+    @SmallTest
+    public void testSyncUpdatesChangedAndRemovedEvents() throws Exception {
+        mIndex.sync();
+        mProvider.addEvent(1, "Standup", "Room 4", null, null);
+        mProvider.mEvents.remove(3L);
+        mIndex.invalidate();
+        assertFalse(mIndex.isUpToDate());
+        assertNull(mIndex.queryEventIds("standup"));
+
+        waitForIndexThread();
+        assertMatches("standup", 1);
+        assertMatches("meeting");
+        assertMatches("dentist");
+    }
+
+    @SmallTest
+    public void testChangeDuringSyncLeavesIndexStale() throws Exception {
+        mProvider.mDuringQuery = new Runnable() {
+            @Override
+            public void run() {
+                // The observer fires while the scan is under way.
+                mIndex.invalidate();
+            }
+        };
+        mIndex.sync();
+        assertFalse(mIndex.isUpToDate());
+        assertNull(mIndex.queryEventIds("lunch"));
+
+        waitForIndexThread();
+        assertTrue(mIndex.isUpToDate());
+        assertEquals(2, mProvider.mEventsQueries);
+    }
+
+    @SmallTest
+    public void testNoScanWithoutSearch() throws Exception {
+        mIndex.sync();
+        mIndex.invalidate();
+        mIndex.invalidate();
+        waitForIndexThread();
+        // Changes alone don't make the index scan again.
+        assertEquals(1, mProvider.mEventsQueries);
+
+        assertNull(mIndex.queryEventIds("lunch"));
+        mIndex.queryEventIds("lunch");
+        waitForIndexThread();
+        assertEquals(2, mProvider.mEventsQueries);
+        assertMatches("lunch", 2);
+    }
+
+    @SmallTest
+    public void testAcquireMarksIndexStale() {
+        mIndex.sync();
+        assertTrue(mIndex.isUpToDate());
+        // Changes weren't watched before the first search screen took the index.
+        mIndex.acquire();
+        assertFalse(mIndex.isUpToDate());
+        mIndex.acquire();
+        mIndex.release();
+        mIndex.release();
+    }
+}
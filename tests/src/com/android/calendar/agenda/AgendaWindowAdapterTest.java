@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.agenda;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+public class AgendaWindowAdapterTest extends TestCase {
+
+    @SmallTest
+    public void testIsRefinementOf_typedOn() {
+        assertTrue(AgendaWindowAdapter.isRefinementOf("meet", "mee"));
+        assertTrue(AgendaWindowAdapter.isRefinementOf("Meeting", "meet"));
+        assertTrue(AgendaWindowAdapter.isRefinementOf("team m", "team"));
+        assertTrue(AgendaWindowAdapter.isRefinementOf("\"room 4\"", "\"room 4"));
+    }
+
+    @SmallTest
+    public void testIsRefinementOf_notNarrower() {
+        // The same query is refreshed, not filtered.
+        assertFalse(AgendaWindowAdapter.isRefinementOf("meet", "meet"));
+        // Deleting characters widens the search.
+        assertFalse(AgendaWindowAdapter.isRefinementOf("mee", "meet"));
+        // A changed word is a different search.
+        assertFalse(AgendaWindowAdapter.isRefinementOf("lunch", "meet"));
+        assertFalse(AgendaWindowAdapter.isRefinementOf("xmeet", "meet"));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calendar.agenda;
+
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+public class FilteredCursorTest extends TestCase {
+
+    private MatrixCursor mCursor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Instances of events 1, 2, 3, 2 and 5, as the agenda gets them
+        mCursor = new MatrixCursor(new String[] { "instance", "event_id" });
+        long[] eventIds = new long[] { 1, 2, 3, 2, 5 };
+        for (int i = 0; i < eventIds.length; i++) {
+            mCursor.addRow(new Object[] { 100 + i, eventIds[i] });
+        }
+    }
+
+    @SmallTest
+    public void testFilterByIds() {
+        FilteredCursor cursor = FilteredCursor.filterByIds(mCursor, 1, new long[] { 2, 5 });
+        assertEquals(3, cursor.getCount());
+        assertTrue(cursor.isBeforeFirst());
+
+        // Rows keep their order and every instance of a matching event is kept.
+        assertTrue(cursor.moveToNext());
+        assertTrue(cursor.isFirst());
+        assertEquals(101, cursor.getLong(0));
+        assertTrue(cursor.moveToNext());
+        assertEquals(103, cursor.getLong(0));
+        assertTrue(cursor.moveToNext());
+        assertTrue(cursor.isLast());
+        assertEquals(104, cursor.getLong(0));
+        assertEquals(2, cursor.getPosition());
+        assertFalse(cursor.moveToNext());
+        assertTrue(cursor.isAfterLast());
+    }
+
+    @SmallTest
+    public void testRandomAccess() {
+        FilteredCursor cursor = FilteredCursor.filterByIds(mCursor, 1, new long[] { 1, 3 });
+        assertTrue(cursor.moveToLast());
+        assertEquals(102, cursor.getLong(0));
+        assertTrue(cursor.moveToPrevious());
+        assertEquals(100, cursor.getLong(0));
+        assertFalse(cursor.moveToPrevious());
+        assertEquals(-1, cursor.getPosition());
+        assertTrue(cursor.move(2));
+        assertEquals(102, cursor.getLong(0));
+        assertFalse(cursor.moveToPosition(2));
+        assertTrue(cursor.moveToFirst());
+        assertEquals(100, cursor.getLong(0));
+    }
+
+    @SmallTest
+    public void testNoMatches() {
+        FilteredCursor cursor = FilteredCursor.filterByIds(mCursor, 1, new long[] { 4 });
+        assertEquals(0, cursor.getCount());
+        assertFalse(cursor.moveToFirst());
+        assertTrue(cursor.isBeforeFirst());
+        assertTrue(cursor.isAfterLast());
+        assertFalse(cursor.isFirst());
+        assertFalse(cursor.isLast());
+    }
+
+    @SmallTest
+    public void testFilterTwice() {
+        // Refining a refined search filters the filtered cursor again.
+        FilteredCursor first = FilteredCursor.filterByIds(mCursor, 1, new long[] { 2, 3, 5 });
+        FilteredCursor second = FilteredCursor.filterByIds(first, 1, new long[] { 3, 5 });
+        assertEquals(2, second.getCount());
+        assertTrue(second.moveToFirst());
+        assertEquals(102, second.getLong(0));
+        assertTrue(second.moveToNext());
+        assertEquals(104, second.getLong(0));
+
+        second.close();
+        assertTrue(mCursor.isClosed());
+    }
+}
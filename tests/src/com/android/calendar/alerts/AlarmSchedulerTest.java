@@ -36,11 +36,18 @@ import junit.framework.Assert;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 
 @SmallTest
 public class AlarmSchedulerTest extends AndroidTestCase {
-    private static final int BATCH_SIZE = 50;
+    private static final String TAG = "AlarmSchedulerTest";
+    // Runs of each path timed by testManyEventsMatchBatchedQueries
+    private static final int TIMING_RUNS = 5;
+
     private MockProvider mMockProvider;
     private MockAlarmManager mMockAlarmManager;
     private IsolatedContext mIsolatedContext;
@@ -79,11 +86,28 @@ public class AlarmSchedulerTest extends AndroidTestCase {
             mEvents.add(new EventInfo(eventId, allDay, begin, reminderMinutes));
         }
 
-        private MatrixCursor getInstancesCursor() {
+        /**
+         * Returns the test data, sorted by event id if a sort order was requested.
+         */
+        private ArrayList<EventInfo> getEvents(String sortOrder) {
+            ArrayList<EventInfo> events = new ArrayList<EventInfo>(mEvents);
+            if (sortOrder != null) {
+                Collections.sort(events, new Comparator<EventInfo>() {
+                    @Override
+                    public int compare(EventInfo lhs, EventInfo rhs) {
+                        return lhs.mEventId < rhs.mEventId ? -1
+                                : (lhs.mEventId == rhs.mEventId ? 0 : 1);
+                    }
+                });
+            }
+            return events;
+        }
+
+        private MatrixCursor getInstancesCursor(String sortOrder) {
             MatrixCursor instancesCursor = new MatrixCursor(AlarmScheduler.INSTANCES_PROJECTION);
             int i = 0;
             HashSet<Long> eventIds = new HashSet<Long>();
-            for (EventInfo event : mEvents) {
+            for (EventInfo event : getEvents(sortOrder)) {
                 if (!eventIds.contains(event.mEventId)) {
                     Object[] ca = {
                             event.mEventId,
@@ -97,10 +121,10 @@ public class AlarmSchedulerTest extends AndroidTestCase {
             return instancesCursor;
         }
 
-        private MatrixCursor getRemindersCursor() {
+        private MatrixCursor getRemindersCursor(String sortOrder) {
             MatrixCursor remindersCursor = new MatrixCursor(AlarmScheduler.REMINDERS_PROJECTION);
             int i = 0;
-            for (EventInfo event : mEvents) {
+            for (EventInfo event : getEvents(sortOrder)) {
                 Object[] ca = {
                         event.mEventId,
                         event.mReminderMinutes,
@@ -115,7 +139,7 @@ public class AlarmSchedulerTest extends AndroidTestCase {
         public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                 String sortOrder) {
             if (uri.toString().startsWith(Instances.CONTENT_URI.toString())) {
-                return getInstancesCursor();
+                return getInstancesCursor(sortOrder);
             } else if (Reminders.CONTENT_URI.equals(uri)) {
                 if (mExpectedRemindersQueries.size() > 0) {
                     if (mExpectedRemindersQueries.size() <= mCurrentReminderQueryIndex ||
@@ -130,7 +154,7 @@ public class AlarmSchedulerTest extends AndroidTestCase {
                     }
                     mCurrentReminderQueryIndex++;
                 }
-                return getRemindersCursor();
+                return getRemindersCursor(sortOrder);
             } else {
                 return super.query(uri, projection, selection, selectionArgs, sortOrder);
             }
@@ -166,7 +190,7 @@ public class AlarmSchedulerTest extends AndroidTestCase {
 
     public void testNoEvents() {
         AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager,
-                BATCH_SIZE, System.currentTimeMillis());
+                System.currentTimeMillis());
         assertFalse(mMockAlarmManager.isAlarmSet());
     }
 
@@ -179,7 +203,7 @@ public class AlarmSchedulerTest extends AndroidTestCase {
         expectAlarmAt(startMillis - reminderMin * DateUtils.MINUTE_IN_MILLIS);
 
         // Invoke scheduleNextAlarm and verify alarm was set at the expected time.
-        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager, BATCH_SIZE,
+        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager,
                 currentMillis);
         assertTrue(mMockAlarmManager.isAlarmSet());
     }
@@ -195,7 +219,7 @@ public class AlarmSchedulerTest extends AndroidTestCase {
         expectAlarmAt(startMillisLocal - reminderMin * DateUtils.MINUTE_IN_MILLIS);
 
         // Invoke scheduleNextAlarm and verify alarm was set at the expected time.
-        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager, BATCH_SIZE,
+        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager,
                 currentMillis);
         assertTrue(mMockAlarmManager.isAlarmSet());
     }
@@ -211,7 +235,7 @@ public class AlarmSchedulerTest extends AndroidTestCase {
         expectAlarmAt(startMillisLocal - 15 * DateUtils.MINUTE_IN_MILLIS);
 
         // Invoke scheduleNextAlarm and verify alarm was set at the expected time.
-        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager, BATCH_SIZE,
+        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager,
                 currentMillis);
         assertTrue(mMockAlarmManager.isAlarmSet());
     }
@@ -224,7 +248,7 @@ public class AlarmSchedulerTest extends AndroidTestCase {
         mMockProvider.addEventInfo(1, false, startMillis, reminderMin);
 
         // Invoke scheduleNextAlarm and verify no alarm was set.
-        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager, BATCH_SIZE,
+        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager,
                 currentMillis);
         assertFalse(mMockAlarmManager.isAlarmSet());
     }
@@ -239,7 +263,7 @@ public class AlarmSchedulerTest extends AndroidTestCase {
         expectAlarmAt(currentMillis + DateUtils.DAY_IN_MILLIS);
 
         // Invoke scheduleNextAlarm and verify alarm was set at the expected time.
-        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager, BATCH_SIZE,
+        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager,
                 currentMillis);
         assertTrue(mMockAlarmManager.isAlarmSet());
     }
@@ -255,7 +279,7 @@ public class AlarmSchedulerTest extends AndroidTestCase {
         expectAlarmAt(currentMillis + DateUtils.MINUTE_IN_MILLIS * 15);
 
         // Invoke scheduleNextAlarm and verify alarm was set at the expected time.
-        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager, BATCH_SIZE,
+        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager,
                 currentMillis);
         assertTrue(mMockAlarmManager.isAlarmSet());
     }
@@ -275,7 +299,7 @@ public class AlarmSchedulerTest extends AndroidTestCase {
         expectAlarmAt(currentMillis + DateUtils.DAY_IN_MILLIS);
 
         // Invoke scheduleNextAlarm and verify alarm was set at the expected time.
-        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager, BATCH_SIZE,
+        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager,
                 currentMillis);
         assertTrue(mMockAlarmManager.isAlarmSet());
     }
@@ -291,29 +315,143 @@ public class AlarmSchedulerTest extends AndroidTestCase {
         expectAlarmAt(currentMillis + DateUtils.DAY_IN_MILLIS - DateUtils.MINUTE_IN_MILLIS * 20);
 
         // Invoke scheduleNextAlarm and verify alarm was set at the expected time.
-        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager, BATCH_SIZE,
+        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager,
                 currentMillis);
         assertTrue(mMockAlarmManager.isAlarmSet());
     }
 
-    public void testLargeBatch() {
-        // Add enough events to require several batches.
+    public void testSingleRemindersQuery() {
+        // Add events in descending id order; the reminders of all of them are still
+        // fetched with a single query.
         long currentMillis = System.currentTimeMillis();
-        int batchSize = 5;
         for (int i = 19; i > 0; i--) {
             mMockProvider.addEventInfo(i, false, currentMillis + DateUtils.HOUR_IN_MILLIS * i,
                     10);
         }
 
-        // Set up expectations for the batch queries.
+        // Set up expectations for the reminders query.
         expectAlarmAt(currentMillis + DateUtils.MINUTE_IN_MILLIS * 50);
-        mMockProvider.addExpectedRemindersQuery("method=1 AND event_id IN (19,18,17,16,15)");
-        mMockProvider.addExpectedRemindersQuery("method=1 AND event_id IN (14,13,12,11,10)");
-        mMockProvider.addExpectedRemindersQuery("method=1 AND event_id IN (9,8,7,6,5)");
-        mMockProvider.addExpectedRemindersQuery("method=1 AND event_id IN (4,3,2,1)");
+        mMockProvider.addExpectedRemindersQuery("method=1 AND event_id>=? AND event_id<=?");
 
-        // Invoke scheduleNextAlarm and verify alarm and reminder query batches.
-        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager, batchSize,
-                currentMillis);
+        // Invoke scheduleNextAlarm and verify alarm and reminder query.
+        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager, currentMillis);
+        assertTrue(mMockAlarmManager.isAlarmSet());
+    }
+
+    public void testManyEventsMatchBatchedQueries() {
+        // Thousands of events with a couple of reminders each, starting throughout the week.
+        long currentMillis = System.currentTimeMillis();
+        int eventCount = 2000;
+        long step = AlarmScheduler.EVENT_LOOKAHEAD_WINDOW_MS / eventCount;
+        for (int i = eventCount; i > 0; i--) {
+            long begin = currentMillis + DateUtils.HOUR_IN_MILLIS + step * i;
+            mMockProvider.addEventInfo(i, false, begin, 10 + (i * 7) % 50);
+            mMockProvider.addEventInfo(i, false, begin, 5);
+        }
+
+        // The alarm the batched "event_id IN (...)" queries used to come up with.
+        long expectedAlarmTime = queryNextAlarmTimeBatched(currentMillis, 50);
+        assertTrue(expectedAlarmTime < Long.MAX_VALUE);
+        expectAlarmAt(expectedAlarmTime);
+
+        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager, currentMillis);
+        assertTrue(mMockAlarmManager.isAlarmSet());
+
+        // The best of a few runs of each, so a garbage collection doesn't decide it.
+        long batchedNanos = Long.MAX_VALUE;
+        long mergedNanos = Long.MAX_VALUE;
+        for (int i = 0; i < TIMING_RUNS; i++) {
+            long start = System.nanoTime();
+            queryNextAlarmTimeBatched(currentMillis, 50);
+            batchedNanos = Math.min(batchedNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager, currentMillis);
+            mergedNanos = Math.min(mergedNanos, System.nanoTime() - start);
+        }
+        Log.i(TAG, "Next alarm for " + eventCount + " events: batched "
+                + batchedNanos / 1000 + "us, merge-join " + mergedNanos / 1000 + "us ("
+                + String.format("%.2f", (double) mergedNanos / batchedNanos) + "x)");
+        assertTrue("Merge-join took " + mergedNanos + "ns, batched queries " + batchedNanos
+                + "ns", mergedNanos < batchedNanos);
+    }
+
+    public void testRemindersQuerySplitAtEventIdGaps() {
+        // Two clusters of event ids, far enough apart to be queried separately.
+        long currentMillis = System.currentTimeMillis();
+        long farId = 10 + AlarmScheduler.EVENT_ID_RANGE_MAX_GAP * 5;
+        mMockProvider.addEventInfo(1, false, currentMillis + DateUtils.HOUR_IN_MILLIS * 3, 10);
+        mMockProvider.addEventInfo(2, false, currentMillis + DateUtils.HOUR_IN_MILLIS * 4, 10);
+        mMockProvider.addEventInfo(farId, false, currentMillis + DateUtils.HOUR_IN_MILLIS * 2,
+                10);
+        mMockProvider.addEventInfo(farId + 1, false, currentMillis + DateUtils.HOUR_IN_MILLIS * 5,
+                10);
+
+        expectAlarmAt(currentMillis + DateUtils.HOUR_IN_MILLIS * 2
+                - DateUtils.MINUTE_IN_MILLIS * 10);
+        mMockProvider.addExpectedRemindersQuery("method=1 AND event_id>=? AND event_id<=?");
+        mMockProvider.addExpectedRemindersQuery("method=1 AND event_id>=? AND event_id<=?");
+
+        AlarmScheduler.scheduleNextAlarm(mIsolatedContext, mMockAlarmManager, currentMillis);
+        assertTrue(mMockAlarmManager.isAlarmSet());
+        assertEquals(2, mMockProvider.mCurrentReminderQueryIndex);
+    }
+
+    /**
+     * The previous way of finding the next alarm: one reminders query per batch of event
+     * ids, joined through a map of boxed start times.
+     */
+    private long queryNextAlarmTimeBatched(long currentMillis, int batchSize) {
+        Cursor instancesCursor = mIsolatedContext.getContentResolver().query(
+                Instances.CONTENT_URI, AlarmScheduler.INSTANCES_PROJECTION, null, null, null);
+        long nextAlarmTime = Long.MAX_VALUE;
+        HashMap<Integer, List<Long>> eventMap = new HashMap<Integer, List<Long>>();
+        try {
+            instancesCursor.moveToPosition(-1);
+            while (!instancesCursor.isAfterLast()) {
+                int index = 0;
+                eventMap.clear();
+                StringBuilder eventIdsForQuery = new StringBuilder();
+                eventIdsForQuery.append('(');
+                while (index++ < batchSize && instancesCursor.moveToNext()) {
+                    int eventId = instancesCursor.getInt(0);
+                    List<Long> startTimes = eventMap.get(eventId);
+                    if (startTimes == null) {
+                        startTimes = new ArrayList<Long>();
+                        eventMap.put(eventId, startTimes);
+                        eventIdsForQuery.append(eventId);
+                        eventIdsForQuery.append(",");
+                    }
+                    startTimes.add(instancesCursor.getLong(1));
+                }
+                if (eventIdsForQuery.charAt(eventIdsForQuery.length() - 1) == ',') {
+                    eventIdsForQuery.deleteCharAt(eventIdsForQuery.length() - 1);
+                }
+                eventIdsForQuery.append(')');
+
+                Cursor cursor = mIsolatedContext.getContentResolver().query(
+                        Reminders.CONTENT_URI, AlarmScheduler.REMINDERS_PROJECTION,
+                        "method=1 AND event_id IN " + eventIdsForQuery, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        List<Long> startTimes = eventMap.get(cursor.getInt(0));
+                        if (startTimes != null) {
+                            for (Long startTime : startTimes) {
+                                long alarmTime = startTime
+                                        - cursor.getInt(1) * DateUtils.MINUTE_IN_MILLIS;
+                                if (alarmTime > currentMillis && alarmTime < nextAlarmTime) {
+                                    nextAlarmTime = alarmTime;
+                                }
+                            }
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        } finally {
+            instancesCursor.close();
+        }
+        return nextAlarmTime;
     }
 }
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.CalendarContract;
+import android.provider.CalendarContract.Attendees;
+import android.provider.CalendarContract.CalendarAlerts;
+import android.provider.CalendarContract.Events;
+import android.provider.CalendarContract.Instances;
+import android.provider.CalendarContract.Reminders;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.format.DateUtils;
+
+import com.android.calendar.Benchmark;
+import com.android.calendar.GeneralPreferences;
+import com.android.calendar.alerts.AlertService.NotificationInfo;
+import com.android.calendar.alerts.AlertService.NotificationWrapper;
+import com.android.calendar.alerts.AlertService.ProviderChangeDebouncer;
+
+import java.util.ArrayList;
+
+/**
+ * Replays synthetic workloads through the alert pipeline and logs the latency and
+ * allocations of each stage, so alert path changes can be measured without a device
+ * full of calendars.
+ *
+ * The numbers are reported under the "AlertPipelineBenchmark" log tag rather than
+ * asserted on, since they depend on the device running the tests:
+ *
+ *   adb logcat -s AlertPipelineBenchmark
+ */
+@LargeTest
+public class AlertPipelineBenchmark extends AndroidTestCase {
+    private static final String TAG = "AlertPipelineBenchmark";
+
+    private static final int EVENT_COUNT = 10000;
+    private static final int CONCURRENT_ALERT_COUNT = 300;
+    private static final int PROVIDER_CHANGE_BURST = 20;
+    // Spacing of the changes in a burst, well under the debounce quiet time
+    private static final long PROVIDER_CHANGE_INTERVAL_MS = 200;
+
+    private final Benchmark mBenchmark = new Benchmark(TAG);
+    private BenchmarkProvider mProvider;
+    private Context mBenchmarkContext;
+    private MockAlarmManager mAlarmManager;
+    private ReminderTimeline mTimeline;
+
+    /**
+     * Serves synthetic events, instances, reminders and alerts, and counts the writes
+     * the pipeline makes.
+     */
+    private static class BenchmarkProvider extends MockContentProvider {
+        private MatrixCursor mInstances;
+        private MatrixCursor mReminders;
+        int mUpdates;
+
+        /**
+         * Adds events starting throughout the lookahead window, each with two reminders.
+         * Rows are added in event id order, which is what the scheduler asks for.
+         */
+        void addEvents(int count, long currentMillis) {
+            mInstances = new MatrixCursor(AlarmScheduler.INSTANCES_PROJECTION, count);
+            mReminders = new MatrixCursor(AlarmScheduler.REMINDERS_PROJECTION, count * 2);
+            long step = AlarmScheduler.EVENT_LOOKAHEAD_WINDOW_MS / count;
+            for (int i = 1; i <= count; i++) {
+                long begin = currentMillis + DateUtils.HOUR_IN_MILLIS + step * (count - i);
+                mInstances.addRow(new Object[] { i, begin, 0 });
+                mReminders.addRow(new Object[] { i, 10 + (i * 7) % 50, 1 });
+                mReminders.addRow(new Object[] { i, 5, 1 });
+            }
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            // The instances and reminders projections of the scheduler and the timeline
+            // are both prefixes of the columns stored here.
+            if (uri.toString().startsWith(Instances.CONTENT_URI.toString())) {
+                return copy(mInstances, projection);
+            } else if (Reminders.CONTENT_URI.equals(uri)) {
+                return copy(mReminders, projection);
+            } else if (Events.CONTENT_URI.equals(uri)) {
+                return queryEvents(projection);
+            } else if (uri.toString().startsWith(Attendees.CONTENT_URI.toString())
+                    || uri.toString().startsWith(Events.CONTENT_URI.toString())) {
+                // No attendees or location, so notifications only get the snooze action.
+                return new MatrixCursor(projection);
+            }
+            return super.query(uri, projection, selection, selectionArgs, sortOrder);
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            mUpdates++;
+            return 1;
+        }
+
+        /**
+         * Applies the operations one by one, so batched alert updates are counted in
+         * {@link #mUpdates} like single ones.
+         */
+        @Override
+        public ContentProviderResult[] applyBatch(
+                ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = operations.get(i).apply(this, results, i);
+            }
+            return results;
+        }
+
+        /**
+         * Returns a one-off event for each instance, with only the id and start time set.
+         */
+        private MatrixCursor queryEvents(String[] projection) {
+            int count = mInstances == null ? 0 : mInstances.getCount();
+            MatrixCursor cursor = new MatrixCursor(projection, count);
+            if (mInstances == null) {
+                return cursor;
+            }
+            Object[] row = new Object[projection.length];
+            mInstances.moveToPosition(-1);
+            while (mInstances.moveToNext()) {
+                for (int i = 0; i < row.length; i++) {
+                    if (Events._ID.equals(projection[i])) {
+                        row[i] = mInstances.getLong(0);
+                    } else if (Events.DTSTART.equals(projection[i])) {
+                        row[i] = mInstances.getLong(1);
+                    } else {
+                        row[i] = null;
+                    }
+                }
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+
+        private static MatrixCursor copy(MatrixCursor source, String[] projection) {
+            MatrixCursor copy = new MatrixCursor(projection, source == null ? 0
+                    : source.getCount());
+            if (source == null) {
+                return copy;
+            }
+            Object[] row = new Object[projection.length];
+            source.moveToPosition(-1);
+            while (source.moveToNext()) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = source.getLong(i);
+                }
+                copy.addRow(row);
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * A notification manager that only counts what would have been shown.
+     */
+    private static class CountingNotificationMgr extends NotificationMgr {
+        int mNotified;
+        int mCancelled;
+
+        @Override
+        public void notify(int id, NotificationWrapper notification) {
+            mNotified++;
+        }
+
+        @Override
+        public void cancel(int id) {
+            mCancelled++;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new BenchmarkProvider();
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(CalendarContract.AUTHORITY, mProvider);
+        // Preferences and files still come from the test context, as in AlertServiceTest.
+        mBenchmarkContext = new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+        mAlarmManager = new MockAlarmManager(getContext());
+        mTimeline = new ReminderTimeline(mBenchmarkContext, null);
+    }
+
+    /**
+     * Builds the CalendarAlerts rows for a busy morning: count alerts for distinct
+     * events, some about to start, some in progress and some over.
+     */
+    private static MatrixCursor buildAlertCursor(int count, long currentTime) {
+        MatrixCursor cursor = new MatrixCursor(AlertService.ALERT_PROJECTION, count);
+        for (int i = 0; i < count; i++) {
+            long begin = currentTime + (i % 3 - 1) * DateUtils.HOUR_IN_MILLIS
+                    + (i % 60) * DateUtils.MINUTE_IN_MILLIS;
+            long end = begin + DateUtils.HOUR_IN_MILLIS;
+            int minutes = 10;
+            cursor.addRow(new Object[] {
+                    i,
+                    1000 + i,
+                    i % 4 == 0 ? CalendarAlerts.STATE_SCHEDULED : CalendarAlerts.STATE_FIRED,
+                    "Title" + i,
+                    "Loc" + i,
+                    Attendees.ATTENDEE_STATUS_ACCEPTED,
+                    0,
+                    begin - minutes * DateUtils.MINUTE_IN_MILLIS,
+                    minutes,
+                    begin,
+                    end,
+                    "Desc" + i
+            });
+        }
+        return cursor;
+    }
+
+    /**
+     * Times the next alarm lookup through the reminder timeline, both when the table
+     * is rebuilt and when it is checked after a provider change that touched nothing.
+     */
+    public void testScheduleNextAlarm() {
+        final long currentMillis = System.currentTimeMillis();
+        mProvider.addEvents(EVENT_COUNT, currentMillis);
+
+        mBenchmark.measure(new Benchmark.Stage("scheduleNextAlarm, rebuild, " + EVENT_COUNT
+                + " events") {
+            @Override
+            public void setUp() {
+                mTimeline.requestRebuild();
+            }
+
+            @Override
+            public void run() {
+                AlarmScheduler.scheduleNextAlarm(mBenchmarkContext, mAlarmManager, mTimeline,
+                        currentMillis);
+            }
+        });
+        assertTrue(mAlarmManager.isAlarmSet());
+
+        mBenchmark.measure(new Benchmark.Stage("scheduleNextAlarm, unchanged, " + EVENT_COUNT
+                + " events") {
+            @Override
+            public void setUp() {
+                mTimeline.invalidate();
+            }
+
+            @Override
+            public void run() {
+                AlarmScheduler.scheduleNextAlarm(mBenchmarkContext, mAlarmManager, mTimeline,
+                        currentMillis);
+            }
+        });
+        assertTrue(mAlarmManager.isAlarmSet());
+    }
+
+    public void testProcessQuery() {
+        final long currentTime = System.currentTimeMillis();
+        final ArrayList<NotificationInfo> high = new ArrayList<NotificationInfo>();
+        final ArrayList<NotificationInfo> medium = new ArrayList<NotificationInfo>();
+        final ArrayList<NotificationInfo> low = new ArrayList<NotificationInfo>();
+
+        mBenchmark.measure(new Benchmark.Stage("processQuery, " + CONCURRENT_ALERT_COUNT
+                + " alerts") {
+            private MatrixCursor mCursor;
+
+            @Override
+            public void setUp() {
+                mCursor = buildAlertCursor(CONCURRENT_ALERT_COUNT, currentTime);
+                high.clear();
+                medium.clear();
+                low.clear();
+            }
+
+            @Override
+            public void run() {
+                AlertService.processQuery(mCursor, mBenchmarkContext, currentTime, high,
+                        medium, low);
+            }
+        });
+        assertEquals(CONCURRENT_ALERT_COUNT, high.size() + medium.size() + low.size());
+        assertTrue(mProvider.mUpdates > 0);
+    }
+
+    public void testRedistributeBuckets() {
+        final long currentTime = System.currentTimeMillis();
+        final ArrayList<NotificationInfo> high = new ArrayList<NotificationInfo>();
+        final ArrayList<NotificationInfo> medium = new ArrayList<NotificationInfo>();
+        final ArrayList<NotificationInfo> low = new ArrayList<NotificationInfo>();
+        final ArrayList<NotificationInfo> processedHigh = new ArrayList<NotificationInfo>();
+        final ArrayList<NotificationInfo> processedMedium = new ArrayList<NotificationInfo>();
+        final ArrayList<NotificationInfo> processedLow = new ArrayList<NotificationInfo>();
+        AlertService.processQuery(buildAlertCursor(CONCURRENT_ALERT_COUNT, currentTime),
+                mBenchmarkContext, currentTime, processedHigh, processedMedium, processedLow);
+
+        mBenchmark.measure(new Benchmark.Stage("redistributeBuckets, "
+                + CONCURRENT_ALERT_COUNT + " alerts") {
+            @Override
+            public void setUp() {
+                high.clear();
+                high.addAll(processedHigh);
+                medium.clear();
+                medium.addAll(processedMedium);
+                low.clear();
+                low.addAll(processedLow);
+            }
+
+            @Override
+            public void run() {
+                AlertService.redistributeBuckets(high, medium, low,
+                        AlertService.MAX_NOTIFICATIONS);
+            }
+        });
+        assertTrue(high.size() + medium.size() <= AlertService.MAX_NOTIFICATIONS);
+    }
+
+    public void testGenerateAlerts() {
+        final long currentTime = System.currentTimeMillis();
+        final SharedPreferences prefs = GeneralPreferences.getSharedPreferences(getContext());
+        final CountingNotificationMgr nm = new CountingNotificationMgr();
+
+        mBenchmark.measure(new Benchmark.Stage("generateAlerts, " + CONCURRENT_ALERT_COUNT
+                + " alerts") {
+            private MatrixCursor mCursor;
+
+            @Override
+            public void setUp() {
+                mCursor = buildAlertCursor(CONCURRENT_ALERT_COUNT, currentTime);
+            }
+
+            @Override
+            public void run() {
+                AlertService.generateAlerts(mBenchmarkContext, nm, mAlarmManager, prefs,
+                        mCursor, currentTime, AlertService.MAX_NOTIFICATIONS);
+            }
+        });
+        assertTrue(nm.mNotified > 0);
+    }
+
+    /**
+     * A sync delivering a burst of provider changes through the service's debounce: each
+     * change invalidates the reminder timeline and drops the derived caches, and the
+     * single refresh at the end of the burst regenerates the alerts and schedules the
+     * next alarm from the timeline.
+     */
+    public void testProviderChangeBurst() {
+        final long currentTime = System.currentTimeMillis();
+        final SharedPreferences prefs = GeneralPreferences.getSharedPreferences(getContext());
+        final CountingNotificationMgr nm = new CountingNotificationMgr();
+        final ProviderChangeDebouncer debouncer = new ProviderChangeDebouncer(mTimeline);
+        mProvider.addEvents(EVENT_COUNT, currentTime);
+        // The timeline is built before the sync starts.
+        AlarmScheduler.scheduleNextAlarm(mBenchmarkContext, mAlarmManager, mTimeline,
+                currentTime);
+
+        mBenchmark.measure(new Benchmark.Stage("provider change burst of "
+                + PROVIDER_CHANGE_BURST) {
+            private MatrixCursor mCursor;
+
+            @Override
+            public void setUp() {
+                mCursor = buildAlertCursor(CONCURRENT_ALERT_COUNT, currentTime);
+            }
+
+            @Override
+            public void run() {
+                long uptime = 1;
+                long refreshTime = 0;
+                for (int i = 0; i < PROVIDER_CHANGE_BURST; i++) {
+                    refreshTime = debouncer.onProviderChanged(uptime);
+                    uptime += PROVIDER_CHANGE_INTERVAL_MS;
+                }
+                assertTrue(debouncer.isRefreshPending());
+                assertTrue(refreshTime >= uptime - PROVIDER_CHANGE_INTERVAL_MS);
+
+                // The refresh message comes due.
+                debouncer.onRefresh();
+                AlertService.generateAlerts(mBenchmarkContext, nm, mAlarmManager, prefs,
+                        mCursor, currentTime, AlertService.MAX_NOTIFICATIONS);
+                AlarmScheduler.scheduleNextAlarm(mBenchmarkContext, mAlarmManager, mTimeline,
+                        currentTime);
+            }
+        });
+        int runs = Benchmark.WARMUP_ITERATIONS + Benchmark.ITERATIONS;
+        assertEquals(runs * PROVIDER_CHANGE_BURST, debouncer.mChanges);
+        assertEquals(runs, debouncer.mRefreshes);
+        assertTrue(mAlarmManager.isAlarmSet());
+    }
+}
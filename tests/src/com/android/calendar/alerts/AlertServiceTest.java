@@ -21,11 +21,18 @@ import static android.app.Notification.PRIORITY_HIGH;
 import static android.app.Notification.PRIORITY_MIN;
 
 import android.app.AlarmManager;
+import android.app.Notification;
+import android.app.PendingIntent;
 import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.CalendarContract;
 import android.provider.CalendarContract.Attendees;
 import android.provider.CalendarContract.CalendarAlerts;
 import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.test.suitebuilder.annotation.Smoke;
 import android.text.format.DateUtils;
@@ -1030,4 +1037,135 @@ public class AlertServiceTest extends AndroidTestCase {
         assertEquals(2, low.get(3).eventId);
         assertEquals(1, low.get(4).eventId);
     }
+
+    @SmallTest
+    public void testRescheduleMissedAlarms_windows() {
+        final long now = 100 * DateUtils.DAY_IN_MILLIS;
+        final long window = 5 * DateUtils.MINUTE_IN_MILLIS;
+        final long[] alarmTimes = new long[] {
+                now - 60 * DateUtils.MINUTE_IN_MILLIS,
+                // Two alerts sharing an alarm time
+                now - 58 * DateUtils.MINUTE_IN_MILLIS,
+                now - 58 * DateUtils.MINUTE_IN_MILLIS,
+                now - 55 * DateUtils.MINUTE_IN_MILLIS,
+                // More than the window after the first alarm of the group above
+                now - 54 * DateUtils.MINUTE_IN_MILLIS,
+                now - 10 * DateUtils.MINUTE_IN_MILLIS,
+        };
+        final String[][] queryArgs = new String[1][];
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(CalendarContract.AUTHORITY, new MockContentProvider() {
+            @Override
+            public Cursor query(Uri uri, String[] projection, String selection,
+                    String[] selectionArgs, String sortOrder) {
+                queryArgs[0] = selectionArgs;
+                MatrixCursor cursor = new MatrixCursor(projection);
+                for (long alarmTime : alarmTimes) {
+                    cursor.addRow(new Object[] { alarmTime });
+                }
+                return cursor;
+            }
+        });
+        final ArrayList<Long> scheduled = new ArrayList<Long>();
+        AlarmManagerInterface manager = new AlarmManagerInterface() {
+            @Override
+            public void set(int type, long triggerAtMillis, PendingIntent operation) {
+                assertEquals(AlarmManager.RTC_WAKEUP, type);
+                scheduled.add(triggerAtMillis);
+            }
+        };
+
+        int wakeups = AlertService.rescheduleMissedAlarms(resolver, getContext(), manager, now,
+                window);
+
+        // One wakeup per window, at the latest alarm time in it.
+        assertEquals(3, wakeups);
+        assertEquals(Arrays.asList(now - 55 * DateUtils.MINUTE_IN_MILLIS,
+                now - 54 * DateUtils.MINUTE_IN_MILLIS, now - 10 * DateUtils.MINUTE_IN_MILLIS),
+                scheduled);
+        assertEquals(Long.toString(now), queryArgs[0][0]);
+        assertEquals(Long.toString(now - DateUtils.DAY_IN_MILLIS), queryArgs[0][1]);
+    }
+
+    /**
+     * Records the calls that reach the notification manager.
+     */
+    private static class RecordingNotificationMgrWrapper
+            extends AlertService.NotificationMgrWrapper {
+        final ArrayList<String> mCalls = new ArrayList<String>();
+
+        RecordingNotificationMgrWrapper() {
+            super(null);
+        }
+
+        @Override
+        void postToManager(int id, Notification notification) {
+            mCalls.add("notify " + id);
+        }
+
+        @Override
+        void cancelInManager(int id) {
+            mCalls.add("cancel " + id);
+        }
+    }
+
+    @SmallTest
+    public void testNotificationMgrWrapper_unchangedAndChanged() {
+        RecordingNotificationMgrWrapper nm = new RecordingNotificationMgrWrapper();
+        NotificationWrapper nw = new NotificationWrapper(new Notification());
+        assertFalse(nm.isShowing(1, 42));
+
+        nm.notify(1, 42, nw);
+        assertTrue(nm.isShowing(1, 42));
+        assertFalse("Changed content must be posted", nm.isShowing(1, 43));
+        assertFalse(nm.isShowing(2, 42));
+
+        nm.notify(1, 43, nw);
+        assertTrue(nm.isShowing(1, 43));
+        assertFalse(nm.isShowing(1, 42));
+
+        // Posted without a fingerprint, so its content is unknown.
+        nm.notify(1, nw);
+        assertFalse(nm.isShowing(1, 43));
+        assertEquals(Arrays.asList("notify 1", "notify 1", "notify 1"), nm.mCalls);
+    }
+
+    @SmallTest
+    public void testNotificationMgrWrapper_cancelled() {
+        RecordingNotificationMgrWrapper nm = new RecordingNotificationMgrWrapper();
+        NotificationWrapper nw = new NotificationWrapper(new Notification());
+        nm.notify(3, 42, nw);
+        nm.cancel(3);
+        assertFalse(nm.isShowing(3, 42));
+
+        // Known to be gone, so the second cancel doesn't reach the manager.
+        nm.cancel(3);
+        assertEquals(Arrays.asList("notify 3", "cancel 3"), nm.mCalls);
+
+        // After notifications were cleared elsewhere nothing is assumed.
+        nm.notify(3, 42, nw);
+        nm.forgetAll();
+        assertFalse(nm.isShowing(3, 42));
+        nm.cancel(3);
+        nm.cancel(3);
+        assertEquals(Arrays.asList("notify 3", "cancel 3", "notify 3", "cancel 3"), nm.mCalls);
+    }
+
+    @SmallTest
+    public void testNotificationFingerprint_actions() {
+        NotificationInfo info = createNotificationInfo(5);
+        long plain = AlertService.getNotificationFingerprint(info, "summary", true, false, 0);
+        assertEquals(plain,
+                AlertService.getNotificationFingerprint(info, "summary", true, false, 0));
+
+        // An attendee added or removed changes the email action.
+        assertFalse(plain == AlertService.getNotificationFingerprint(info, "summary", true,
+                false, AlertReceiver.ACTION_EMAIL));
+        assertFalse(plain == AlertService.getNotificationFingerprint(info, "summary", true,
+                false, AlertReceiver.ACTION_MAP));
+        assertFalse(plain == AlertService.getNotificationFingerprint(info, "summary", false,
+                false, 0));
+        assertFalse(plain == AlertService.getNotificationFingerprint(info, "other", true,
+                false, 0));
+    }
 }
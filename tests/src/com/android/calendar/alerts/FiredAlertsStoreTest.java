@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+public class FiredAlertsStoreTest extends AndroidTestCase {
+    private static final String FILE_NAME = "fired_alerts_test.bin";
+    private static final String PREFS_NAME = "fired_alerts_test_prefs";
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getFilesDir(), FILE_NAME);
+        mFile.delete();
+        clearPrefs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+        clearPrefs();
+        super.tearDown();
+    }
+
+    private void clearPrefs() {
+        getContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear()
+                .commit();
+    }
+
+    private FiredAlertsStore newStore() {
+        return new FiredAlertsStore(getContext(), mFile, PREFS_NAME);
+    }
+
+    @SmallTest
+    public void testAddContains() {
+        FiredAlertsStore store = newStore();
+        assertFalse(store.contains(1, 100, 90));
+        store.add(1, 100, 90);
+        store.add(1, 100, 90);
+        assertTrue(store.contains(1, 100, 90));
+        assertFalse(store.contains(1, 100, 80));
+        assertFalse(store.contains(2, 100, 90));
+
+        // Appended records are read back by a new instance.
+        assertTrue(newStore().contains(1, 100, 90));
+        assertEquals(24, mFile.length());
+    }
+
+    @SmallTest
+    public void testExpire() {
+        long now = 10 * DateUtils.DAY_IN_MILLIS;
+        FiredAlertsStore store = newStore();
+        store.add(1, 0, now - 2 * DateUtils.DAY_IN_MILLIS);
+        store.add(2, 0, now - DateUtils.HOUR_IN_MILLIS);
+
+        store.expire(now);
+        assertFalse(store.contains(1, 0, now - 2 * DateUtils.DAY_IN_MILLIS));
+        assertTrue(store.contains(2, 0, now - DateUtils.HOUR_IN_MILLIS));
+
+        // The log was rewritten without the expired alert.
+        FiredAlertsStore reloaded = newStore();
+        assertFalse(reloaded.contains(1, 0, now - 2 * DateUtils.DAY_IN_MILLIS));
+        assertTrue(reloaded.contains(2, 0, now - DateUtils.HOUR_IN_MILLIS));
+    }
+
+    @SmallTest
+    public void testTornRecordIsDropped() throws Exception {
+        newStore().add(1, 100, 90);
+        // Half a record, as left by a crash while appending.
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        out.write(new byte[] { 0, 0, 0, 0, 0, 0, 0, 2, 0, 0 });
+        out.close();
+
+        FiredAlertsStore store = newStore();
+        assertTrue(store.contains(1, 100, 90));
+        store.add(3, 300, 290);
+
+        // Records appended after the torn one are still aligned.
+        FiredAlertsStore reloaded = newStore();
+        assertTrue(reloaded.contains(1, 100, 90));
+        assertTrue(reloaded.contains(3, 300, 290));
+        assertEquals(48, mFile.length());
+    }
+
+    @SmallTest
+    public void testLegacyPrefsImport() {
+        getContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putLong("preference_alert_5_500_490", 490)
+                .putLong("preference_alert_bad", 1)
+                .commit();
+
+        FiredAlertsStore store = newStore();
+        assertTrue(store.contains(5, 500, 490));
+        assertTrue(getContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getAll().isEmpty());
+
+        // The imported alert was written to the log.
+        assertTrue(newStore().contains(5, 500, 490));
+    }
+}
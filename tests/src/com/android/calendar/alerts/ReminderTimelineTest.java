@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.calendar.alerts;
+
+import android.app.AlarmManager;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.CalendarContract;
+import android.provider.CalendarContract.Events;
+import android.provider.CalendarContract.Instances;
+import android.provider.CalendarContract.Reminders;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+@SmallTest
+public class ReminderTimelineTest extends AndroidTestCase {
+    private static final String DATABASE_NAME = "test_reminder_timeline.db";
+
+    private TimelineProvider mProvider;
+    private Context mTimelineContext;
+    private MockAlarmManager mAlarmManager;
+    private TimeZone mDefaultTimeZone;
+    private long mNow;
+
+    /**
+     * Serves events, reminders and instances, honoring the event id ranges and the
+     * instance time range the timeline asks for, and records the queries made.
+     */
+    private static class TimelineProvider extends MockContentProvider {
+        final TreeMap<Long, ContentValues> mEvents = new TreeMap<Long, ContentValues>();
+        // Event id and minutes
+        final ArrayList<long[]> mReminders = new ArrayList<long[]>();
+        // Event id, begin and all-day flag
+        final ArrayList<long[]> mInstances = new ArrayList<long[]>();
+
+        int mEventsQueries;
+        // The selection args of every instances query
+        final ArrayList<String[]> mInstancesQueries = new ArrayList<String[]>();
+        boolean mFailEvents;
+
+        private static final Comparator<long[]> BY_EVENT_ID = new Comparator<long[]>() {
+            @Override
+            public int compare(long[] lhs, long[] rhs) {
+                if (lhs[0] != rhs[0]) {
+                    return lhs[0] < rhs[0] ? -1 : 1;
+                }
+                return lhs[1] < rhs[1] ? -1 : (lhs[1] == rhs[1] ? 0 : 1);
+            }
+        };
+
+        void addEvent(long eventId, long dtstart, Long originalId, int reminderMinutes) {
+            ContentValues values = new ContentValues();
+            values.put(Events._ID, eventId);
+            values.put(Events.DTSTART, dtstart);
+            values.put(Events.ORIGINAL_ID, originalId);
+            mEvents.put(eventId, values);
+            mReminders.add(new long[] { eventId, reminderMinutes });
+        }
+
+        void addInstance(long eventId, long begin) {
+            mInstances.add(new long[] { eventId, begin, 0 });
+        }
+
+        void removeEvent(long eventId) {
+            mEvents.remove(eventId);
+            removeRows(mReminders, eventId);
+            removeRows(mInstances, eventId);
+        }
+
+        void setReminder(long eventId, int reminderMinutes) {
+            removeRows(mReminders, eventId);
+            mReminders.add(new long[] { eventId, reminderMinutes });
+        }
+
+        private static void removeRows(List<long[]> rows, long eventId) {
+            Iterator<long[]> it = rows.iterator();
+            while (it.hasNext()) {
+                if (it.next()[0] == eventId) {
+                    it.remove();
+                }
+            }
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            if (Events.CONTENT_URI.equals(uri)) {
+                mEventsQueries++;
+                if (mFailEvents) {
+                    return null;
+                }
+                MatrixCursor cursor = new MatrixCursor(projection);
+                for (ContentValues values : mEvents.values()) {
+                    Object[] row = new Object[projection.length];
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = values.get(projection[i]);
+                    }
+                    cursor.addRow(row);
+                }
+                return cursor;
+            } else if (Reminders.CONTENT_URI.equals(uri)) {
+                ArrayList<long[]> rows = new ArrayList<long[]>();
+                for (long[] reminder : mReminders) {
+                    if (inIdRange(reminder[0], selectionArgs)) {
+                        rows.add(reminder);
+                    }
+                }
+                Collections.sort(rows, BY_EVENT_ID);
+                MatrixCursor cursor = new MatrixCursor(projection);
+                for (long[] reminder : rows) {
+                    Object[] row = new Object[projection.length];
+                    for (int i = 0; i < row.length; i++) {
+                        if (Reminders.EVENT_ID.equals(projection[i])) {
+                            row[i] = reminder[0];
+                        } else if (Reminders.MINUTES.equals(projection[i])) {
+                            row[i] = reminder[1];
+                        } else if (Reminders.METHOD.equals(projection[i])) {
+                            row[i] = Reminders.METHOD_ALERT;
+                        }
+                    }
+                    cursor.addRow(row);
+                }
+                return cursor;
+            } else if (uri.toString().startsWith(Instances.CONTENT_URI.toString())) {
+                mInstancesQueries.add(selectionArgs);
+                List<String> segments = uri.getPathSegments();
+                long begin = Long.parseLong(segments.get(segments.size() - 2));
+                long end = Long.parseLong(segments.get(segments.size() - 1));
+                ArrayList<long[]> rows = new ArrayList<long[]>();
+                for (long[] instance : mInstances) {
+                    if (instance[1] >= begin && instance[1] <= end
+                            && inIdRange(instance[0], selectionArgs)) {
+                        rows.add(instance);
+                    }
+                }
+                Collections.sort(rows, BY_EVENT_ID);
+                MatrixCursor cursor = new MatrixCursor(projection);
+                for (long[] instance : rows) {
+                    cursor.addRow(new Object[] { instance[0], instance[1], instance[2] });
+                }
+                return cursor;
+            }
+            return super.query(uri, projection, selection, selectionArgs, sortOrder);
+        }
+
+        /**
+         * Only the timeline's and the scheduler's "event_id>=? AND event_id<=?"
+         * queries pass exactly two arguments.
+         */
+        private static boolean inIdRange(long eventId, String[] selectionArgs) {
+            if (selectionArgs == null || selectionArgs.length != 2) {
+                return true;
+            }
+            return eventId >= Long.parseLong(selectionArgs[0])
+                    && eventId <= Long.parseLong(selectionArgs[1]);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mDefaultTimeZone = TimeZone.getDefault();
+        mProvider = new TimelineProvider();
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(CalendarContract.AUTHORITY, mProvider);
+        mTimelineContext = new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+        mAlarmManager = new MockAlarmManager(getContext());
+        mNow = System.currentTimeMillis();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TimeZone.setDefault(mDefaultTimeZone);
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    private ReminderTimeline newTimeline() {
+        return new ReminderTimeline(mTimelineContext, DATABASE_NAME);
+    }
+
+    private void assertAlarm(ReminderTimeline.Alarm alarm, long eventId, long alarmTime) {
+        assertNotNull(alarm);
+        assertEquals(eventId, alarm.eventId);
+        assertEquals(alarmTime, alarm.alarmTime);
+    }
+
+    private void addTwoEvents() {
+        mProvider.addEvent(1, mNow + 3 * DateUtils.HOUR_IN_MILLIS, null, 10);
+        mProvider.addInstance(1, mNow + 3 * DateUtils.HOUR_IN_MILLIS);
+        mProvider.addEvent(2, mNow + 2 * DateUtils.HOUR_IN_MILLIS, null, 30);
+        mProvider.addInstance(2, mNow + 2 * DateUtils.HOUR_IN_MILLIS);
+    }
+
+    public void testRebuild() {
+        addTwoEvents();
+
+        long expected = mNow + 2 * DateUtils.HOUR_IN_MILLIS - 30 * DateUtils.MINUTE_IN_MILLIS;
+        mAlarmManager.expectAlarmTime(AlarmManager.RTC_WAKEUP,
+                expected + AlarmScheduler.ALARM_DELAY_MS);
+        AlarmScheduler.scheduleNextAlarm(mTimelineContext, mAlarmManager, newTimeline(), mNow);
+        assertTrue(mAlarmManager.isAlarmSet());
+
+        // One query for all the instances in the window.
+        assertEquals(1, mProvider.mInstancesQueries.size());
+        assertNull(mProvider.mInstancesQueries.get(0));
+    }
+
+    public void testIncrementalChange() {
+        addTwoEvents();
+        ReminderTimeline timeline = newTimeline();
+        timeline.getNextAlarm(mNow);
+
+        mProvider.setReminder(1, 120);
+        timeline.invalidate();
+        assertAlarm(timeline.getNextAlarm(mNow), 1, mNow + DateUtils.HOUR_IN_MILLIS);
+
+        // Only the instances of the changed event were queried again.
+        assertEquals(2, mProvider.mInstancesQueries.size());
+        String[] args = mProvider.mInstancesQueries.get(1);
+        assertEquals("1", args[0]);
+        assertEquals("1", args[1]);
+
+        // Nothing changed, so no instances are queried.
+        timeline.invalidate();
+        assertAlarm(timeline.getNextAlarm(mNow), 1, mNow + DateUtils.HOUR_IN_MILLIS);
+        assertEquals(2, mProvider.mInstancesQueries.size());
+    }
+
+    public void testNoRescanWithoutProviderChange() {
+        addTwoEvents();
+        newTimeline().getNextAlarm(mNow);
+        assertEquals(1, mProvider.mEventsQueries);
+
+        // A new process picks the table up without scanning the provider...
+        newTimeline().getNextAlarm(mNow);
+        assertEquals(1, mProvider.mEventsQueries);
+
+        // ...unless a provider change came in before the table was brought up to date.
+        newTimeline().invalidate();
+        newTimeline().getNextAlarm(mNow);
+        assertEquals(2, mProvider.mEventsQueries);
+    }
+
+    public void testRemovedExceptionUpdatesOriginalEvent() {
+        // A daily event whose first occurrence was moved an hour later by an exception.
+        long start = mNow + 2 * DateUtils.HOUR_IN_MILLIS;
+        mProvider.addEvent(1, start, null, 10);
+        mProvider.mEvents.get(1L).put(Events.RRULE, "FREQ=DAILY");
+        mProvider.addInstance(1, start + DateUtils.DAY_IN_MILLIS);
+        mProvider.addEvent(3, start + DateUtils.HOUR_IN_MILLIS, 1L, 10);
+        mProvider.addInstance(3, start + DateUtils.HOUR_IN_MILLIS);
+
+        ReminderTimeline timeline = newTimeline();
+        assertAlarm(timeline.getNextAlarm(mNow), 3,
+                start + DateUtils.HOUR_IN_MILLIS - 10 * DateUtils.MINUTE_IN_MILLIS);
+
+        // Deleting the exception brings the original occurrence back, without any change
+        // to the row of the recurring event itself.
+        mProvider.removeEvent(3);
+        mProvider.addInstance(1, start);
+        timeline.invalidate();
+        assertAlarm(timeline.getNextAlarm(mNow), 1, start - 10 * DateUtils.MINUTE_IN_MILLIS);
+    }
+
+    public void testWindowExtension() {
+        long laterBegin = mNow + 8 * DateUtils.DAY_IN_MILLIS + 12 * DateUtils.HOUR_IN_MILLIS;
+        mProvider.addEvent(1, mNow + DateUtils.HOUR_IN_MILLIS, null, 10);
+        mProvider.addInstance(1, mNow + DateUtils.HOUR_IN_MILLIS);
+        mProvider.addEvent(2, laterBegin, null, 10);
+        mProvider.addInstance(2, laterBegin);
+
+        ReminderTimeline timeline = newTimeline();
+        assertAlarm(timeline.getNextAlarm(mNow), 1,
+                mNow + DateUtils.HOUR_IN_MILLIS - 10 * DateUtils.MINUTE_IN_MILLIS);
+
+        // Two days later the window is extended over the second event.
+        long later = mNow + 2 * DateUtils.DAY_IN_MILLIS;
+        assertAlarm(timeline.getNextAlarm(later), 2,
+                laterBegin - 10 * DateUtils.MINUTE_IN_MILLIS);
+        assertEquals(2, mProvider.mInstancesQueries.size());
+    }
+
+    public void testTimeZoneChangeRebuilds() {
+        addTwoEvents();
+        ReminderTimeline timeline = newTimeline();
+        timeline.getNextAlarm(mNow);
+        assertEquals(1, mProvider.mInstancesQueries.size());
+
+        String other = "America/New_York".equals(mDefaultTimeZone.getID()) ? "Europe/London"
+                : "America/New_York";
+        TimeZone.setDefault(TimeZone.getTimeZone(other));
+        assertAlarm(timeline.getNextAlarm(mNow), 2,
+                mNow + 2 * DateUtils.HOUR_IN_MILLIS - 30 * DateUtils.MINUTE_IN_MILLIS);
+
+        // Everything was queried again without a provider change.
+        assertEquals(2, mProvider.mEventsQueries);
+        assertEquals(2, mProvider.mInstancesQueries.size());
+        assertNull(mProvider.mInstancesQueries.get(1));
+    }
+
+    public void testFallbackWhenTimelineFails() {
+        addTwoEvents();
+        mProvider.mFailEvents = true;
+
+        long expected = mNow + 2 * DateUtils.HOUR_IN_MILLIS - 30 * DateUtils.MINUTE_IN_MILLIS;
+        mAlarmManager.expectAlarmTime(AlarmManager.RTC_WAKEUP,
+                expected + AlarmScheduler.ALARM_DELAY_MS);
+        AlarmScheduler.scheduleNextAlarm(mTimelineContext, mAlarmManager, newTimeline(), mNow);
+        assertTrue(mAlarmManager.isAlarmSet());
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.calendar.widget;
+
+import com.android.calendar.Benchmark;
+import com.android.calendar.widget.CalendarAppWidgetModel.EventInfo;
+
+import android.database.MatrixCursor;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+
+/**
+ * Measures building the widget model from a full page of instances, with the rows of
+ * {@link CalendarAppWidgetServiceTest}. Results are logged rather than asserted on:
+ *
+ *   adb logcat -s CalendarAppWidgetModelBenchmark
+ */
+@LargeTest
+public class CalendarAppWidgetModelBenchmark extends AndroidTestCase {
+    private static final String TAG = "CalendarAppWidgetModelBenchmark";
+
+    // Roughly what fits on a large widget
+    private static final int VISIBLE_ROWS = 12;
+
+    private final Benchmark mBenchmark = new Benchmark(TAG);
+    private String mTimeZone;
+    private MatrixCursor mCursor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTimeZone = Time.getCurrentTimezone();
+        mCursor = buildCursor(CalendarAppWidgetService.EVENT_MAX_COUNT,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * A busy week: back to back meetings from 8am, every fifth event all-day and every
+     * seventh spanning two days, spread over MAX_DAYS.
+     */
+    private MatrixCursor buildCursor(int count, long now) {
+        MatrixCursor cursor = new MatrixCursor(CalendarAppWidgetService.EVENT_PROJECTION,
+                count);
+        Time time = new Time(mTimeZone);
+        time.set(now);
+        time.hour = 8;
+        time.minute = 0;
+        time.second = 0;
+        long firstMorning = time.normalize(false);
+        int perDay = count / CalendarAppWidgetService.MAX_DAYS + 1;
+        for (int i = 0; i < count; i++) {
+            int day = i / perDay;
+            long begin = firstMorning + day * DateUtils.DAY_IN_MILLIS
+                    + (i % perDay) * DateUtils.HOUR_IN_MILLIS / 2;
+            long end = begin + (i % 7 == 0 ? DateUtils.DAY_IN_MILLIS
+                    : DateUtils.HOUR_IN_MILLIS / 2);
+            int allDay = i % 5 == 0 ? 1 : 0;
+            Object[] row = CalendarAppWidgetServiceTest.getRow(allDay, begin, end,
+                    "Title" + i % 10, i % 3 == 0 ? "" : "Location" + i % 4, i,
+                    Time.getJulianDay(begin, time.gmtoff), Time.getJulianDay(end, time.gmtoff));
+            row[CalendarAppWidgetService.INDEX_COLOR] = 0xff33b5e5;
+            row[CalendarAppWidgetService.INDEX_SELF_ATTENDEE_STATUS] = 1;
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    public void testBuildFromCursor() {
+        mBenchmark.measure(new Benchmark.Stage("buildFromCursor, " + mCursor.getCount()
+                + " instances") {
+            @Override
+            public void run() {
+                CalendarAppWidgetService.CalendarFactory.buildAppWidgetModel(getContext(),
+                        mCursor, mTimeZone);
+            }
+        });
+    }
+
+    public void testBuildFromInstances() {
+        final WidgetInstances instances = WidgetInstances.fromCursor(mCursor);
+        mBenchmark.measure(new Benchmark.Stage("buildFromInstances, " + instances.size()
+                + " instances") {
+            @Override
+            public void run() {
+                new CalendarAppWidgetModel(getContext(), mTimeZone).buildFromInstances(
+                        instances, mTimeZone);
+            }
+        });
+    }
+
+    /**
+     * Builds the model and formats the rows the widget shows first, which is the work
+     * done before the widget can draw.
+     */
+    public void testBuildAndFormatVisibleRows() {
+        final WidgetInstances instances = WidgetInstances.fromCursor(mCursor);
+        mBenchmark.measure(new Benchmark.Stage("build and format " + VISIBLE_ROWS + " rows") {
+            @Override
+            public void run() {
+                CalendarAppWidgetModel model = new CalendarAppWidgetModel(getContext(),
+                        mTimeZone);
+                model.buildFromInstances(instances, mTimeZone);
+                int rows = Math.min(VISIBLE_ROWS, model.getRowCount());
+                for (int i = 0; i < rows; i++) {
+                    if (model.getRowType(i) == CalendarAppWidgetModel.TYPE_MEETING) {
+                        EventInfo eventInfo = model.mEventInfos.get(model.getRowIndex(i));
+                        assertNotNull(model.getWhen(eventInfo));
+                    }
+                }
+            }
+        });
+    }
+}
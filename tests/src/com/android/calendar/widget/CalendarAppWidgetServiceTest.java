@@ -173,7 +173,103 @@ public class CalendarAppWidgetServiceTest extends AndroidTestCase {
         assertEquals(expected.toString(), actual.toString());
     }
 
-    private Object[] getRow(int allDay, long begin, long end, String title, String location,
+    @SmallTest
+    public void testGetAppWidgetModel_rowOrder() throws Exception {
+        Time time = new Time();
+        time.set(now);
+        int tomorrow = Time.getJulianDay(now, time.gmtoff);
+        MatrixCursor cursor = new MatrixCursor(CalendarAppWidgetService.EVENT_PROJECTION, 0);
+        cursor.addRow(getRow(0, now + ONE_HOUR, now + TWO_HOURS, title, location, 0,
+                tomorrow, tomorrow));
+        cursor.addRow(getRow(1, now, now + DateUtils.DAY_IN_MILLIS, title, location, 1,
+                tomorrow, tomorrow));
+        cursor.addRow(getRow(0, now + DateUtils.DAY_IN_MILLIS,
+                now + DateUtils.DAY_IN_MILLIS + ONE_HOUR, title, location, 2, tomorrow + 1,
+                tomorrow + 1));
+
+        CalendarAppWidgetModel model = CalendarFactory.buildAppWidgetModel(
+                getContext(), cursor, Time.getCurrentTimezone());
+
+        // Each day gets a header, and all-day events come before timed ones.
+        assertEquals(5, model.getRowCount());
+        assertEquals(CalendarAppWidgetModel.TYPE_DAY, model.getRowType(0));
+        assertEquals(1, model.mEventInfos.get(model.getRowIndex(1)).id);
+        assertEquals(0, model.mEventInfos.get(model.getRowIndex(2)).id);
+        assertEquals(CalendarAppWidgetModel.TYPE_DAY, model.getRowType(3));
+        assertEquals(tomorrow + 1, model.mDayInfos.get(model.getRowIndex(3)).mJulianDay);
+        assertEquals(2, model.mEventInfos.get(model.getRowIndex(4)).id);
+    }
+
+    @SmallTest
+    public void testNeedsEventsAfter() throws Exception {
+        Time time = new Time();
+        time.set(now);
+        int tomorrow = Time.getJulianDay(now, time.gmtoff);
+        MatrixCursor cursor = new MatrixCursor(CalendarAppWidgetService.EVENT_PROJECTION, 0);
+        for (int i = 0; i < CalendarAppWidgetService.EVENT_MIN_COUNT; i++) {
+            cursor.addRow(getRow(0, now + i * ONE_MINUTE, now + ONE_HOUR, title, location, i,
+                    tomorrow, tomorrow));
+        }
+        CalendarAppWidgetModel model = CalendarFactory.buildAppWidgetModel(
+                getContext(), cursor, Time.getCurrentTimezone());
+
+        // Tomorrow fills the widget, so later days can't change the rows.
+        assertFalse(model.needsEventsAfter(tomorrow));
+        assertTrue(model.needsEventsAfter(tomorrow - 1));
+    }
+
+    @SmallTest
+    public void testCalculateBoundaries() throws Exception {
+        CalendarAppWidgetModel model = new CalendarAppWidgetModel(getContext(),
+                Time.getCurrentTimezone());
+        model.mEventInfos.add(newEventInfo(now - ONE_HOUR, now + HALF_HOUR));
+        model.mEventInfos.add(newEventInfo(now + HALF_HOUR, now + ONE_HOUR));
+        model.mEventInfos.add(newEventInfo(now + ONE_HOUR, now + TWO_HOURS));
+        model.mEventInfos.add(newEventInfo(now - TWO_HOURS, now - ONE_HOUR));
+
+        // Back to back events share their boundary, and nothing past the limit is kept.
+        long[] boundaries = WidgetDataSource.calculateBoundaries(model, now, now + TWO_HOURS);
+        assertEquals(2, boundaries.length);
+        assertEquals(now + HALF_HOUR, boundaries[0]);
+        assertEquals(now + ONE_HOUR, boundaries[1]);
+    }
+
+    @SmallTest
+    public void testMerge() throws Exception {
+        MatrixCursor cursor = new MatrixCursor(CalendarAppWidgetService.EVENT_PROJECTION, 0);
+        cursor.addRow(getRow(0, now + ONE_HOUR, now + TWO_HOURS, title + 1, location, 1));
+        cursor.addRow(getRow(0, now + TWO_HOURS + HALF_HOUR, now + TWO_HOURS + ONE_HOUR,
+                title + 3, location, 3));
+        WidgetInstances current = WidgetInstances.fromCursor(cursor);
+
+        // Event 4 goes before event 1, event 2 between events 1 and 3.
+        MatrixCursor moreCursor = new MatrixCursor(CalendarAppWidgetService.EVENT_PROJECTION,
+                0);
+        moreCursor.addRow(getRow(0, now + HALF_HOUR, now + ONE_HOUR, title + 4, location, 4));
+        moreCursor.addRow(getRow(0, now + TWO_HOURS, now + TWO_HOURS + ONE_HOUR, title + 2,
+                location, 2));
+        WidgetInstances more = WidgetInstances.fromCursor(moreCursor);
+
+        WidgetInstances merged = current.merge(more, 100);
+        assertEquals(4, merged.size());
+        assertEquals(4, merged.getEventId(0));
+        assertEquals(1, merged.getEventId(1));
+        assertEquals(2, merged.getEventId(2));
+        assertEquals(3, merged.getEventId(3));
+        assertEquals(now + TWO_HOURS, merged.getBegin(2));
+
+        // Rows past the limit are dropped.
+        assertEquals(2, current.merge(more, 2).size());
+    }
+
+    private static EventInfo newEventInfo(long start, long end) {
+        EventInfo eventInfo = new EventInfo();
+        eventInfo.start = start;
+        eventInfo.end = end;
+        return eventInfo;
+    }
+
+    static Object[] getRow(int allDay, long begin, long end, String title, String location,
             long eventId) {
         Object[] row = new Object[CalendarAppWidgetService.EVENT_PROJECTION.length];
         row[CalendarAppWidgetService.INDEX_ALL_DAY] = new Integer(allDay);
@@ -184,4 +280,12 @@ public class CalendarAppWidgetServiceTest extends AndroidTestCase {
         row[CalendarAppWidgetService.INDEX_EVENT_ID] = new Long(eventId);
         return row;
     }
+
+    static Object[] getRow(int allDay, long begin, long end, String title, String location,
+            long eventId, int startDay, int endDay) {
+        Object[] row = getRow(allDay, begin, end, title, location, eventId);
+        row[CalendarAppWidgetService.INDEX_START_DAY] = new Integer(startDay);
+        row[CalendarAppWidgetService.INDEX_END_DAY] = new Integer(endDay);
+        return row;
+    }
 }